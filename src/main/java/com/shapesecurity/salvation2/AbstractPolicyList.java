@@ -0,0 +1,224 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+import com.shapesecurity.salvation2.Values.MediaType;
+
+import javax.annotation.Nullable;
+
+// The querying methods shared by PolicyList and CompiledPolicyList: a query is allowed only if every policy allows it, checked in order and stopping at the first which denies.
+// Subclasses only say which policies there are; they are read by index so that no query allocates an iterator.
+abstract class AbstractPolicyList implements QueryablePolicy {
+	abstract int policyCount();
+
+	abstract QueryablePolicy policyAt(int index);
+
+	@Override
+	public boolean allowsExternalScriptNullable(@Nullable String nonce, @Nullable String integrity, @Nullable URLWithScheme scriptUrl, TriState parserInserted, @Nullable URLWithScheme origin) {
+		for (int i = 0, count = this.policyCount(); i < count; ++i) {
+			if (!this.policyAt(i).allowsExternalScriptNullable(nonce, integrity, scriptUrl, parserInserted, origin)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean allowsInlineScriptNullable(@Nullable String nonce, @Nullable String source, TriState parserInserted) {
+		for (int i = 0, count = this.policyCount(); i < count; ++i) {
+			if (!this.policyAt(i).allowsInlineScriptNullable(nonce, source, parserInserted)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean allowsScriptAsAttributeNullable(@Nullable String source) {
+		for (int i = 0, count = this.policyCount(); i < count; ++i) {
+			if (!this.policyAt(i).allowsScriptAsAttributeNullable(source)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean allowsEval() {
+		for (int i = 0, count = this.policyCount(); i < count; ++i) {
+			if (!this.policyAt(i).allowsEval()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean allowsNavigationNullable(@Nullable URLWithScheme to, TriState redirected, @Nullable URLWithScheme redirectedTo, @Nullable URLWithScheme origin) {
+		for (int i = 0, count = this.policyCount(); i < count; ++i) {
+			if (!this.policyAt(i).allowsNavigationNullable(to, redirected, redirectedTo, origin)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean allowsFormActionNullable(@Nullable URLWithScheme to, TriState redirected, @Nullable URLWithScheme redirectedTo, @Nullable URLWithScheme origin) {
+		for (int i = 0, count = this.policyCount(); i < count; ++i) {
+			if (!this.policyAt(i).allowsFormActionNullable(to, redirected, redirectedTo, origin)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean allowsJavascriptUrlNavigationNullable(@Nullable String source, @Nullable URLWithScheme origin) {
+		for (int i = 0, count = this.policyCount(); i < count; ++i) {
+			if (!this.policyAt(i).allowsJavascriptUrlNavigationNullable(source, origin)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean allowsExternalStyleNullable(@Nullable String nonce, @Nullable URLWithScheme styleUrl, @Nullable URLWithScheme origin) {
+		for (int i = 0, count = this.policyCount(); i < count; ++i) {
+			if (!this.policyAt(i).allowsExternalStyleNullable(nonce, styleUrl, origin)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean allowsInlineStyleNullable(@Nullable String nonce, @Nullable String source) {
+		for (int i = 0, count = this.policyCount(); i < count; ++i) {
+			if (!this.policyAt(i).allowsInlineStyleNullable(nonce, source)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean allowsStyleAsAttributeNullable(@Nullable String source) {
+		for (int i = 0, count = this.policyCount(); i < count; ++i) {
+			if (!this.policyAt(i).allowsStyleAsAttributeNullable(source)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean allowsFrameNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		for (int i = 0, count = this.policyCount(); i < count; ++i) {
+			if (!this.policyAt(i).allowsFrameNullable(source, origin)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean allowsFrameAncestorNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		for (int i = 0, count = this.policyCount(); i < count; ++i) {
+			if (!this.policyAt(i).allowsFrameAncestorNullable(source, origin)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean allowsConnectionNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		for (int i = 0, count = this.policyCount(); i < count; ++i) {
+			if (!this.policyAt(i).allowsConnectionNullable(source, origin)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean allowsFontNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		for (int i = 0, count = this.policyCount(); i < count; ++i) {
+			if (!this.policyAt(i).allowsFontNullable(source, origin)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean allowsImageNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		for (int i = 0, count = this.policyCount(); i < count; ++i) {
+			if (!this.policyAt(i).allowsImageNullable(source, origin)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean allowsApplicationManifestNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		for (int i = 0, count = this.policyCount(); i < count; ++i) {
+			if (!this.policyAt(i).allowsApplicationManifestNullable(source, origin)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean allowsMediaNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		for (int i = 0, count = this.policyCount(); i < count; ++i) {
+			if (!this.policyAt(i).allowsMediaNullable(source, origin)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean allowsObjectNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		for (int i = 0, count = this.policyCount(); i < count; ++i) {
+			if (!this.policyAt(i).allowsObjectNullable(source, origin)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean allowsPrefetchNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		for (int i = 0, count = this.policyCount(); i < count; ++i) {
+			if (!this.policyAt(i).allowsPrefetchNullable(source, origin)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean allowsWorkerNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		for (int i = 0, count = this.policyCount(); i < count; ++i) {
+			if (!this.policyAt(i).allowsWorkerNullable(source, origin)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean allowsPluginNullable(@Nullable MediaType mediaType) {
+		for (int i = 0, count = this.policyCount(); i < count; ++i) {
+			if (!this.policyAt(i).allowsPluginNullable(mediaType)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
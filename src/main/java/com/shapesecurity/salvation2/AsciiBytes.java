@@ -0,0 +1,78 @@
+package com.shapesecurity.salvation2;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// A read-only view of a range of bytes as a CharSequence, one char per byte, without decoding or copying them.
+// Bytes outside the ASCII range come out as chars above 0x7F, which the tokenizer rejects, so it is never necessary to actually decode anything.
+final class AsciiBytes implements CharSequence {
+	private final byte[] array;
+	private final ByteBuffer buffer;
+	private final int offset;
+	private final int length;
+
+	AsciiBytes(@Nonnull byte[] array, int offset, int length) {
+		if (offset < 0 || length < 0 || offset > array.length - length) {
+			throw new IndexOutOfBoundsException("offset " + offset + " and length " + length + " are out of bounds for an array of length " + array.length);
+		}
+		this.array = array;
+		this.buffer = null;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	// Covers the bytes between the buffer's position and its limit. The buffer's position is not changed.
+	AsciiBytes(@Nonnull ByteBuffer buffer) {
+		if (buffer.hasArray()) {
+			this.array = buffer.array();
+			this.buffer = null;
+			this.offset = buffer.arrayOffset() + buffer.position();
+		} else {
+			this.array = null;
+			this.buffer = buffer;
+			this.offset = buffer.position();
+		}
+		this.length = buffer.remaining();
+	}
+
+	@Override
+	public int length() {
+		return this.length;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if (index < 0 || index >= this.length) {
+			throw new IndexOutOfBoundsException("index " + index + " is out of bounds for length " + this.length);
+		}
+		byte b = this.array != null ? this.array[this.offset + index] : this.buffer.get(this.offset + index);
+		return (char) (b & 0xFF);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return this.substring(start, end);
+	}
+
+	// This is the only place strings get created, so callers only pay for the ranges they actually keep
+	String substring(int start, int end) {
+		if (start < 0 || end > this.length || start > end) {
+			throw new IndexOutOfBoundsException("range [" + start + ", " + end + ") is out of bounds for length " + this.length);
+		}
+		// ISO-8859-1 maps each byte to the char with the same value, which is exactly what charAt does
+		if (this.array != null) {
+			return new String(this.array, this.offset + start, end - start, StandardCharsets.ISO_8859_1);
+		}
+		byte[] bytes = new byte[end - start];
+		ByteBuffer view = this.buffer.duplicate();
+		view.position(this.offset + start);
+		view.get(bytes);
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+
+	@Override
+	public String toString() {
+		return this.substring(0, this.length);
+	}
+}
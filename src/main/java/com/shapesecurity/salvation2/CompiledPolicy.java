@@ -0,0 +1,435 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.Directives.HostSourceDirective;
+import com.shapesecurity.salvation2.Directives.SandboxDirective;
+import com.shapesecurity.salvation2.Directives.SourceExpressionDirective;
+import com.shapesecurity.salvation2.URLs.GUID;
+import com.shapesecurity.salvation2.URLs.URI;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+import com.shapesecurity.salvation2.Values.Hash;
+import com.shapesecurity.salvation2.Values.MediaType;
+import com.shapesecurity.salvation2.Values.Nonce;
+import com.shapesecurity.salvation2.Values.Scheme;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+// An immutable snapshot of a Policy which only supports the high-level queries, created by Policy.compile.
+// The governing directive for each kind of request is looked up once, and each source list is indexed so that checking nonces, hashes and hosts does not depend on how many of them there are.
+// Every query gives the same answer as the same query on the Policy it was compiled from, as of when it was compiled. Later changes to that Policy are not reflected here.
+// Instances are safe to share between threads.
+public final class CompiledPolicy implements QueryablePolicy {
+	private static final FetchDirectiveKind[] FETCH_DIRECTIVE_KINDS = FetchDirectiveKind.values();
+
+	// Indexed by the ordinal of the effective directive; null where the policy has no governing directive for it (and for default-src and child-src, which are never effective directives)
+	private final SourceList[] governing = new SourceList[FETCH_DIRECTIVE_KINDS.length];
+	private final boolean allowsEval;
+	private final boolean sandboxAllowsScripts;
+	private final boolean sandboxAllowsForms;
+	@Nullable
+	private final SourceList navigateTo;
+	@Nullable
+	private final SourceList formAction;
+	@Nullable
+	private final SourceList frameAncestors;
+	@Nullable
+	private final Set<MediaType> pluginTypes;
+	// See restrictiveness()
+	private final int restrictiveness;
+	@Nullable
+	private final DigestCache digestCache;
+
+	CompiledPolicy(Policy policy) {
+		this.digestCache = policy.getDigestCache();
+
+		// Several effective directives usually share one governing directive, so they share its compiled form too
+		Map<SourceExpressionDirective, SourceList> compiled = new IdentityHashMap<>();
+		for (FetchDirectiveKind kind : FETCH_DIRECTIVE_KINDS) {
+			if (kind == FetchDirectiveKind.DefaultSrc || kind == FetchDirectiveKind.ChildSrc) {
+				continue;
+			}
+			SourceExpressionDirective directive = policy.getGoverningDirectiveForEffectiveDirective(kind).orElse(null);
+			if (directive != null) {
+				this.governing[kind.ordinal()] = compiled.computeIfAbsent(directive, SourceList::new);
+			}
+		}
+
+		// This is done in prose, not in a table; see Policy.allowsEval
+		Optional<SourceExpressionDirective> scriptSrc = policy.getFetchDirective(FetchDirectiveKind.ScriptSrc);
+		SourceExpressionDirective evalSourceList = scriptSrc.isPresent() ? scriptSrc.get() : policy.getFetchDirective(FetchDirectiveKind.DefaultSrc).orElse(null);
+		this.allowsEval = evalSourceList == null || evalSourceList.unsafeEval();
+
+		SandboxDirective sandbox = policy.sandbox().orElse(null);
+		this.sandboxAllowsScripts = sandbox == null || sandbox.allowScripts();
+		this.sandboxAllowsForms = sandbox == null || sandbox.allowForms();
+
+		this.navigateTo = policy.navigateTo().map(SourceList::new).orElse(null);
+		this.formAction = policy.formAction().map(SourceList::new).orElse(null);
+		this.frameAncestors = policy.frameAncestors().map(SourceList::new).orElse(null);
+		this.pluginTypes = policy.pluginTypes().map(d -> Collections.unmodifiableSet(new HashSet<>(d.getMediaTypes()))).orElse(null);
+
+		int restrictiveness = 0;
+		for (SourceList list : this.governing) {
+			if (list != null) {
+				restrictiveness += list.allowsNothing ? 2 : 1;
+			}
+		}
+		for (SourceList list : Arrays.asList(this.navigateTo, this.formAction, this.frameAncestors)) {
+			if (list != null) {
+				restrictiveness += list.allowsNothing ? 2 : 1;
+			}
+		}
+		if (!this.allowsEval) {
+			++restrictiveness;
+		}
+		if (!this.sandboxAllowsScripts) {
+			restrictiveness += 2;
+		}
+		if (!this.sandboxAllowsForms) {
+			++restrictiveness;
+		}
+		if (this.pluginTypes != null) {
+			++restrictiveness;
+		}
+		this.restrictiveness = restrictiveness;
+	}
+
+	// A cheap estimate of how likely this policy is to deny an arbitrary query: roughly, how many kinds of query it restricts at all, counting those it denies outright twice.
+	// CompiledPolicyList checks the policies which score highest first.
+	int restrictiveness() {
+		return this.restrictiveness;
+	}
+
+	public boolean allowsExternalScriptNullable(@Nullable String nonce, @Nullable String integrity, @Nullable URLWithScheme scriptUrl, TriState parserInserted, @Nullable URLWithScheme origin) {
+		if (!this.sandboxAllowsScripts) {
+			return false;
+		}
+		SourceList list = this.governing[FetchDirectiveKind.ScriptSrcElem.ordinal()];
+		if (list == null) {
+			return true;
+		}
+		if (nonce != null && list.matchesNonce(nonce)) {
+			return true;
+		}
+		if (integrity != null && !list.hashes.isEmpty()) {
+			boolean bypassDueToIntegrityMatch = true;
+			boolean atLeastOneValidIntegrity = false;
+			// https://www.w3.org/TR/SRI/#parse-metadata
+			for (String source : Utils.splitOnAsciiWhitespace(integrity)) {
+				Optional<Hash> parsedIntegritySource = Hash.parseHash("'" + source + "'");
+				if (!parsedIntegritySource.isPresent()) {
+					continue;
+				}
+				if (!list.hashes.contains(parsedIntegritySource.get())) {
+					bypassDueToIntegrityMatch = false;
+					break;
+				}
+				atLeastOneValidIntegrity = true;
+			}
+			if (atLeastOneValidIntegrity && bypassDueToIntegrityMatch) {
+				return true;
+			}
+		}
+		if (list.strictDynamic) {
+			return !parserInserted.orElse(true);
+		}
+		if (scriptUrl != null) {
+			return list.matches(scriptUrl, origin);
+		}
+		return false;
+	}
+
+	public boolean allowsInlineScriptNullable(@Nullable String nonce, @Nullable String source, TriState parserInserted) {
+		if (!this.sandboxAllowsScripts) {
+			return false;
+		}
+		return this.doesElementMatchSourceListForTypeAndSource(Policy.InlineType.Script, nonce, source, parserInserted);
+	}
+
+	public boolean allowsScriptAsAttributeNullable(@Nullable String source) {
+		if (!this.sandboxAllowsScripts) {
+			return false;
+		}
+		return this.doesElementMatchSourceListForTypeAndSource(Policy.InlineType.ScriptAttribute, null, source, TriState.Unknown);
+	}
+
+	public boolean allowsEval() {
+		return this.allowsEval;
+	}
+
+	public boolean allowsNavigationNullable(@Nullable URLWithScheme to, TriState redirected, @Nullable URLWithScheme redirectedTo, @Nullable URLWithScheme origin) {
+		return this.allowsNavigationInOrigin(to, redirected, redirectedTo, OriginMatcher.of(origin));
+	}
+
+	// The queries which take an OriginMatcher are for PolicyInOrigin, which builds the matcher once rather than on every query
+	boolean allowsNavigationInOrigin(@Nullable URLWithScheme to, TriState redirected, @Nullable URLWithScheme redirectedTo, OriginMatcher origin) {
+		SourceList list = this.navigateTo;
+		if (list == null) {
+			return true;
+		}
+		if (list.unsafeAllowRedirects) {
+			if (!redirected.orElse(false)) {
+				if (to == null || !list.matches(to, origin)) {
+					return false;
+				}
+			}
+			if (redirected.orElse(true)) {
+				if (redirectedTo == null || !list.matches(redirectedTo, origin)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return to != null && list.matches(to, origin);
+	}
+
+	public boolean allowsFormActionNullable(@Nullable URLWithScheme to, TriState redirected, @Nullable URLWithScheme redirectedTo, @Nullable URLWithScheme origin) {
+		return this.allowsFormActionInOrigin(to, redirected, redirectedTo, OriginMatcher.of(origin));
+	}
+
+	boolean allowsFormActionInOrigin(@Nullable URLWithScheme to, TriState redirected, @Nullable URLWithScheme redirectedTo, OriginMatcher origin) {
+		if (!this.sandboxAllowsForms) {
+			return false;
+		}
+		if (this.formAction != null) {
+			return to != null && this.formAction.matches(to, origin);
+		}
+		return this.allowsNavigationInOrigin(to, redirected, redirectedTo, origin);
+	}
+
+	public boolean allowsJavascriptUrlNavigationNullable(@Nullable String source, @Nullable URLWithScheme origin) {
+		return this.allowsNavigationNullable(new GUID("javascript", source == null ? "" : source), TriState.False, null, origin)
+				&& this.doesElementMatchSourceListForTypeAndSource(Policy.InlineType.Navigation, null, source == null ? null : "javascript:" + source, TriState.False);
+	}
+
+	public boolean allowsExternalStyleNullable(@Nullable String nonce, @Nullable URLWithScheme styleUrl, @Nullable URLWithScheme origin) {
+		SourceList list = this.governing[FetchDirectiveKind.StyleSrcElem.ordinal()];
+		if (list == null) {
+			return true;
+		}
+		if (nonce != null && list.matchesNonce(nonce)) {
+			return true;
+		}
+		return styleUrl != null && list.matches(styleUrl, origin);
+	}
+
+	public boolean allowsInlineStyleNullable(@Nullable String nonce, @Nullable String source) {
+		return this.doesElementMatchSourceListForTypeAndSource(Policy.InlineType.Style, nonce, source, TriState.Unknown);
+	}
+
+	public boolean allowsStyleAsAttributeNullable(@Nullable String source) {
+		return this.doesElementMatchSourceListForTypeAndSource(Policy.InlineType.StyleAttribute, null, source, TriState.Unknown);
+	}
+
+	public boolean allowsFrameNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		return this.allowsFetch(FetchDirectiveKind.FrameSrc, source, origin);
+	}
+
+	public boolean allowsFrameAncestorNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		return this.allowsFrameAncestorInOrigin(source, OriginMatcher.of(origin));
+	}
+
+	boolean allowsFrameAncestorInOrigin(@Nullable URLWithScheme source, OriginMatcher origin) {
+		if (this.frameAncestors == null) {
+			return true;
+		}
+		return source != null && this.frameAncestors.matches(source, origin);
+	}
+
+	public boolean allowsConnectionNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		SourceList list = this.governing[FetchDirectiveKind.ConnectSrc.ordinal()];
+		if (list == null) {
+			return true;
+		}
+		if (source == null) {
+			return false;
+		}
+		return list.matches(connectionSource(source), origin);
+	}
+
+	public boolean allowsFontNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		return this.allowsFetch(FetchDirectiveKind.FontSrc, source, origin);
+	}
+
+	public boolean allowsImageNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		return this.allowsFetch(FetchDirectiveKind.ImgSrc, source, origin);
+	}
+
+	public boolean allowsApplicationManifestNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		return this.allowsFetch(FetchDirectiveKind.ManifestSrc, source, origin);
+	}
+
+	public boolean allowsMediaNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		return this.allowsFetch(FetchDirectiveKind.MediaSrc, source, origin);
+	}
+
+	public boolean allowsObjectNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		return this.allowsFetch(FetchDirectiveKind.ObjectSrc, source, origin);
+	}
+
+	public boolean allowsPrefetchNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		return this.allowsFetch(FetchDirectiveKind.PrefetchSrc, source, origin);
+	}
+
+	public boolean allowsWorkerNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		return this.allowsFetch(FetchDirectiveKind.WorkerSrc, source, origin);
+	}
+
+	public boolean allowsPluginNullable(@Nullable MediaType mediaType) {
+		if (this.pluginTypes == null) {
+			return true;
+		}
+		return mediaType != null && this.pluginTypes.contains(mediaType);
+	}
+
+	// allowsUrl, for PolicyInOrigin; `kind` must be the effective directive of a fetch. This has to agree with the individual methods above; see Policy.allowsUrlWithDirective.
+	boolean allowsUrlInOrigin(FetchDirectiveKind kind, @Nullable URLWithScheme url, OriginMatcher origin) {
+		if (kind == FetchDirectiveKind.ScriptSrcElem && !this.sandboxAllowsScripts) {
+			return false;
+		}
+		SourceList list = this.governing[kind.ordinal()];
+		if (list == null) {
+			return true;
+		}
+		if (url == null) {
+			return false;
+		}
+		if (kind == FetchDirectiveKind.ScriptSrcElem && list.strictDynamic) {
+			// Whether the script is parser-inserted is not known, so assume the worst, as allowsExternalScript does
+			return false;
+		}
+		return list.matches(kind == FetchDirectiveKind.ConnectSrc ? connectionSource(url) : url, origin);
+	}
+
+	// See Policy.allowsConnection
+	private static URLWithScheme connectionSource(URLWithScheme source) {
+		if (source instanceof URI) {
+			if (source.scheme.equals("ws")) {
+				return new URI("http", source.host, source.port, source.path);
+			} else if (source.scheme.equals("wss")) {
+				return new URI("https", source.host, source.port, source.path);
+			}
+		}
+		return source;
+	}
+
+	private boolean allowsFetch(FetchDirectiveKind effectiveDirective, @Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		SourceList list = this.governing[effectiveDirective.ordinal()];
+		if (list == null) {
+			return true;
+		}
+		return source != null && list.matches(source, origin);
+	}
+
+	// See Policy.doesElementMatchSourceListForTypeAndSource
+	private boolean doesElementMatchSourceListForTypeAndSource(Policy.InlineType type, @Nullable String nonce, @Nullable String source, TriState parserInserted) {
+		SourceList list = this.governing[type.effectiveDirective.ordinal()];
+		if (list == null) {
+			return true;
+		}
+		boolean isScript = type == Policy.InlineType.Script || type == Policy.InlineType.ScriptAttribute || type == Policy.InlineType.Navigation;
+		boolean allowAllInline = list.nonces.isEmpty() && list.hashes.isEmpty() && !(isScript && list.strictDynamic) && list.unsafeInline;
+		if (allowAllInline) {
+			return true;
+		}
+		if (nonce != null && list.matchesNonce(nonce)) {
+			return true;
+		}
+		if (source != null && !list.hashes.isEmpty() && (type == Policy.InlineType.Script || type == Policy.InlineType.Style || list.unsafeHashes)) {
+			if (list.hashDigests.matches(source, this.digestCache)) {
+				return true;
+			}
+		}
+		return type == Policy.InlineType.Script && list.strictDynamic && !parserInserted.orElse(true);
+	}
+
+	// The parts of a HostSourceDirective (or SourceExpressionDirective) which matter for querying
+	private static final class SourceList {
+		final boolean star;
+		final boolean self;
+		final boolean unsafeInline;
+		final boolean strictDynamic;
+		final boolean unsafeHashes;
+		final boolean unsafeAllowRedirects;
+		final Set<String> nonces;
+		// For subresource integrity, which compares hashes as written
+		final Set<Hash> hashes;
+		// For inline sources, which are compared by digest
+		final HashIndex hashDigests;
+		final String[] schemes;
+		final HostIndex hosts;
+		// Whether the list is empty or 'none', as far as querying is concerned
+		final boolean allowsNothing;
+
+		SourceList(HostSourceDirective directive) {
+			this.star = directive.star();
+			this.self = directive.self();
+
+			List<Scheme> schemes = directive.getSchemes();
+			this.schemes = new String[schemes.size()];
+			for (int i = 0; i < this.schemes.length; ++i) {
+				this.schemes[i] = schemes.get(i).value;
+			}
+
+			this.hosts = directive.getHostIndex();
+
+			if (directive instanceof SourceExpressionDirective) {
+				SourceExpressionDirective sourceExpressions = (SourceExpressionDirective) directive;
+				this.unsafeInline = sourceExpressions.unsafeInline();
+				this.strictDynamic = sourceExpressions.strictDynamic();
+				this.unsafeHashes = sourceExpressions.unsafeHashes();
+				this.unsafeAllowRedirects = sourceExpressions.unsafeAllowRedirects();
+				this.nonces = new HashSet<>();
+				for (Nonce nonce : sourceExpressions.getNonces()) {
+					this.nonces.add(nonce.base64ValuePart);
+				}
+				this.hashes = new HashSet<>(sourceExpressions.getHashes());
+				this.hashDigests = sourceExpressions.getHashIndex();
+			} else {
+				this.unsafeInline = false;
+				this.strictDynamic = false;
+				this.unsafeHashes = false;
+				this.unsafeAllowRedirects = false;
+				this.nonces = Collections.emptySet();
+				this.hashes = Collections.emptySet();
+				this.hashDigests = HashIndex.of(Collections.emptyList());
+			}
+
+			this.allowsNothing = !this.star && !this.self && this.schemes.length == 0 && directive.getHosts().isEmpty()
+					&& !this.unsafeInline && !this.strictDynamic && this.nonces.isEmpty() && this.hashes.isEmpty();
+		}
+
+		boolean matchesNonce(String nonce) {
+			return nonce.length() > 0 && this.nonces.contains(nonce);
+		}
+
+		// Equivalent to Policy.doesUrlMatchSourceListInOrigin
+		boolean matches(URLWithScheme url, @Nullable URLWithScheme origin) {
+			return this.matches(url, OriginMatcher.of(origin));
+		}
+
+		boolean matches(URLWithScheme url, OriginMatcher origin) {
+			String urlScheme = url.scheme;
+			if (this.star && origin.starMatches(urlScheme)) {
+				return true;
+			}
+			for (String scheme : this.schemes) {
+				if (Policy.schemePartMatches(scheme, urlScheme)) {
+					return true;
+				}
+			}
+			// See Policy.doesUrlMatchSourceListInOrigin for the order
+			if (this.self && origin.selfMatches(url)) {
+				return true;
+			}
+			return this.hosts.matches(url, origin);
+		}
+	}
+}
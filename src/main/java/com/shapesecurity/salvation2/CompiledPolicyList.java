@@ -0,0 +1,31 @@
+package com.shapesecurity.salvation2;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+// An immutable snapshot of a PolicyList, created by PolicyList.compile: each policy is compiled once, and a query is allowed only if every policy allows it.
+// The policies are checked most restrictive first, by CompiledPolicy's estimate, so that a query which some policy denies usually stops at the first one checked. The order never changes an answer, only how soon it is found.
+// Instances are safe to share between threads.
+public final class CompiledPolicyList extends AbstractPolicyList {
+	private final CompiledPolicy[] policies;
+
+	CompiledPolicyList(List<Policy> policies) {
+		this.policies = new CompiledPolicy[policies.size()];
+		for (int i = 0; i < this.policies.length; ++i) {
+			this.policies[i] = policies.get(i).compile();
+		}
+		// The sort is stable, so ties stay in list order
+		Arrays.sort(this.policies, Comparator.comparingInt(CompiledPolicy::restrictiveness).reversed());
+	}
+
+	@Override
+	int policyCount() {
+		return this.policies.length;
+	}
+
+	@Override
+	QueryablePolicy policyAt(int index) {
+		return this.policies[index];
+	}
+}
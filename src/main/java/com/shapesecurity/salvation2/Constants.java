@@ -36,6 +36,7 @@ public class Constants {
 
 	private static final String queryFragmentPart = "(?:\\?[^#]*)?(?:#.*)?";
 
+	// Parsing uses HostSourceParser, which recognizes the same strings without backtracking; this is kept as the reference it is tested against
 	public static final Pattern hostSourcePattern = Pattern.compile(
 			"^(?<scheme>" + schemePart + "://)?(?<host>" + hostPart + ")(?<port>" + portPart + ")?(?<path>" + pathPart
 					+ ")?" + queryFragmentPart + "$");
@@ -0,0 +1,179 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.Directives.HostSourceDirective;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// A bounded, thread-safe memo of whether URLs match the source lists of a Policy, for servers which check URLs on the same few hosts over and over (every image from `https://*.twimg.com`, say).
+// Decisions are kept for each effective directive, keyed by the URL's scheme, host and port and by the origin; directives with a host-source which has a path are never memoized, since their decisions also depend on the URL's path.
+// Each effective directive's decisions are dropped when its governing directive changes or is replaced, and once there are more than `maxEntries` of them.
+// Install one with Policy.setDecisionMemo; a memo belongs to a single Policy.
+public final class DecisionMemo {
+	private static final FetchDirectiveKind[] KINDS = FetchDirectiveKind.values();
+
+	private final int maxEntries;
+	// Indexed by the effective directive's ordinal
+	private final AtomicReferenceArray<Table> tables = new AtomicReferenceArray<>(KINDS.length);
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	public DecisionMemo(int maxEntries) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be positive");
+		}
+		this.maxEntries = maxEntries;
+	}
+
+	// Policy.doesUrlMatchSourceListInOrigin(url, directive, origin), where `directive` governs `effectiveDirective` and has no host-sources with paths
+	boolean matches(@Nonnull FetchDirectiveKind effectiveDirective, @Nonnull HostSourceDirective directive, @Nonnull URLWithScheme url, @Nullable URLWithScheme origin) {
+		Table table = this.table(effectiveDirective, directive);
+		Key key = new Key(url, origin);
+		Boolean decision = table.decisions.get(key);
+		if (decision != null) {
+			this.hits.increment();
+			return decision;
+		}
+		this.misses.increment();
+		boolean matches = Policy.doesUrlMatchSourceListInOrigin(url, directive, origin);
+		if (table.decisions.size() >= this.maxEntries) {
+			// Emptying a full table is much cheaper than tracking recency in a concurrent map, and the hosts a page loads from are few enough that it rarely happens
+			this.evictions.add(table.decisions.size());
+			table.decisions.clear();
+		}
+		table.decisions.put(key, matches);
+		return matches;
+	}
+
+	private Table table(FetchDirectiveKind effectiveDirective, HostSourceDirective directive) {
+		int index = effectiveDirective.ordinal();
+		int version = directive.version();
+		Table table = this.tables.get(index);
+		if (table != null && table.directive == directive && table.version == version) {
+			return table;
+		}
+		if (table != null) {
+			this.invalidations.increment();
+		}
+		// Two threads may both replace a stale table; either may end up kept, and both are correct
+		table = new Table(directive, version);
+		this.tables.set(index, table);
+		return table;
+	}
+
+	public long hitCount() {
+		return this.hits.sum();
+	}
+
+	public long missCount() {
+		return this.misses.sum();
+	}
+
+	// The fraction of lookups which found their decision already memoized
+	public double hitRate() {
+		long hits = this.hits.sum();
+		long lookups = hits + this.misses.sum();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	// Decisions dropped because their table was full
+	public long evictionCount() {
+		return this.evictions.sum();
+	}
+
+	// Tables dropped because the directive they were for changed or stopped governing their effective directive
+	public long invalidationCount() {
+		return this.invalidations.sum();
+	}
+
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < this.tables.length(); ++i) {
+			Table table = this.tables.get(i);
+			if (table != null) {
+				size += table.decisions.size();
+			}
+		}
+		return size;
+	}
+
+	public void clear() {
+		for (int i = 0; i < this.tables.length(); ++i) {
+			this.tables.set(i, null);
+		}
+	}
+
+	// The decisions for one effective directive while it is governed by `directive` at `version`
+	private static final class Table {
+		final HostSourceDirective directive;
+		final int version;
+		final ConcurrentHashMap<Key, Boolean> decisions = new ConcurrentHashMap<>();
+
+		Table(HostSourceDirective directive, int version) {
+			this.directive = directive;
+			this.version = version;
+		}
+	}
+
+	private static final class Key {
+		private final String scheme;
+		@Nullable
+		private final String host;
+		@Nullable
+		private final Integer port;
+		@Nullable
+		private final String originScheme;
+		@Nullable
+		private final String originHost;
+		@Nullable
+		private final Integer originPort;
+		private final int hash;
+
+		Key(URLWithScheme url, @Nullable URLWithScheme origin) {
+			this.scheme = url.scheme;
+			this.host = url.host;
+			this.port = url.port;
+			this.originScheme = origin == null ? null : origin.scheme;
+			this.originHost = origin == null ? null : origin.host;
+			this.originPort = origin == null ? null : origin.port;
+			// As Objects.hash, without the varargs array
+			int hash = this.scheme.hashCode();
+			hash = 31 * hash + Objects.hashCode(this.host);
+			hash = 31 * hash + Objects.hashCode(this.port);
+			hash = 31 * hash + Objects.hashCode(this.originScheme);
+			hash = 31 * hash + Objects.hashCode(this.originHost);
+			this.hash = 31 * hash + Objects.hashCode(this.originPort);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (this == other) {
+				return true;
+			}
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) other;
+			return this.hash == key.hash
+					&& this.scheme.equals(key.scheme)
+					&& Objects.equals(this.host, key.host)
+					&& Objects.equals(this.port, key.port)
+					&& Objects.equals(this.originScheme, key.originScheme)
+					&& Objects.equals(this.originHost, key.originHost)
+					&& Objects.equals(this.originPort, key.originPort);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.Values.Hash;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// A bounded, thread-safe cache of the digests of inline sources, for servers which check the same inline scripts and styles over and over.
+// Entries are keyed by the source text and evicted least-recently-used first once there are more than `maxEntries` of them.
+// Each digest is only computed the first time an algorithm is asked for, since most policies only use one.
+// Lookups hash the source (which String caches, so reusing the same String instance is cheapest) and compare it by length before content; sources longer than `maxSourceLength` are never cached.
+// Install one with Policy.setDigestCache; unlike a DecisionMemo, one cache can be shared by any number of policies, since digests do not depend on the policy.
+public final class DigestCache {
+	public static final int DEFAULT_MAX_SOURCE_LENGTH = 64 * 1024;
+
+	private final int maxEntries;
+	private final int maxSourceLength;
+	private final LinkedHashMap<String, Entry> entries;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long uncacheable = 0;
+
+	public DigestCache(int maxEntries) {
+		this(maxEntries, DEFAULT_MAX_SOURCE_LENGTH);
+	}
+
+	public DigestCache(int maxEntries, int maxSourceLength) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be positive");
+		}
+		if (maxSourceLength < 0) {
+			throw new IllegalArgumentException("maxSourceLength must not be negative");
+		}
+		this.maxEntries = maxEntries;
+		this.maxSourceLength = maxSourceLength;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				if (this.size() > DigestCache.this.maxEntries) {
+					++DigestCache.this.evictions;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	// The digest of the UTF-8 encoding of `source`. The array is a copy.
+	@Nonnull
+	public byte[] digest(@Nonnull Hash.Algorithm algorithm, @Nonnull String source) {
+		return this.sharedDigest(algorithm, source).clone();
+	}
+
+	// As `digest`, but the array may be shared, so it must not be modified
+	@Nonnull
+	byte[] sharedDigest(@Nonnull Hash.Algorithm algorithm, @Nonnull String source) {
+		if (source.length() > this.maxSourceLength) {
+			synchronized (this) {
+				++this.uncacheable;
+			}
+			return algorithm.digest(source.getBytes(StandardCharsets.UTF_8));
+		}
+		Entry entry;
+		synchronized (this) {
+			entry = this.entries.get(source);
+			if (entry == null) {
+				entry = new Entry();
+				this.entries.put(source, entry);
+			}
+			byte[] digest = entry.digests.get(algorithm.ordinal());
+			if (digest != null) {
+				++this.hits;
+				return digest;
+			}
+			++this.misses;
+		}
+		// Hashing happens outside the lock, so two threads may both hash the same source; they get the same answer
+		byte[] digest = algorithm.digest(source.getBytes(StandardCharsets.UTF_8));
+		entry.digests.set(algorithm.ordinal(), digest);
+		return digest;
+	}
+
+	public synchronized long hitCount() {
+		return this.hits;
+	}
+
+	public synchronized long missCount() {
+		return this.misses;
+	}
+
+	// The fraction of lookups, not counting uncacheably long sources, which found their digest already computed
+	public synchronized double hitRate() {
+		long lookups = this.hits + this.misses;
+		return lookups == 0 ? 0 : (double) this.hits / lookups;
+	}
+
+	public synchronized long evictionCount() {
+		return this.evictions;
+	}
+
+	// Lookups for sources longer than `maxSourceLength`, which are hashed without touching the cache
+	public synchronized long uncacheableCount() {
+		return this.uncacheable;
+	}
+
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	public synchronized void clear() {
+		this.entries.clear();
+	}
+
+	private static final class Entry {
+		// Indexed by Hash.Algorithm ordinal
+		final AtomicReferenceArray<byte[]> digests = new AtomicReferenceArray<>(Hash.Algorithm.values().length);
+	}
+}
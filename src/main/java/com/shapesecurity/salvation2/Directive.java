@@ -1,16 +1,24 @@
 package com.shapesecurity.salvation2;
 
+import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Locale;
 import java.util.function.Predicate;
 import java.util.regex.Pattern;
 
 
 public class Directive {
 	public static Predicate<String> IS_DIRECTIVE_NAME = Pattern.compile("^[A-Za-z0-9\\-]+$").asPredicate();
-	public static Predicate<String> containsNonDirectiveCharacter = Pattern.compile("[" + Constants.WHITESPACE_CHARS + ",;]").asPredicate();
+	public static Predicate<String> containsNonDirectiveCharacter = value -> {
+		for (int i = 0; i < value.length(); ++i) {
+			char c = value.charAt(i);
+			if (c == ',' || c == ';' || Utils.isAsciiWhitespace(c)) {
+				return true;
+			}
+		}
+		return false;
+	};
 	protected List<String> values;
 
 	protected static DirectiveErrorConsumer wrapManipulationErrorConsumer(ManipulationErrorConsumer errors) {
@@ -54,11 +62,11 @@ public class Directive {
 	}
 
 	protected void removeValueIgnoreCase(String value) {
-		String lowcaseValue = value.toLowerCase(Locale.ENGLISH);
 		// Could we use some fancy data structure to avoid the linear indexing here? Yes, probably. But in practice these are short lists, and iterating them is not that expensive.
+		// Values are ASCII (addValue enforces it), as is every `value` this is called with, and for ASCII strings equalsIgnoreCase is the same as comparing lowercased copies, without making them.
 		ArrayList<String> copy = new ArrayList<>(this.values.size());
 		for (String existing : this.values) {
-			if (!existing.toLowerCase(Locale.ENGLISH).equals(lowcaseValue)) {
+			if (!existing.equalsIgnoreCase(value)) {
 				copy.add(existing);
 			}
 		}
@@ -70,7 +78,34 @@ public class Directive {
 	public interface DirectiveErrorConsumer {
 		void add(Policy.Severity severity, String message, int valueIndex); // index = -1 for errors not pertaining to a value
 
-		DirectiveErrorConsumer ignored = (severity, message, valueIndex) -> {};
+		// Parsing reports everything through this. Override it to get diagnostics without their messages being built; see ErrorKind.
+		default void add(ErrorKind kind, @Nullable Object detail, int valueIndex) {
+			if (!this.ignores(kind.severity)) {
+				this.add(kind.severity, kind.message(detail), valueIndex);
+			}
+		}
+
+		// Diagnostics of severities for which this returns true may not be reported at all, and parsing skips any work which is only needed to find them
+		default boolean ignores(Policy.Severity severity) {
+			return false;
+		}
+
+		DirectiveErrorConsumer ignored = new DirectiveErrorConsumer() {
+			@Override
+			public void add(Policy.Severity severity, String message, int valueIndex) {
+				// ignored
+			}
+
+			@Override
+			public void add(ErrorKind kind, @Nullable Object detail, int valueIndex) {
+				// ignored
+			}
+
+			@Override
+			public boolean ignores(Policy.Severity severity) {
+				return true;
+			}
+		};
 	}
 
 	@FunctionalInterface
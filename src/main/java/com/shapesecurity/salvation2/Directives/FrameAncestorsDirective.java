@@ -1,6 +1,6 @@
 package com.shapesecurity.salvation2.Directives;
 
-import com.shapesecurity.salvation2.Policy;
+import com.shapesecurity.salvation2.ErrorKind;
 
 import java.util.List;
 import java.util.Locale;
@@ -12,15 +12,15 @@ public class FrameAncestorsDirective extends HostSourceDirective {
 		int index = 0;
 		for (String token : values) {
 			String lowcaseToken = token.toLowerCase(Locale.ENGLISH);
-			this._addHostOrSchemeDuringConstruction(token, lowcaseToken, "ancestor-source", index, errors);
+			this._addHostOrSchemeDuringConstruction(token, lowcaseToken, ErrorKind.DuplicateAncestorSource, ErrorKind.UnrecognizedAncestorSource, index, errors);
 		}
 
 		if (this.none != null && values.size() > 1) {
-			errors.add(Policy.Severity.Error, "'none' must not be combined with any other ancestor-source", index);
+			errors.add(ErrorKind.AncestorSourceNoneCombined, null, index);
 		}
 
 		if (values.isEmpty()) {
-			errors.add(Policy.Severity.Error, "Ancestor-source lists cannot be empty (use 'none' instead)", -1);
+			errors.add(ErrorKind.EmptyAncestorSourceList, null, -1);
 		}
 	}
 }
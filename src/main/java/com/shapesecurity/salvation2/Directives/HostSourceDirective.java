@@ -2,14 +2,22 @@ package com.shapesecurity.salvation2.Directives;
 
 import com.shapesecurity.salvation2.Constants;
 import com.shapesecurity.salvation2.Directive;
+import com.shapesecurity.salvation2.ErrorKind;
+import com.shapesecurity.salvation2.HostIndex;
 import com.shapesecurity.salvation2.Policy;
 import com.shapesecurity.salvation2.Values.Host;
 import com.shapesecurity.salvation2.Values.Scheme;
 
+import javax.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.function.Function;
 
 public abstract class HostSourceDirective extends Directive {
@@ -17,17 +25,31 @@ public abstract class HostSourceDirective extends Directive {
 	private static final String SELF_SRC = "'self'";
 	protected List<Scheme> schemes = new ArrayList<>();
 	protected List<Host> hosts = new ArrayList<>();
+	// The contents of `schemes` and `hosts`, kept in step with them, so that checking for duplicates does not scan the lists
+	private final Set<Scheme> schemeSet = new HashSet<>();
+	private final Set<Host> hostSet = new HashSet<>();
+	// What each value which is a scheme-source or host-source (or, for SourceExpressionDirective, a nonce or hash) parsed to, so that removing sources does not parse every value again.
+	// Most directives are never edited, so this is built the first time sources are removed, and kept up to date from then on. Values missing from here are parsed when needed, so it only has to be complete enough to be fast. Entries go when their values do.
+	private Map<String, Object> parsedValues = null;
 	protected boolean star = false;
 	protected boolean self = false;
 
 	protected String none = null;
 
+	// Built the first time it is needed, and discarded whenever `hosts` changes. Indexes are immutable, so racing to build one is harmless.
+	private volatile HostIndex hostIndex = null;
+
+	// Incremented by every change, through addValue and the removeValue methods which every mutator goes through, so that things derived from this directive, like DecisionMemo's tables, can tell when they are stale.
+	// `++version` on a volatile is not atomic; this is only safe because, like the rest of Policy, directives are never modified by more than one thread at once. The volatile only makes the new version visible to threads which query.
+	private volatile int version = 0;
+
 	protected HostSourceDirective(List<String> values) {
 		super(values);
 	}
 
 	@Override
 	protected void addValue(String value) {
+		this.changed();
 		if (this.none != null) {
 			super.removeValueIgnoreCase(NONE_SRC); // super so as to not immediately add it back
 			this.none = null;
@@ -37,18 +59,38 @@ public abstract class HostSourceDirective extends Directive {
 
 	@Override
 	protected void removeValueIgnoreCase(String value) {
+		this.changed();
 		super.removeValueIgnoreCase(value);
+		if (this.parsedValues != null) {
+			this.parsedValues.keySet().removeIf(existing -> existing.equalsIgnoreCase(value));
+		}
 		if (this.values.isEmpty()) {
 			this.values.add(NONE_SRC);
 			this.none = NONE_SRC;
 		}
 	}
 
-	protected <T> void removeValuesMatching(T value, Function<String, Optional<T>> parser) {
+	// Removes every value which parses to one of `sources`, in one pass
+	protected <T> void removeValuesParsingTo(Set<T> sources, Function<String, Optional<T>> parser) {
+		this.changed();
+		if (this.parsedValues == null) {
+			this.parsedValues = new HashMap<>();
+			for (String existing : this.values) {
+				Object parsed = this.parseSource(existing);
+				if (parsed != null) {
+					this.parsedValues.put(existing, parsed);
+				}
+			}
+		}
 		ArrayList<String> copy = new ArrayList<>(this.values.size());
 		for (String existing : this.values) {
-			Optional<T> parsed = parser.apply(existing);
-			if (!parsed.isPresent() || !parsed.get().equals(value)) {
+			Object parsed = this.parsedValues.get(existing);
+			if (parsed == null) {
+				parsed = parser.apply(existing).orElse(null);
+			}
+			if (parsed != null && sources.contains(parsed)) {
+				this.parsedValues.remove(existing);
+			} else {
 				copy.add(existing);
 			}
 		}
@@ -59,7 +101,30 @@ public abstract class HostSourceDirective extends Directive {
 		}
 	}
 
-	void _addHostOrSchemeDuringConstruction(String token, String lowcaseToken, String kind, int index, DirectiveErrorConsumer errors) {
+	// Removes `removed` from `sources`, which must be one of the lists of parsed sources, and the values for them, in one pass over each
+	protected <T> void removeSources(Set<T> removed, List<T> sources, Function<String, Optional<T>> parser) {
+		sources.removeIf(removed::contains);
+		this.removeValuesParsingTo(removed, parser);
+	}
+
+	// Records that `value` parses to `parsed`, for removeValuesParsingTo, if it has started keeping track
+	protected void rememberParsedValue(String value, Object parsed) {
+		if (this.parsedValues != null) {
+			this.parsedValues.put(value, parsed);
+		}
+	}
+
+	// What `value` is as a source, tried in the same order as during construction, or null if it is something else
+	@Nullable
+	protected Object parseSource(String value) {
+		Optional<Scheme> asScheme = Scheme.parseScheme(value);
+		if (asScheme.isPresent()) {
+			return asScheme.get();
+		}
+		return Host.parseHost(value).orElse(null);
+	}
+
+	void _addHostOrSchemeDuringConstruction(String token, String lowcaseToken, ErrorKind duplicateKind, ErrorKind unrecognizedKind, int index, DirectiveErrorConsumer errors) {
 		if (lowcaseToken.equals(NONE_SRC)) {
 			if (this.none == null) {
 				this.none = token;
@@ -69,56 +134,65 @@ public abstract class HostSourceDirective extends Directive {
 			if (!this.star) {
 				this.star = true;
 			} else {
-				errors.add(Policy.Severity.Warning, "Duplicate " + kind + " *", index);
+				errors.add(duplicateKind, lowcaseToken, index);
 			}
 		} else if (lowcaseToken.equals(SELF_SRC)) {
 			if (!this.self) {
 				this.self = true;
 			} else {
-				errors.add(Policy.Severity.Warning, "Duplicate " + kind + " 'self'", index);
+				errors.add(duplicateKind, lowcaseToken, index);
 			}
 		} else {
 			Optional<Scheme> asScheme = Scheme.parseScheme(token);
 			if (asScheme.isPresent()) {
 				this._addScheme(asScheme.get(), index, errors);
 			} else {
-				if (Constants.unquotedKeywordPattern.matcher(token).find()) {
-					errors.add(Policy.Severity.Warning, "This host name is unusual, and likely meant to be a keyword that is missing the required quotes: \'" + token + "\'.", index);
+				if (!errors.ignores(Policy.Severity.Warning) && Constants.unquotedKeywordPattern.matcher(token).find()) {
+					errors.add(ErrorKind.KeywordMissingQuotes, token, index);
 				}
 
 				Optional<Host> asHost = Host.parseHost(token);
 				if (asHost.isPresent()) {
 					this._addHostSource(asHost.get(), index, errors);
 				} else {
-					errors.add(Policy.Severity.Error, "Unrecognized " + kind + " " + token, index);
+					errors.add(unrecognizedKind, token, index);
 				}
 			}
 		}
 	}
 
 	private boolean _addScheme(Scheme scheme, int index, DirectiveErrorConsumer errors) {
-		if (this.schemes.contains(scheme)) {
-			errors.add(Policy.Severity.Warning, "Duplicate scheme " + scheme, index);
+		if (!this.schemeSet.add(scheme)) {
+			errors.add(ErrorKind.DuplicateScheme, scheme, index);
 			return false;
 		} else {
-			// TODO check if this subsumes or is subsumed by any existing scheme/host
-			// NB we add it even if it subsumes or is subsumed by existing things, since it's still valid and not a duplicate
+			// NB we add it even if it subsumes or is subsumed by existing things, since it's still valid and not a duplicate; PolicyOptimizer is what drops subsumed sources
 			this.schemes.add(scheme);
 			return true;
 		}
 	}
 
 	private boolean _addHostSource(Host source, int index, DirectiveErrorConsumer errors) {
-		if (this.hosts.contains(source)) {
-			errors.add(Policy.Severity.Warning, "Duplicate host " + source.toString(), index);
+		if (!this.hostSet.add(source)) {
+			errors.add(ErrorKind.DuplicateHost, source, index);
 			return false;
 		} else {
-			// TODO check if this subsumes or is subsumed by any existing scheme/host
+			// As with schemes, subsumed hosts are kept
 			this.hosts.add(source);
 			return true;
 		}
 	}
 
+	// Changes whenever the directive does
+	public int version() {
+		return this.version;
+	}
+
+	private void changed() {
+		++this.version;
+		this.hostIndex = null;
+	}
+
 	public boolean star() {
 		return this.star;
 	}
@@ -157,24 +231,64 @@ public abstract class HostSourceDirective extends Directive {
 
 	public void addScheme(Scheme scheme, ManipulationErrorConsumer errors) {
 		if (this._addScheme(scheme, -1, wrapManipulationErrorConsumer(errors))) {
-			this.addValue(scheme.toString());
+			String value = scheme.toString();
+			this.addValue(value);
+			this.rememberParsedValue(value, scheme);
+		}
+	}
+
+	public void addSchemes(Collection<Scheme> schemes, ManipulationErrorConsumer errors) {
+		for (Scheme scheme : schemes) {
+			this.addScheme(scheme, errors);
 		}
 	}
 
 	public boolean removeScheme(Scheme scheme) {
-		if (!this.schemes.contains(scheme)) {
+		return this.removeSchemes(Collections.singleton(scheme));
+	}
+
+	// Removes each of `schemes` which is present, rewriting the values once however many there are. Returns whether any were present.
+	public boolean removeSchemes(Collection<Scheme> schemes) {
+		Set<Scheme> removed = new HashSet<>();
+		for (Scheme scheme : schemes) {
+			if (this.schemeSet.remove(scheme)) {
+				removed.add(scheme);
+			}
+		}
+		if (removed.isEmpty()) {
 			return false;
 		}
-		this.schemes.remove(scheme);
-		this.removeValueIgnoreCase(scheme.toString());
+		this.removeSources(removed, this.schemes, Scheme::parseScheme);
 		return true;
 	}
 
+	// Removes every scheme-source which is not one of `schemes`, rewriting the values once. Returns whether any were removed.
+	public boolean retainSchemes(Collection<Scheme> schemes) {
+		Set<Scheme> kept = new HashSet<>(schemes);
+		Set<Scheme> removed = new HashSet<>();
+		for (Scheme scheme : this.schemes) {
+			if (!kept.contains(scheme)) {
+				removed.add(scheme);
+			}
+		}
+		return this.removeSchemes(removed);
+	}
+
 
 	public List<Host> getHosts() {
 		return Collections.unmodifiableList(this.hosts);
 	}
 
+	// The hosts, arranged for matching URLs against them
+	public HostIndex getHostIndex() {
+		HostIndex index = this.hostIndex;
+		if (index == null) {
+			index = HostIndex.of(this.hosts);
+			this.hostIndex = index;
+		}
+		return index;
+	}
+
 	public void addHost(Host host, ManipulationErrorConsumer errors) {
 		if (host.equals(Host.STAR)) {
 			if (this.star) {
@@ -186,24 +300,54 @@ public abstract class HostSourceDirective extends Directive {
 			return;
 		}
 		if (this._addHostSource(host, -1, wrapManipulationErrorConsumer(errors))) {
-			this.addValue(host.toString());
+			String value = host.toString();
+			this.addValue(value);
+			this.rememberParsedValue(value, host);
+		}
+	}
+
+	public void addHosts(Collection<Host> hosts, ManipulationErrorConsumer errors) {
+		for (Host host : hosts) {
+			this.addHost(host, errors);
 		}
 	}
 
 	public boolean removeHost(Host host) {
-		if (host.equals(Host.STAR)) {
-			if (this.star) {
-				this.setStar(false);
-				return true;
+		return this.removeHosts(Collections.singleton(host));
+	}
+
+	// Removes each of `hosts` which is present, rewriting the values once however many there are. Returns whether any were present.
+	public boolean removeHosts(Collection<Host> hosts) {
+		boolean removedStar = false;
+		Set<Host> removed = new HashSet<>();
+		for (Host host : hosts) {
+			if (host.equals(Host.STAR)) {
+				removedStar |= this.star;
+			} else if (this.hostSet.remove(host)) {
+				removed.add(host);
 			}
-			return false;
 		}
-		if (!this.hosts.contains(host)) {
-			return false;
+		if (removedStar) {
+			this.setStar(false);
+		}
+		if (removed.isEmpty()) {
+			return removedStar;
 		}
-		this.hosts.remove(host);
 		// Removing hosts is considerably more annoying than removing anything else, because they can have many representations.
-		removeValuesMatching(host, Host::parseHost);
+		this.removeSources(removed, this.hosts, Host::parseHost);
 		return true;
 	}
+
+	// Removes every host-source which is not one of `hosts`, rewriting the values once. `*` is not one of getHosts(), so it is left alone, as are 'self' and scheme-sources.
+	// Returns whether any were removed.
+	public boolean retainHosts(Collection<Host> hosts) {
+		Set<Host> kept = new HashSet<>(hosts);
+		Set<Host> removed = new HashSet<>();
+		for (Host host : this.hosts) {
+			if (!kept.contains(host)) {
+				removed.add(host);
+			}
+		}
+		return this.removeHosts(removed);
+	}
 }
@@ -1,7 +1,7 @@
 package com.shapesecurity.salvation2.Directives;
 
 import com.shapesecurity.salvation2.Directive;
-import com.shapesecurity.salvation2.Policy;
+import com.shapesecurity.salvation2.ErrorKind;
 import com.shapesecurity.salvation2.Values.MediaType;
 
 import java.util.ArrayList;
@@ -21,7 +21,7 @@ public class PluginTypesDirective extends Directive {
 			if (type.isPresent()) {
 				this._addMediaType(type.get(), index, errors);
 			} else {
-				errors.add(Policy.Severity.Error, "Expecting media-type but found \"" + token + "\"", index);
+				errors.add(ErrorKind.InvalidMediaType, token, index);
 			}
 		}
 
@@ -30,11 +30,11 @@ public class PluginTypesDirective extends Directive {
 
 	private boolean _addMediaType(MediaType type, int index, DirectiveErrorConsumer errors) {
 		if (this.mediaTypes.contains(type)) {
-			errors.add(Policy.Severity.Warning, "Duplicate media type " + type.toString(), index);
+			errors.add(ErrorKind.DuplicateMediaType, type, index);
 			return false;
 		} else {
 			if (type.type.equals("*") || type.subtype.equals("*")) {
-				errors.add(Policy.Severity.Warning, "Media types can only be matched literally. Make sure using `*` is not an oversight.", index);
+				errors.add(ErrorKind.WildcardMediaType, null, index);
 			}
 			this.mediaTypes.add(type);
 			return true;
@@ -1,7 +1,7 @@
 package com.shapesecurity.salvation2.Directives;
 
 import com.shapesecurity.salvation2.Directive;
-import com.shapesecurity.salvation2.Policy;
+import com.shapesecurity.salvation2.ErrorKind;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -19,7 +19,7 @@ public class ReportUriDirective extends Directive {
 		}
 
 		if (this.values.isEmpty()) {
-			errors.add(Policy.Severity.Error, "The report-uri value requires at least one value", -1);
+			errors.add(ErrorKind.EmptyReportUri, null, -1);
 		}
 	}
 
@@ -28,7 +28,7 @@ public class ReportUriDirective extends Directive {
 		// It's awful, though: 'urn:example:animal:ferret:nose' is a valid URI
 		if (this.uris.contains(uri)) {
 			// NB: we don't prevent you from having duplicates, because that has actual semantic meaning - it will get each report twice (per spec)
-			errors.add(Policy.Severity.Info, "Duplicate report-to URI; are you sure you intend to get multiple copies of each report?", index);
+			errors.add(ErrorKind.DuplicateReportUri, null, index);
 		}
 		this.uris.add(uri);
 	}
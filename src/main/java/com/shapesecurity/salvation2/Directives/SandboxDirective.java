@@ -1,7 +1,7 @@
 package com.shapesecurity.salvation2.Directives;
 
 import com.shapesecurity.salvation2.Directive;
-import com.shapesecurity.salvation2.Policy;
+import com.shapesecurity.salvation2.ErrorKind;
 
 import java.util.List;
 import java.util.Locale;
@@ -34,98 +34,98 @@ public class SandboxDirective extends Directive {
 					if (!this.allowDownloads) {
 						this.allowDownloads = true;
 					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-downloads", index);
+						errors.add(ErrorKind.DuplicateSandboxKeyword, lowcaseToken, index);
 					}
 					break;
 				case "allow-forms":
 					if (!this.allowForms) {
 						this.allowForms = true;
 					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-forms", index);
+						errors.add(ErrorKind.DuplicateSandboxKeyword, lowcaseToken, index);
 					}
 					break;
 				case "allow-modals":
 					if (!this.allowModals) {
 						this.allowModals = true;
 					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-modals", index);
+						errors.add(ErrorKind.DuplicateSandboxKeyword, lowcaseToken, index);
 					}
 					break;
 				case "allow-orientation-lock":
 					if (!this.allowOrientationLock) {
 						this.allowOrientationLock = true;
 					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-orientation-lock", index);
+						errors.add(ErrorKind.DuplicateSandboxKeyword, lowcaseToken, index);
 					}
 					break;
 				case "allow-pointer-lock":
 					if (!this.allowPointerLock) {
 						this.allowPointerLock = true;
 					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-pointer-lock", index);
+						errors.add(ErrorKind.DuplicateSandboxKeyword, lowcaseToken, index);
 					}
 					break;
 				case "allow-popups":
 					if (!this.allowPopups) {
 						this.allowPopups = true;
 					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-popups", index);
+						errors.add(ErrorKind.DuplicateSandboxKeyword, lowcaseToken, index);
 					}
 					break;
 				case "allow-popups-to-escape-sandbox":
 					if (!this.allowPopupsToEscapeSandbox) {
 						this.allowPopupsToEscapeSandbox = true;
 					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-popups-to-escape-sandbox", index);
+						errors.add(ErrorKind.DuplicateSandboxKeyword, lowcaseToken, index);
 					}
 					break;
 				case "allow-presentation":
 					if (!this.allowPresentation) {
 						this.allowPresentation = true;
 					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-presentation", index);
+						errors.add(ErrorKind.DuplicateSandboxKeyword, lowcaseToken, index);
 					}
 					break;
 				case "allow-same-origin":
 					if (!this.allowSameOrigin) {
 						this.allowSameOrigin = true;
 					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-same-origin", index);
+						errors.add(ErrorKind.DuplicateSandboxKeyword, lowcaseToken, index);
 					}
 					break;
 				case "allow-scripts":
 					if (!this.allowScripts) {
 						this.allowScripts = true;
 					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-scripts", index);
+						errors.add(ErrorKind.DuplicateSandboxKeyword, lowcaseToken, index);
 					}
 					break;
 				case "allow-storage-access-by-user-activation":
 					if (!this.allowStorageAccessByUserActivation) {
 						this.allowStorageAccessByUserActivation = true;
 					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-storage-access-by-user-activation", index);
+						errors.add(ErrorKind.DuplicateSandboxKeyword, lowcaseToken, index);
 					}
 					break;
 				case "allow-top-navigation":
 					if (!this.allowTopNavigation) {
 						this.allowTopNavigation = true;
 					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-top-navigation", index);
+						errors.add(ErrorKind.DuplicateSandboxKeyword, lowcaseToken, index);
 					}
 					break;
 				case "allow-top-navigation-by-user-activation":
 					if (!this.allowTopNavigationByUserActivation) {
 						this.allowTopNavigationByUserActivation = true;
 					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate sandbox keyword allow-top-navigation-by-user-activation", index);
+						errors.add(ErrorKind.DuplicateSandboxKeyword, lowcaseToken, index);
 					}
 					break;
 				default:
 					if (token.startsWith("'")) {
-						errors.add(Policy.Severity.Error, "Unrecognized sandbox keyword " + token + " - note that sandbox keywords do not have \"'\"s", index);
+						errors.add(ErrorKind.QuotedSandboxKeyword, token, index);
 					} else {
-						errors.add(Policy.Severity.Error, "Unrecognized sandbox keyword " + token, index);
+						errors.add(ErrorKind.UnrecognizedSandboxKeyword, token, index);
 					}
 			}
 			++index;
@@ -1,14 +1,20 @@
 package com.shapesecurity.salvation2.Directives;
 
+import com.shapesecurity.salvation2.ErrorKind;
+import com.shapesecurity.salvation2.HashIndex;
 import com.shapesecurity.salvation2.Policy;
 import com.shapesecurity.salvation2.Values.Hash;
 import com.shapesecurity.salvation2.Values.Nonce;
 
+import javax.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Optional;
+import java.util.Set;
 
 public class SourceExpressionDirective extends HostSourceDirective {
 	private static final String REPORT_SAMPLE = "'report-sample'";
@@ -24,9 +30,15 @@ public class SourceExpressionDirective extends HostSourceDirective {
 	private boolean reportSample = false;
 	private boolean unsafeAllowRedirects = false;
 
-	// In practice, these are probably small enough for Lists to be faster than LinkedHashSets
 	private List<Nonce> nonces = new ArrayList<>();
 	private List<Hash> hashes = new ArrayList<>();
+	// The value of each of `nonces`, kept in step with it, so that checking a nonce is one lookup. Nonces are equal exactly when their values are, so this also finds duplicates.
+	private final Set<String> nonceValues = new HashSet<>();
+	// The contents of `hashes`, kept in step with it
+	private final Set<Hash> hashSet = new HashSet<>();
+
+	// Built the first time it is needed, and discarded whenever `hashes` changes, like HostSourceDirective's HostIndex
+	private volatile HashIndex hashIndex = null;
 
 
 	public SourceExpressionDirective(List<String> values, DirectiveErrorConsumer errors) {
@@ -41,49 +53,49 @@ public class SourceExpressionDirective extends HostSourceDirective {
 					if (!this.unsafeInline) {
 						this.unsafeInline = true;
 					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate source-expression 'unsafe-inline'", index);
+						errors.add(ErrorKind.DuplicateSourceExpression, lowcaseToken, index);
 					}
 					break;
 				case UNSAFE_EVAL:
 					if (!this.unsafeEval) {
 						this.unsafeEval = true;
 					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate source-expression 'unsafe-eval'", index);
+						errors.add(ErrorKind.DuplicateSourceExpression, lowcaseToken, index);
 					}
 					break;
 				case STRICT_DYNAMIC:
 					if (!this.strictDynamic) {
 						this.strictDynamic = true;
 					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate source-expression 'strict-dynamic'", index);
+						errors.add(ErrorKind.DuplicateSourceExpression, lowcaseToken, index);
 					}
 					break;
 				case UNSAFE_HASHES:
 					if (!this.unsafeHashes) {
 						this.unsafeHashes = true;
 					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate source-expression 'unsafe-hashes'", index);
+						errors.add(ErrorKind.DuplicateSourceExpression, lowcaseToken, index);
 					}
 					break;
 				case REPORT_SAMPLE:
 					if (!this.reportSample) {
 						this.reportSample = true;
 					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate source-expression 'report-sample'", index);
+						errors.add(ErrorKind.DuplicateSourceExpression, lowcaseToken, index);
 					}
 					break;
 				case UNSAFE_ALLOW_REDIRECTS:
 					if (!this.unsafeAllowRedirects) {
 						this.unsafeAllowRedirects = true;
 					} else {
-						errors.add(Policy.Severity.Warning, "Duplicate source-expression 'unsafe-allow-redirects'", index);
+						errors.add(ErrorKind.DuplicateSourceExpression, lowcaseToken, index);
 					}
 					break;
 				case "'unsafe-redirect'":
-					errors.add(Policy.Severity.Error, "'unsafe-redirect' has been removed from CSP as of version 2.0", index);
+					errors.add(ErrorKind.UnsafeRedirectRemoved, null, index);
 					break;
 				case "'unsafe-hashed-attributes'":
-					errors.add(Policy.Severity.Error, "'unsafe-hashed-attributes' was renamed to 'unsafe-hashes' in June 2018", index);
+					errors.add(ErrorKind.UnsafeHashedAttributesRenamed, null, index);
 					break;
 				default:
 					if (lowcaseToken.startsWith("'nonce-")) {
@@ -92,7 +104,7 @@ public class SourceExpressionDirective extends HostSourceDirective {
 						if (nonce.isPresent()) {
 							this._addNonce(nonce.get(), index, errors);
 						} else {
-							errors.add(Policy.Severity.Error, "Unrecognised nonce " + token, index);
+							errors.add(ErrorKind.UnrecognizedNonce, token, index);
 						}
 						break;
 					} else if (lowcaseToken.startsWith("'sha")) {
@@ -101,28 +113,41 @@ public class SourceExpressionDirective extends HostSourceDirective {
 						if (hash.isPresent()) {
 							this._addHash(hash.get(), index, errors);
 						} else {
-							errors.add(Policy.Severity.Error, "'sha...' source-expression uses an unrecognized algorithm or does not match the base64-value grammar (or is missing its trailing \"'\")", index);
+							errors.add(ErrorKind.UnrecognizedHash, token, index);
 						}
 						break;
 					} else {
-						this._addHostOrSchemeDuringConstruction(token, lowcaseToken, "source-expression", index, errors);
+						this._addHostOrSchemeDuringConstruction(token, lowcaseToken, ErrorKind.DuplicateSourceExpression, ErrorKind.UnrecognizedSourceExpression, index, errors);
 					}
 			}
 			++index;
 		}
 
 		if (this.none != null && values.size() > 1) {
-			errors.add(Policy.Severity.Error, "'none' must not be combined with any other source-expression", 1);
+			errors.add(ErrorKind.SourceExpressionNoneCombined, null, 1);
 		}
 
 		if (values.isEmpty()) {
-			errors.add(Policy.Severity.Error, "Source-expression lists cannot be empty (use 'none' instead)", -1);
+			errors.add(ErrorKind.EmptySourceExpressionList, null, -1);
+		}
+	}
+
+	@Override
+	@Nullable
+	protected Object parseSource(String value) {
+		String lowcaseValue = value.toLowerCase(Locale.ENGLISH);
+		if (lowcaseValue.startsWith("'nonce-")) {
+			return Nonce.parseNonce(value).orElse(null);
+		}
+		if (lowcaseValue.startsWith("'sha")) {
+			return Hash.parseHash(value).orElse(null);
 		}
+		return super.parseSource(value);
 	}
 
 	private boolean _addNonce(Nonce nonce, int index, DirectiveErrorConsumer errors) {
-		if (this.nonces.contains(nonce)) {
-			errors.add(Policy.Severity.Warning, "Duplicate nonce " + nonce.toString(), index);
+		if (!this.nonceValues.add(nonce.base64ValuePart)) {
+			errors.add(ErrorKind.DuplicateNonce, nonce, index);
 			return false;
 		} else {
 			this.nonces.add(nonce);
@@ -131,19 +156,22 @@ public class SourceExpressionDirective extends HostSourceDirective {
 	}
 
 	private boolean _addHash(Hash hash, int index, DirectiveErrorConsumer errors) {
-		if (this.hashes.contains(hash)) {
-			errors.add(Policy.Severity.Warning, "Duplicate hash " + hash.toString(), index);
+		if (!this.hashSet.add(hash)) {
+			errors.add(ErrorKind.DuplicateHash, hash, index);
 			return false;
 		} else {
-			if (hash.base64ValuePart.length() != hash.algorithm.length) {
-				errors.add(Policy.Severity.Warning, "Wrong length for " + hash.algorithm.toString() + ": expected " + hash.algorithm.length + ", got " + hash.base64ValuePart.length(), index);
-			}
-
-			if (hash.base64ValuePart.contains("_") || hash.base64ValuePart.contains("-")) {
-				errors.add(Policy.Severity.Warning, "'_' and '-' in hashes can never match actual elements", index);
+			if (!errors.ignores(Policy.Severity.Warning)) {
+				if (hash.base64ValuePart.length() != hash.algorithm.length) {
+					errors.add(ErrorKind.WrongHashLength, hash, index);
+				}
+
+				if (hash.base64ValuePart.contains("_") || hash.base64ValuePart.contains("-")) {
+					errors.add(ErrorKind.UrlSafeHashCharacters, null, index);
+				}
 			}
 
 			this.hashes.add(hash);
+			this.hashIndex = null;
 			return true;
 		}
 	}
@@ -263,39 +291,130 @@ public class SourceExpressionDirective extends HostSourceDirective {
 		return Collections.unmodifiableList(this.nonces);
 	}
 
+	// The same as !getNonces().isEmpty(), without the wrapper
+	public boolean hasNonces() {
+		return !this.nonces.isEmpty();
+	}
+
+	// Whether `nonce` is the value of one of the nonce-sources, i.e. what follows `'nonce-`
+	public boolean containsNonce(String nonce) {
+		return this.nonceValues.contains(nonce);
+	}
+
 	public void addNonce(Nonce nonce, ManipulationErrorConsumer errors) {
 		if (this._addNonce(nonce, -1, wrapManipulationErrorConsumer(errors))) {
-			this.addValue(nonce.toString());
+			String value = nonce.toString();
+			this.addValue(value);
+			this.rememberParsedValue(value, nonce);
+		}
+	}
+
+	public void addNonces(Collection<Nonce> nonces, ManipulationErrorConsumer errors) {
+		for (Nonce nonce : nonces) {
+			this.addNonce(nonce, errors);
 		}
 	}
 
 	public boolean removeNonce(Nonce nonce) {
-		if (!this.nonces.contains(nonce)) {
+		return this.removeNonces(Collections.singleton(nonce));
+	}
+
+	// Removes each of `nonces` which is present, rewriting the values once however many there are. Returns whether any were present.
+	public boolean removeNonces(Collection<Nonce> nonces) {
+		Set<Nonce> removed = new HashSet<>();
+		for (Nonce nonce : nonces) {
+			if (this.nonceValues.remove(nonce.base64ValuePart)) {
+				removed.add(nonce);
+			}
+		}
+		if (removed.isEmpty()) {
 			return false;
 		}
-		this.nonces.remove(nonce);
 		// we can't just "removeValue" or "removeValueIgnoreCase" because the `nonce-` part is case-insensitive but the remainder is case-sensitive
-		this.removeValuesMatching(nonce, Nonce::parseNonce);
+		this.removeSources(removed, this.nonces, Nonce::parseNonce);
 		return true;
 	}
 
+	// Removes every nonce-source which is not one of `nonces`, rewriting the values once. Returns whether any were removed.
+	public boolean retainNonces(Collection<Nonce> nonces) {
+		Set<Nonce> kept = new HashSet<>(nonces);
+		Set<Nonce> removed = new HashSet<>();
+		for (Nonce nonce : this.nonces) {
+			if (!kept.contains(nonce)) {
+				removed.add(nonce);
+			}
+		}
+		return this.removeNonces(removed);
+	}
+
 	public List<Hash> getHashes() {
 		return Collections.unmodifiableList(this.hashes);
 	}
 
+	// The same as !getHashes().isEmpty(), without the wrapper
+	public boolean hasHashes() {
+		return !this.hashes.isEmpty();
+	}
+
+	// The same as getHashes().contains(hash), without the scan; hashes compare as written, as subresource integrity does
+	public boolean containsHash(Hash hash) {
+		return this.hashSet.contains(hash);
+	}
+
+	// The hashes, arranged for matching inline sources against them
+	public HashIndex getHashIndex() {
+		HashIndex index = this.hashIndex;
+		if (index == null) {
+			index = HashIndex.of(this.hashes);
+			this.hashIndex = index;
+		}
+		return index;
+	}
+
 	public void addHash(Hash hash, ManipulationErrorConsumer errors) {
 		if (this._addHash(hash, -1, wrapManipulationErrorConsumer(errors))) {
-			this.addValue(hash.toString());
+			String value = hash.toString();
+			this.addValue(value);
+			this.rememberParsedValue(value, hash);
+		}
+	}
+
+	public void addHashes(Collection<Hash> hashes, ManipulationErrorConsumer errors) {
+		for (Hash hash : hashes) {
+			this.addHash(hash, errors);
 		}
 	}
 
 	public boolean removeHash(Hash hash) {
-		if (!this.hashes.contains(hash)) {
+		return this.removeHashes(Collections.singleton(hash));
+	}
+
+	// Removes each of `hashes` which is present, rewriting the values once however many there are. Returns whether any were present.
+	public boolean removeHashes(Collection<Hash> hashes) {
+		Set<Hash> removed = new HashSet<>();
+		for (Hash hash : hashes) {
+			if (this.hashSet.remove(hash)) {
+				removed.add(hash);
+			}
+		}
+		if (removed.isEmpty()) {
 			return false;
 		}
-		this.hashes.remove(hash);
+		this.hashIndex = null;
 		// we can't just "removeValue" or "removeValueIgnoreCase" because the `sha256-` part is case-insensitive but the remainder is case-sensitive
-		this.removeValuesMatching(hash, Hash::parseHash);
+		this.removeSources(removed, this.hashes, Hash::parseHash);
 		return true;
 	}
+
+	// Removes every hash-source which is not one of `hashes`, rewriting the values once. Returns whether any were removed.
+	public boolean retainHashes(Collection<Hash> hashes) {
+		Set<Hash> kept = new HashSet<>(hashes);
+		Set<Hash> removed = new HashSet<>();
+		for (Hash hash : this.hashes) {
+			if (!kept.contains(hash)) {
+				removed.add(hash);
+			}
+		}
+		return this.removeHashes(removed);
+	}
 }
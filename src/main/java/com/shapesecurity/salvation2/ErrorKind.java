@@ -0,0 +1,74 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.Values.Hash;
+
+import javax.annotation.Nullable;
+import java.util.function.Function;
+
+// Every warning and error which parsing can report, along with its severity.
+// Diagnostics are reported as a kind plus an optional detail (usually the offending token), and `message` turns that into the text which the string-based error consumers receive.
+// Consumers which override the structured `add` methods on the error consumer interfaces never pay for building that text.
+public enum ErrorKind {
+	// Policy
+	BlockAllMixedContentHasValues(Policy.Severity.Error, "The block-all-mixed-content directive does not support values"),
+	ReportToMissingValue(Policy.Severity.Error, "The report-to directive requires a value"),
+	ReportToInvalidToken(Policy.Severity.Error, detail -> "Expecting RFC 7230 token but found \"" + detail + "\""),
+	ReportToTooManyValues(Policy.Severity.Error, detail -> "The report-to directive requires exactly one value (found " + detail + ")"),
+	ReportUriDeprecated(Policy.Severity.Warning, "The report-uri directive has been deprecated in favor of the new report-to directive"),
+	UpgradeInsecureRequestsHasValues(Policy.Severity.Error, "The upgrade-insecure-requests directive does not support values"),
+	InvalidDirectiveName(Policy.Severity.Error, detail -> "Directive name " + detail + " contains characters outside the range ALPHA / DIGIT / \"-\""),
+	UnrecognizedDirective(Policy.Severity.Warning, detail -> "Unrecognized directive " + detail),
+	DuplicateDirective(Policy.Severity.Warning, detail -> "Duplicate directive " + detail),
+
+	// Source expression lists and ancestor source lists
+	DuplicateSourceExpression(Policy.Severity.Warning, detail -> "Duplicate source-expression " + detail),
+	DuplicateAncestorSource(Policy.Severity.Warning, detail -> "Duplicate ancestor-source " + detail),
+	UnrecognizedSourceExpression(Policy.Severity.Error, detail -> "Unrecognized source-expression " + detail),
+	UnrecognizedAncestorSource(Policy.Severity.Error, detail -> "Unrecognized ancestor-source " + detail),
+	SourceExpressionNoneCombined(Policy.Severity.Error, "'none' must not be combined with any other source-expression"),
+	AncestorSourceNoneCombined(Policy.Severity.Error, "'none' must not be combined with any other ancestor-source"),
+	EmptySourceExpressionList(Policy.Severity.Error, "Source-expression lists cannot be empty (use 'none' instead)"),
+	EmptyAncestorSourceList(Policy.Severity.Error, "Ancestor-source lists cannot be empty (use 'none' instead)"),
+	UnsafeRedirectRemoved(Policy.Severity.Error, "'unsafe-redirect' has been removed from CSP as of version 2.0"),
+	UnsafeHashedAttributesRenamed(Policy.Severity.Error, "'unsafe-hashed-attributes' was renamed to 'unsafe-hashes' in June 2018"),
+	UnrecognizedNonce(Policy.Severity.Error, detail -> "Unrecognised nonce " + detail),
+	UnrecognizedHash(Policy.Severity.Error, "'sha...' source-expression uses an unrecognized algorithm or does not match the base64-value grammar (or is missing its trailing \"'\")"),
+	DuplicateNonce(Policy.Severity.Warning, detail -> "Duplicate nonce " + detail),
+	DuplicateHash(Policy.Severity.Warning, detail -> "Duplicate hash " + detail),
+	WrongHashLength(Policy.Severity.Warning, detail -> {
+		Hash hash = (Hash) detail;
+		return "Wrong length for " + hash.algorithm.toString() + ": expected " + hash.algorithm.length + ", got " + hash.base64ValuePart.length();
+	}),
+	UrlSafeHashCharacters(Policy.Severity.Warning, "'_' and '-' in hashes can never match actual elements"),
+	KeywordMissingQuotes(Policy.Severity.Warning, detail -> "This host name is unusual, and likely meant to be a keyword that is missing the required quotes: \'" + detail + "\'."),
+	DuplicateScheme(Policy.Severity.Warning, detail -> "Duplicate scheme " + detail),
+	DuplicateHost(Policy.Severity.Warning, detail -> "Duplicate host " + detail),
+
+	// Other directives
+	DuplicateSandboxKeyword(Policy.Severity.Warning, detail -> "Duplicate sandbox keyword " + detail),
+	QuotedSandboxKeyword(Policy.Severity.Error, detail -> "Unrecognized sandbox keyword " + detail + " - note that sandbox keywords do not have \"'\"s"),
+	UnrecognizedSandboxKeyword(Policy.Severity.Error, detail -> "Unrecognized sandbox keyword " + detail),
+	EmptyReportUri(Policy.Severity.Error, "The report-uri value requires at least one value"),
+	DuplicateReportUri(Policy.Severity.Info, "Duplicate report-to URI; are you sure you intend to get multiple copies of each report?"),
+	InvalidMediaType(Policy.Severity.Error, detail -> "Expecting media-type but found \"" + detail + "\""),
+	DuplicateMediaType(Policy.Severity.Warning, detail -> "Duplicate media type " + detail),
+	WildcardMediaType(Policy.Severity.Warning, "Media types can only be matched literally. Make sure using `*` is not an oversight.");
+
+	public final Policy.Severity severity;
+	private final Function<Object, String> message;
+
+	ErrorKind(Policy.Severity severity, String message) {
+		this.severity = severity;
+		this.message = detail -> message;
+	}
+
+	ErrorKind(Policy.Severity severity, Function<Object, String> message) {
+		this.severity = severity;
+		this.message = message;
+	}
+
+	// `detail` is whatever was reported along with this kind, or null for kinds whose message does not depend on anything
+	public String message(@Nullable Object detail) {
+		return this.message.apply(detail);
+	}
+}
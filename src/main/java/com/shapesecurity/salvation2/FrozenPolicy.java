@@ -0,0 +1,130 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+import com.shapesecurity.salvation2.Values.MediaType;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+// An immutable snapshot of a Policy, created by Policy.freeze or PolicyBuilder.build, which can be published to any number of threads and queried without copying or locking.
+// Queries are answered by the CompiledPolicy it compiles when it is created. To change it, make a PolicyBuilder with `toBuilder`; that produces a new snapshot and leaves this one as it is.
+// A snapshot shares the directives its builder did not touch, along with their host and hash indexes, with the snapshot the builder started from.
+public final class FrozenPolicy implements QueryablePolicy {
+	// Fully materialized, never changed, and never handed out; its directives may be shared with other snapshots
+	final Policy policy;
+	private final CompiledPolicy compiled;
+	private final String serialized;
+
+	FrozenPolicy(Policy policy) {
+		this.policy = policy;
+		this.compiled = policy.compile();
+		this.serialized = policy.toString();
+	}
+
+	// The compiled form which answers this snapshot's queries
+	@Nonnull
+	public CompiledPolicy compile() {
+		return this.compiled;
+	}
+
+	// A builder which starts from this snapshot
+	@Nonnull
+	public PolicyBuilder toBuilder() {
+		return new PolicyBuilder(this.policy);
+	}
+
+	// A mutable copy of this snapshot, which shares nothing with it
+	@Nonnull
+	public Policy thaw() {
+		return this.policy.copy();
+	}
+
+	public boolean allowsExternalScriptNullable(@Nullable String nonce, @Nullable String integrity, @Nullable URLWithScheme scriptUrl, TriState parserInserted, @Nullable URLWithScheme origin) {
+		return this.compiled.allowsExternalScriptNullable(nonce, integrity, scriptUrl, parserInserted, origin);
+	}
+
+	public boolean allowsInlineScriptNullable(@Nullable String nonce, @Nullable String source, TriState parserInserted) {
+		return this.compiled.allowsInlineScriptNullable(nonce, source, parserInserted);
+	}
+
+	public boolean allowsScriptAsAttributeNullable(@Nullable String source) {
+		return this.compiled.allowsScriptAsAttributeNullable(source);
+	}
+
+	public boolean allowsEval() {
+		return this.compiled.allowsEval();
+	}
+
+	public boolean allowsNavigationNullable(@Nullable URLWithScheme to, TriState redirected, @Nullable URLWithScheme redirectedTo, @Nullable URLWithScheme origin) {
+		return this.compiled.allowsNavigationNullable(to, redirected, redirectedTo, origin);
+	}
+
+	public boolean allowsFormActionNullable(@Nullable URLWithScheme to, TriState redirected, @Nullable URLWithScheme redirectedTo, @Nullable URLWithScheme origin) {
+		return this.compiled.allowsFormActionNullable(to, redirected, redirectedTo, origin);
+	}
+
+	public boolean allowsJavascriptUrlNavigationNullable(@Nullable String source, @Nullable URLWithScheme origin) {
+		return this.compiled.allowsJavascriptUrlNavigationNullable(source, origin);
+	}
+
+	public boolean allowsExternalStyleNullable(@Nullable String nonce, @Nullable URLWithScheme styleUrl, @Nullable URLWithScheme origin) {
+		return this.compiled.allowsExternalStyleNullable(nonce, styleUrl, origin);
+	}
+
+	public boolean allowsInlineStyleNullable(@Nullable String nonce, @Nullable String source) {
+		return this.compiled.allowsInlineStyleNullable(nonce, source);
+	}
+
+	public boolean allowsStyleAsAttributeNullable(@Nullable String source) {
+		return this.compiled.allowsStyleAsAttributeNullable(source);
+	}
+
+	public boolean allowsFrameNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		return this.compiled.allowsFrameNullable(source, origin);
+	}
+
+	public boolean allowsFrameAncestorNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		return this.compiled.allowsFrameAncestorNullable(source, origin);
+	}
+
+	public boolean allowsConnectionNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		return this.compiled.allowsConnectionNullable(source, origin);
+	}
+
+	public boolean allowsFontNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		return this.compiled.allowsFontNullable(source, origin);
+	}
+
+	public boolean allowsImageNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		return this.compiled.allowsImageNullable(source, origin);
+	}
+
+	public boolean allowsApplicationManifestNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		return this.compiled.allowsApplicationManifestNullable(source, origin);
+	}
+
+	public boolean allowsMediaNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		return this.compiled.allowsMediaNullable(source, origin);
+	}
+
+	public boolean allowsObjectNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		return this.compiled.allowsObjectNullable(source, origin);
+	}
+
+	public boolean allowsPrefetchNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		return this.compiled.allowsPrefetchNullable(source, origin);
+	}
+
+	public boolean allowsWorkerNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		return this.compiled.allowsWorkerNullable(source, origin);
+	}
+
+	public boolean allowsPluginNullable(@Nullable MediaType mediaType) {
+		return this.compiled.allowsPluginNullable(mediaType);
+	}
+
+	@Override
+	public String toString() {
+		return this.serialized;
+	}
+}
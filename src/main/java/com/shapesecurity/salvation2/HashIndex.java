@@ -0,0 +1,85 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.Values.Hash;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// The hash-sources of a directive, as sets of raw digests for each algorithm.
+// Checking an inline source costs one digest and one lookup for each algorithm the directive uses, however many hashes it lists.
+// Instances are immutable.
+public final class HashIndex {
+	private static final HashIndex EMPTY = new HashIndex(Collections.emptySet(), Collections.emptySet(), Collections.emptySet());
+
+	private final Set<ByteBuffer> sha256;
+	private final Set<ByteBuffer> sha384;
+	private final Set<ByteBuffer> sha512;
+
+	private HashIndex(Set<ByteBuffer> sha256, Set<ByteBuffer> sha384, Set<ByteBuffer> sha512) {
+		this.sha256 = sha256;
+		this.sha384 = sha384;
+		this.sha512 = sha512;
+	}
+
+	@Nonnull
+	public static HashIndex of(List<Hash> hashes) {
+		if (hashes.isEmpty()) {
+			return EMPTY;
+		}
+		Set<ByteBuffer> sha256 = new HashSet<>();
+		Set<ByteBuffer> sha384 = new HashSet<>();
+		Set<ByteBuffer> sha512 = new HashSet<>();
+		for (Hash hash : hashes) {
+			byte[] digest = hash.getDigest();
+			if (digest == null) {
+				// Not a digest, so it never matches
+				continue;
+			}
+			switch (hash.algorithm) {
+				case SHA256:
+					sha256.add(ByteBuffer.wrap(digest));
+					break;
+				case SHA384:
+					sha384.add(ByteBuffer.wrap(digest));
+					break;
+				case SHA512:
+					sha512.add(ByteBuffer.wrap(digest));
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown hash algorithm " + hash.algorithm);
+			}
+		}
+		return new HashIndex(sha256, sha384, sha512);
+	}
+
+	// Whether the digest of the UTF-8 encoding of `source` under some algorithm is one of the hashes for that algorithm
+	public boolean matches(String source) {
+		return this.matches(source, null);
+	}
+
+	// As above, but digests come from `cache` if it is not null
+	public boolean matches(String source, @Nullable DigestCache cache) {
+		if (this.sha256.isEmpty() && this.sha384.isEmpty() && this.sha512.isEmpty()) {
+			return false;
+		}
+		if (cache != null) {
+			return matches(this.sha256, Hash.Algorithm.SHA256, cache, source) || matches(this.sha384, Hash.Algorithm.SHA384, cache, source) || matches(this.sha512, Hash.Algorithm.SHA512, cache, source);
+		}
+		byte[] bytes = source.getBytes(StandardCharsets.UTF_8);
+		return matches(this.sha256, Hash.Algorithm.SHA256, bytes) || matches(this.sha384, Hash.Algorithm.SHA384, bytes) || matches(this.sha512, Hash.Algorithm.SHA512, bytes);
+	}
+
+	private static boolean matches(Set<ByteBuffer> digests, Hash.Algorithm algorithm, byte[] source) {
+		return !digests.isEmpty() && digests.contains(ByteBuffer.wrap(algorithm.digest(source)));
+	}
+
+	private static boolean matches(Set<ByteBuffer> digests, Hash.Algorithm algorithm, DigestCache cache, String source) {
+		return !digests.isEmpty() && digests.contains(ByteBuffer.wrap(cache.sharedDigest(algorithm, source)));
+	}
+}
@@ -0,0 +1,215 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+import com.shapesecurity.salvation2.Values.Host;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.List;
+
+// The host-sources of a directive, arranged in a trie keyed by their DNS labels from right to left (so `*.cdn.example.com` is found under `com`, `example`, `cdn`).
+// Finding the host-sources whose host part matches a URL's host takes one step per label of that host, however many host-sources there are; only those candidates have their scheme, port and path checked.
+// Instances are immutable.
+public final class HostIndex {
+	private static final Host[] NO_HOSTS = new Host[0];
+
+	private final Node root;
+	// Host-sources whose host part is exactly `*`, which match every host
+	private final Host[] matchAnyHost;
+	// Every host-source, for URLs whose hosts are not ASCII. Those are compared case-insensitively in ways which do not correspond to lowercasing, so the trie does not apply.
+	private final Host[] all;
+	private final boolean hasPaths;
+
+	private HostIndex(Node root, Host[] matchAnyHost, Host[] all, boolean hasPaths) {
+		this.root = root;
+		this.matchAnyHost = matchAnyHost;
+		this.all = all;
+		this.hasPaths = hasPaths;
+	}
+
+	@Nonnull
+	public static HostIndex of(List<Host> hosts) {
+		Node root = new Node();
+		Host[] matchAnyHost = NO_HOSTS;
+		boolean hasPaths = false;
+		for (Host host : hosts) {
+			hasPaths |= host.parsedPath != null;
+			String name = host.host;
+			if (name.equals("*")) {
+				matchAnyHost = append(matchAnyHost, host);
+				continue;
+			}
+			boolean wildcard = name.startsWith("*.");
+			if (!host.kind.isMatchable()) {
+				continue;
+			}
+			// Host names are lowercase ASCII and their labels are never empty
+			Node node = root;
+			int end = name.length();
+			int stop = wildcard ? 2 : 0;
+			while (end > stop) {
+				int start = name.lastIndexOf('.', end - 1) + 1;
+				if (start < stop) {
+					start = stop;
+				}
+				node = node.childForInsertion(name.substring(start, end));
+				end = start - 1;
+			}
+			if (wildcard) {
+				node.wildcard = append(node.wildcard, host);
+			} else {
+				node.exact = append(node.exact, host);
+			}
+		}
+		return new HostIndex(root, matchAnyHost, hosts.toArray(NO_HOSTS), hasPaths);
+	}
+
+	// Whether some host-source has a path part. If not, whether a URL matches depends only on its scheme, host and port.
+	public boolean hasPaths() {
+		return this.hasPaths;
+	}
+
+	// Whether any of the host-sources matches the URL, per the host-source steps of https://w3c.github.io/webappsec-csp/#match-url-to-source-list
+	public boolean matches(URLWithScheme url, @Nullable URLWithScheme origin) {
+		return this.matches(url, OriginMatcher.of(origin));
+	}
+
+	public boolean matches(URLWithScheme url, OriginMatcher origin) {
+		String host = url.host;
+		if (host == null || this.all.length == 0) {
+			return false;
+		}
+		if (!isAscii(host)) {
+			for (Host expression : this.all) {
+				if (Policy.hostSourceMatches(expression, url, origin)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		if (anyMatches(this.matchAnyHost, url, origin)) {
+			return true;
+		}
+		// URL hosts are already lowercase
+		Node node = this.root;
+		int end = host.length();
+		while (true) {
+			int dot = host.lastIndexOf('.', end - 1);
+			node = node.child(host, dot + 1, end);
+			if (node == null) {
+				return false;
+			}
+			if (dot == -1) {
+				return anyMatches(node.exact, url, origin);
+			}
+			// `*.example.com` matches any host which ends with `.example.com`
+			if (anyMatches(node.wildcard, url, origin)) {
+				return true;
+			}
+			end = dot;
+		}
+	}
+
+	private static boolean anyMatches(Host[] candidates, URLWithScheme url, OriginMatcher origin) {
+		for (Host expression : candidates) {
+			// The host part matches by construction
+			if (Policy.hostSourceSchemeMatches(expression, url.scheme, origin) && Policy.portAndPathPartsMatch(expression, url)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Host[] append(Host[] hosts, Host host) {
+		Host[] result = Arrays.copyOf(hosts, hosts.length + 1);
+		result[hosts.length] = host;
+		return result;
+	}
+
+	private static boolean isAscii(String s) {
+		for (int i = 0; i < s.length(); ++i) {
+			if (s.charAt(i) > 0x7F) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static final class Node {
+		Host[] exact = NO_HOSTS;
+		Host[] wildcard = NO_HOSTS;
+
+		// An open-addressing hash table of the next labels, so that looking one up needs neither a substring nor a scan of its siblings
+		private String[] labels = null;
+		private Node[] children = null;
+		private int size = 0;
+
+		Node child(String host, int start, int end) {
+			if (this.labels == null) {
+				return null;
+			}
+			int length = end - start;
+			int mask = this.labels.length - 1;
+			for (int i = hash(host, start, end) & mask; ; i = (i + 1) & mask) {
+				String label = this.labels[i];
+				if (label == null) {
+					return null;
+				}
+				if (label.length() == length && label.regionMatches(0, host, start, length)) {
+					return this.children[i];
+				}
+			}
+		}
+
+		Node childForInsertion(String label) {
+			Node existing = this.child(label, 0, label.length());
+			if (existing != null) {
+				return existing;
+			}
+			if (this.labels == null || (this.size + 1) * 2 > this.labels.length) {
+				this.resize();
+			}
+			Node child = new Node();
+			this.put(label, child);
+			return child;
+		}
+
+		private void resize() {
+			String[] oldLabels = this.labels;
+			Node[] oldChildren = this.children;
+			int capacity = oldLabels == null ? 2 : oldLabels.length * 2;
+			this.labels = new String[capacity];
+			this.children = new Node[capacity];
+			this.size = 0;
+			if (oldLabels != null) {
+				for (int i = 0; i < oldLabels.length; ++i) {
+					if (oldLabels[i] != null) {
+						this.put(oldLabels[i], oldChildren[i]);
+					}
+				}
+			}
+		}
+
+		private void put(String label, Node child) {
+			int mask = this.labels.length - 1;
+			int i = hash(label, 0, label.length()) & mask;
+			while (this.labels[i] != null) {
+				i = (i + 1) & mask;
+			}
+			this.labels[i] = label;
+			this.children[i] = child;
+			++this.size;
+		}
+
+		// The same as String.hashCode, over part of a string
+		private static int hash(String s, int start, int end) {
+			int h = 0;
+			for (int i = start; i < end; ++i) {
+				h = 31 * h + s.charAt(i);
+			}
+			// Spread the high bits, since the table only uses the low ones
+			return h ^ (h >>> 16);
+		}
+	}
+}
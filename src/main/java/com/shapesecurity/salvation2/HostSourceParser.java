@@ -0,0 +1,235 @@
+package com.shapesecurity.salvation2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+// Recognizes exactly the strings which Constants.hostSourcePattern matches, and finds the same groups, in a single left-to-right pass.
+// That pattern's nested quantifiers make it backtrack on long or crafted paths; this never looks at a character more than once.
+// Each part of the grammar below can only end in one place for the rest of the pattern to have any chance of matching, which is why no backtracking is necessary.
+public final class HostSourceParser {
+	@Nonnull
+	public final String input;
+
+	// The scheme is [0, schemeEnd), not including the following "://", or absent if schemeEnd is -1
+	public final int schemeEnd;
+	public final int hostStart;
+	public final int hostEnd;
+	// The port, including its leading ':', is [hostEnd, portEnd), or absent if the two are equal
+	public final int portEnd;
+	// The path is [portEnd, pathEnd), or absent if the two are equal. Any query or fragment follows it.
+	public final int pathEnd;
+
+	private HostSourceParser(String input, int schemeEnd, int hostStart, int hostEnd, int portEnd, int pathEnd) {
+		this.input = input;
+		this.schemeEnd = schemeEnd;
+		this.hostStart = hostStart;
+		this.hostEnd = hostEnd;
+		this.portEnd = portEnd;
+		this.pathEnd = pathEnd;
+	}
+
+	// Returns null if the input is not a host-source (or absolute URL, as far as we are concerned)
+	@Nullable
+	public static HostSourceParser parse(@Nonnull String input) {
+		int length = input.length();
+
+		// https://tools.ietf.org/html/rfc3986#section-3.1, followed by "://"
+		int schemeEnd = -1;
+		int afterScheme = scanScheme(input);
+		// A scheme-looking prefix without "://" is part of the host, so the host starts at 0; this is how `example.com:80` parses
+		if (afterScheme > 0 && input.startsWith("://", afterScheme)) {
+			schemeEnd = afterScheme;
+		}
+
+		// https://w3c.github.io/webappsec-csp/#grammardef-host-part
+		int hostStart = schemeEnd == -1 ? 0 : schemeEnd + 3;
+		int i = hostStart;
+		if (i < length && input.charAt(i) == '*' && !(i + 1 < length && input.charAt(i + 1) == '.')) {
+			++i;
+		} else {
+			if (i < length && input.charAt(i) == '*') {
+				i += 2;
+			}
+			int labelStart = i;
+			while (i < length && isLabelChar(input.charAt(i))) {
+				++i;
+			}
+			if (i == labelStart) {
+				return null;
+			}
+			while (i + 1 < length && input.charAt(i) == '.' && isLabelChar(input.charAt(i + 1))) {
+				i += 2;
+				while (i < length && isLabelChar(input.charAt(i))) {
+					++i;
+				}
+			}
+		}
+		int hostEnd = i;
+
+		// https://w3c.github.io/webappsec-csp/#grammardef-port-part
+		if (i < length && input.charAt(i) == ':') {
+			if (i + 1 < length && input.charAt(i + 1) == '*') {
+				i += 2;
+			} else {
+				int digitsStart = i + 1;
+				int end = digitsStart;
+				while (end < length && isAsciiDigit(input.charAt(end))) {
+					++end;
+				}
+				if (end == digitsStart) {
+					return null;
+				}
+				i = end;
+			}
+		}
+		int portEnd = i;
+
+		// https://w3c.github.io/webappsec-csp/#grammardef-path-part, except as noted on Constants.pathPart
+		if (i < length && input.charAt(i) == '/') {
+			while (i < length) {
+				char c = input.charAt(i);
+				if (c == '/' || isPchar(c)) {
+					++i;
+				} else if (c == '%' && i + 2 < length && isAsciiHexDigit(input.charAt(i + 1)) && isAsciiHexDigit(input.charAt(i + 2))) {
+					i += 3;
+				} else {
+					break;
+				}
+			}
+		}
+		int pathEnd = i;
+
+		// The query runs up to the fragment, and the fragment runs up to the first line terminator
+		if (i < length && input.charAt(i) == '?') {
+			i = input.indexOf('#', i);
+			if (i == -1) {
+				i = length;
+			}
+		}
+		if (i < length && input.charAt(i) == '#') {
+			++i;
+			while (i < length && !isLineTerminator(input.charAt(i))) {
+				++i;
+			}
+		}
+		if (!isEndOfInput(input, i)) {
+			return null;
+		}
+
+		return new HostSourceParser(input, schemeEnd, hostStart, hostEnd, portEnd, pathEnd);
+	}
+
+	// The length of the longest prefix of `input` which is a scheme (https://tools.ietf.org/html/rfc3986#section-3.1), or 0 if there is none
+	public static int scanScheme(@Nonnull String input) {
+		int length = input.length();
+		if (length == 0 || !isAsciiAlpha(input.charAt(0))) {
+			return 0;
+		}
+		int i = 1;
+		while (i < length && isSchemeChar(input.charAt(i))) {
+			++i;
+		}
+		return i;
+	}
+
+	@Nullable
+	public String scheme() {
+		return this.schemeEnd == -1 ? null : this.input.substring(0, this.schemeEnd);
+	}
+
+	@Nonnull
+	public String host() {
+		return this.input.substring(this.hostStart, this.hostEnd);
+	}
+
+	public boolean hasPort() {
+		return this.portEnd != this.hostEnd;
+	}
+
+	// Like the pattern, this throws NumberFormatException for ports which do not fit in an int
+	public int port(int ifAbsent) {
+		if (!this.hasPort()) {
+			return ifAbsent;
+		}
+		if (this.input.charAt(this.hostEnd + 1) == '*') {
+			return Constants.WILDCARD_PORT;
+		}
+		return Integer.parseInt(this.input.substring(this.hostEnd + 1, this.portEnd));
+	}
+
+	@Nullable
+	public String path() {
+		return this.pathEnd == this.portEnd ? null : this.input.substring(this.portEnd, this.pathEnd);
+	}
+
+	// Where `$` matches in a pattern compiled without flags: at the end, or before a line terminator which ends the input
+	private static boolean isEndOfInput(String input, int index) {
+		int remaining = input.length() - index;
+		if (remaining == 0) {
+			return true;
+		}
+		if (remaining == 2) {
+			return input.charAt(index) == '\r' && input.charAt(index + 1) == '\n';
+		}
+		if (remaining == 1) {
+			char c = input.charAt(index);
+			if (c == '\n') {
+				// `$` never matches between \r and \n
+				return index == 0 || input.charAt(index - 1) != '\r';
+			}
+			return isLineTerminator(c);
+		}
+		return false;
+	}
+
+	// The characters which `.` does not match in a pattern compiled without flags
+	private static boolean isLineTerminator(char c) {
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+
+	private static boolean isAsciiAlpha(char c) {
+		return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+	}
+
+	private static boolean isAsciiDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isAsciiHexDigit(char c) {
+		return isAsciiDigit(c) || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F';
+	}
+
+	private static boolean isSchemeChar(char c) {
+		return isAsciiAlpha(c) || isAsciiDigit(c) || c == '+' || c == '-' || c == '.';
+	}
+
+	private static boolean isLabelChar(char c) {
+		return isAsciiAlpha(c) || isAsciiDigit(c) || c == '-';
+	}
+
+	// unreserved, sub-delims, ":", and "@"; percent-encodings are handled separately
+	private static boolean isPchar(char c) {
+		switch (c) {
+			case '-':
+			case '.':
+			case '_':
+			case '~':
+			case '!':
+			case '$':
+			case '&':
+			case '\'':
+			case '(':
+			case ')':
+			case '*':
+			case '+':
+			case ',':
+			case ';':
+			case '=':
+			case ':':
+			case '@':
+				return true;
+			default:
+				return isAsciiAlpha(c) || isAsciiDigit(c);
+		}
+	}
+}
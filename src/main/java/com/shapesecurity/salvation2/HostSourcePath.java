@@ -0,0 +1,148 @@
+package com.shapesecurity.salvation2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+// The path of a host-source, split on `/` and percent-decoded once, so that matching a URL against it only walks the URL's path.
+// https://w3c.github.io/webappsec-csp/#path-part-match
+public final class HostSourcePath {
+	private final String path;
+	// The number of `/`-separated segments in the path, including the empty one after a trailing `/`
+	private final int segmentCount;
+	// Whether the path has to match the URL's path exactly, rather than as a directory prefix
+	private final boolean exact;
+	// The segments which have to equal the URL's, in order; a trailing empty segment is dropped when the path is a prefix
+	private final String[] raw;
+	// `raw`, decoded. An entry is null if decoding that segment fails, in which case matching reaches it and fails the same way.
+	private final String[] decoded;
+
+	private HostSourcePath(String path, int segmentCount, boolean exact, String[] raw, String[] decoded) {
+		this.path = path;
+		this.segmentCount = segmentCount;
+		this.exact = exact;
+		this.raw = raw;
+		this.decoded = decoded;
+	}
+
+	@Nullable
+	public static HostSourcePath of(@Nullable String path) {
+		if (path == null || path.isEmpty()) {
+			// Matches every path
+			return null;
+		}
+		boolean exact = !path.endsWith("/");
+		int segmentCount = count(path, '/') + 1;
+		int compared = exact ? segmentCount : segmentCount - 1;
+		String[] raw = new String[compared];
+		String[] decoded = new String[compared];
+		int start = 0;
+		for (int i = 0; i < compared; ++i) {
+			int end = path.indexOf('/', start);
+			if (end == -1) {
+				end = path.length();
+			}
+			raw[i] = path.substring(start, end);
+			try {
+				decoded[i] = Utils.decodeString(raw[i]);
+			} catch (IllegalArgumentException e) {
+				decoded[i] = null;
+			}
+			start = end + 1;
+		}
+		return new HostSourcePath(path, segmentCount, exact, raw, decoded);
+	}
+
+	// The same as splitting both paths on `/`, decoding each segment with URLDecoder, and comparing the results, but without allocating unless a segment needs full decoding.
+	// As with URLDecoder, a malformed percent-encoding in a segment which gets compared throws IllegalArgumentException.
+	public boolean matches(@Nullable String urlPath) {
+		if (urlPath == null) {
+			urlPath = "";
+		}
+		if (this.path.equals("/") && urlPath.isEmpty()) {
+			return true;
+		}
+
+		int urlSegmentCount = count(urlPath, '/') + 1;
+		if (this.segmentCount > urlSegmentCount) {
+			return false;
+		}
+		if (this.exact && this.segmentCount != urlSegmentCount) {
+			return false;
+		}
+
+		int start = 0;
+		for (int i = 0; i < this.raw.length; ++i) {
+			int end = urlPath.indexOf('/', start);
+			if (end == -1) {
+				end = urlPath.length();
+			}
+			String expected = this.decoded[i];
+			if (expected == null) {
+				// Throws
+				expected = Utils.decodeString(this.raw[i]);
+			}
+			if (!decodedRegionEquals(expected, urlPath, start, end)) {
+				return false;
+			}
+			start = end + 1;
+		}
+		return true;
+	}
+
+	// Whether URLDecoder.decode(s.substring(start, end)) equals `expected`
+	private static boolean decodedRegionEquals(String expected, String s, int start, int end) {
+		int length = expected.length();
+		int j = 0;
+		boolean equal = true;
+		for (int i = start; i < end; ++i) {
+			char c = s.charAt(i);
+			if (c == '+') {
+				c = ' ';
+			} else if (c == '%') {
+				int value = i + 2 < end ? escapedByte(s.charAt(i + 1), s.charAt(i + 2)) : -1;
+				if (value < 0 || value > 0x7F) {
+					// Malformed, so that decoding throws, or part of a multi-byte UTF-8 sequence; either way, leave it to the real decoder.
+					return Utils.decodeString(s.substring(start, end)).equals(expected);
+				}
+				c = (char) value;
+				i += 2;
+			}
+			// Keep going after a mismatch, so that a later malformed escape is still reported
+			if (j >= length || expected.charAt(j) != c) {
+				equal = false;
+			}
+			++j;
+		}
+		return equal && j == length;
+	}
+
+	// The byte which URLDecoder gets from `%` followed by these two characters, using Integer.parseInt's rules (including its acceptance of a sign), or -1 if it would throw
+	private static int escapedByte(char first, char second) {
+		int low = Character.digit(second, 16);
+		if (low < 0) {
+			return -1;
+		}
+		if (first == '+') {
+			return low;
+		}
+		if (first == '-') {
+			// Only "-0" is not negative
+			return low == 0 ? 0 : -1;
+		}
+		int high = Character.digit(first, 16);
+		if (high < 0) {
+			return -1;
+		}
+		return high * 16 + low;
+	}
+
+	private static int count(@Nonnull String s, char c) {
+		int count = 0;
+		for (int i = 0; i < s.length(); ++i) {
+			if (s.charAt(i) == c) {
+				++count;
+			}
+		}
+		return count;
+	}
+}
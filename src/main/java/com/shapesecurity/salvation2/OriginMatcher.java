@@ -0,0 +1,137 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.URLs.URI;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Objects;
+
+// The parts of https://w3c.github.io/webappsec-csp/#match-url-to-source-list which depend only on the origin of the protected resource, worked out once per origin:
+// the (scheme, port) pairs which 'self' accepts on the origin's host, the schemes which `*` accepts, and the schemes which host-sources without a scheme accept.
+// Queries which take the origin as a URL build a matcher each time they need one; PolicyInOrigin builds one when it is constructed and uses it for every query.
+// Instances are immutable and safe to share between threads.
+public final class OriginMatcher {
+	// https://fetch.spec.whatwg.org/#network-scheme
+	// Note that "ws" and "wss" are _not_ network schemes
+	private static final String[] NETWORK_SCHEMES = { "ftp", "http", "https" };
+
+	// The schemes B for which Policy.schemePartMatches(A, B), for the schemes A which are not only matched by themselves
+	private static final String[] HTTP_SCHEMES = { "http", "https" };
+	private static final String[] WS_SCHEMES = { "ws", "wss", "http", "https" };
+	private static final String[] WSS_SCHEMES = { "wss", "https" };
+	private static final String[] HTTPS_SCHEMES = { "https" };
+
+	// The schemes which 'self' accepts, for http origins and for every other origin
+	private static final String[] HTTP_SELF_SCHEMES = { "https", "wss", "http", "ws" };
+	private static final String[] SELF_SCHEMES = { "https", "wss" };
+
+	private static final String[] NO_SCHEMES = {};
+	private static final Integer[] NO_PORTS = {};
+
+	// For queries without an origin, where 'self' and host-sources without schemes never match. This has to come after the arrays above.
+	public static final OriginMatcher NONE = new OriginMatcher(null);
+
+	@Nullable
+	public final URLWithScheme origin;
+	private final String[] starSchemes;
+	private final String[] schemelessHostSchemes;
+	@Nullable
+	private final String selfHost;
+	// 'self' matches a URL on selfHost whose scheme and port are selfSchemes[i] and selfPorts[i] for some i
+	private final String[] selfSchemes;
+	private final Integer[] selfPorts;
+
+	// Building a matcher is cheap, but not free; it only allocates arrays which depend on the origin's port or on an uncommon scheme
+	private OriginMatcher(@Nullable URLWithScheme origin) {
+		this.origin = origin;
+		if (origin == null) {
+			this.starSchemes = NETWORK_SCHEMES;
+			this.schemelessHostSchemes = NO_SCHEMES;
+			this.selfHost = null;
+			this.selfSchemes = NO_SCHEMES;
+			this.selfPorts = NO_PORTS;
+			return;
+		}
+		String originScheme = origin.scheme;
+
+		if (contains(NETWORK_SCHEMES, originScheme)) {
+			this.starSchemes = NETWORK_SCHEMES;
+		} else {
+			this.starSchemes = new String[] { NETWORK_SCHEMES[0], NETWORK_SCHEMES[1], NETWORK_SCHEMES[2], originScheme };
+		}
+
+		switch (originScheme) {
+			case "http":
+				this.schemelessHostSchemes = HTTP_SCHEMES;
+				break;
+			case "https":
+				this.schemelessHostSchemes = HTTPS_SCHEMES;
+				break;
+			case "ws":
+				this.schemelessHostSchemes = WS_SCHEMES;
+				break;
+			case "wss":
+				this.schemelessHostSchemes = WSS_SCHEMES;
+				break;
+			default:
+				this.schemelessHostSchemes = new String[] { originScheme };
+				break;
+		}
+
+		// 'self' upgrades http to https and ws to wss, but never downgrades, and a URL on its scheme's default port matches an origin on its own scheme's default port
+		this.selfHost = origin.host;
+		String[] schemes = originScheme.equals("http") ? HTTP_SELF_SCHEMES : SELF_SCHEMES;
+		boolean originOnDefaultPort = Objects.equals(origin.port, URI.defaultPortForProtocol(originScheme));
+		int perScheme = originOnDefaultPort ? 2 : 1;
+		this.selfSchemes = new String[schemes.length * perScheme];
+		this.selfPorts = new Integer[schemes.length * perScheme];
+		for (int i = 0; i < schemes.length; ++i) {
+			this.selfSchemes[i * perScheme] = schemes[i];
+			this.selfPorts[i * perScheme] = origin.port;
+			if (originOnDefaultPort) {
+				this.selfSchemes[i * perScheme + 1] = schemes[i];
+				this.selfPorts[i * perScheme + 1] = URI.defaultPortForProtocol(schemes[i]);
+			}
+		}
+	}
+
+	// A new matcher for `origin`; build it once and reuse it when querying with the same origin many times
+	@Nonnull
+	public static OriginMatcher of(@Nullable URLWithScheme origin) {
+		return origin == null ? NONE : new OriginMatcher(origin);
+	}
+
+	// Whether a `*` source-expression matches a URL with this scheme
+	public boolean starMatches(String urlScheme) {
+		return contains(this.starSchemes, urlScheme);
+	}
+
+	// Whether a host-source without a scheme part accepts a URL with this scheme; the rest of the host-source still has to match
+	public boolean schemelessHostMatches(String urlScheme) {
+		return contains(this.schemelessHostSchemes, urlScheme);
+	}
+
+	// Whether 'self' matches the URL
+	public boolean selfMatches(URLWithScheme url) {
+		if (this.origin == null || !Objects.equals(this.selfHost, url.host)) {
+			return false;
+		}
+		String urlScheme = url.scheme;
+		for (int i = 0; i < this.selfSchemes.length; ++i) {
+			if (this.selfSchemes[i].equals(urlScheme) && Objects.equals(this.selfPorts[i], url.port)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean contains(String[] schemes, String scheme) {
+		for (String candidate : schemes) {
+			if (candidate.equals(scheme)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -16,22 +16,20 @@ import com.shapesecurity.salvation2.Values.RFC7230Token;
 import com.shapesecurity.salvation2.Values.Scheme;
 
 import javax.annotation.Nonnull;
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Base64;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.EnumMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ForkJoinPool;
 
-public class Policy {
+public class Policy implements QueryablePolicy {
 	// Things we don't preserve:
 	// - Whitespace
 	// - Empty directives or policies (as in `; ;` or `, ,`)
@@ -67,6 +65,16 @@ public class Policy {
 	@Nonnull
 	private final EnumMap<FetchDirectiveKind, SourceExpressionDirective> fetchDirectives = new EnumMap<>(FetchDirectiveKind.class);
 
+	// Non-null only for policies created by the `...Lazily` parsing methods, until every directive has been materialized.
+	// While this is non-null, `directives` is empty and the typed fields above are only filled in by `materialize`, so anything reading them must call that first.
+	private PendingDirectives pending = null;
+
+	@Nullable
+	private volatile DecisionMemo decisionMemo = null;
+
+	@Nullable
+	private volatile DigestCache digestCache = null;
+
 	private Policy() {
 		// pass
 	}
@@ -74,71 +82,174 @@ public class Policy {
 	// https://w3c.github.io/webappsec-csp/#parse-serialized-policy-list
 	@Nonnull
 	public static PolicyList parseSerializedCSPList(String serialized, PolicyListErrorConsumer policyListErrorConsumer) {
-		// "A serialized CSP list is an ASCII string"
-		enforceAscii(serialized);
+		return parseSerializedCSPList((CharSequence) serialized, policyListErrorConsumer);
+	}
 
-		List<Policy> policies = new ArrayList<>();
+	@Nonnull
+	public static PolicyList parseSerializedCSPList(CharSequence serialized, PolicyListErrorConsumer policyListErrorConsumer) {
+		// "A serialized CSP list is an ASCII string"; the tokenizer enforces this
+		PolicyTokenizer tokenizer = PolicyTokenizer.tokenize(serialized, true);
 
-		int[] index = { 0 }; // java's lambdas are dumb
-		PolicyErrorConsumer policyErrorConsumer = (Severity severity, String message, int directiveIndex, int valueIndex) -> {
-			policyListErrorConsumer.add(severity, message, index[0], directiveIndex, valueIndex);
-		};
+		List<Policy> policies = new ArrayList<>();
 
-		// https://infra.spec.whatwg.org/#split-on-commas
-		for (String token : serialized.split(",")) {
-			Policy policy = parseSerializedCSP(token, policyErrorConsumer);
-			if (policy.directives.isEmpty()) {
-				++index[0];
-				continue;
+		int directive = 0;
+		while (directive < tokenizer.directiveCount()) {
+			// Policies without any directives are never recorded by the tokenizer, so this is never empty
+			int policyIndex = tokenizer.policyIndex(directive);
+			int end = directive + 1;
+			while (end < tokenizer.directiveCount() && tokenizer.policyIndex(end) == policyIndex) {
+				++end;
 			}
+			PolicyErrorConsumer policyErrorConsumer = new PolicyErrorConsumer() {
+				@Override
+				public void add(Severity severity, String message, int directiveIndex, int valueIndex) {
+					policyListErrorConsumer.add(severity, message, policyIndex, directiveIndex, valueIndex);
+				}
 
-			policies.add(policy);
+				@Override
+				public void add(ErrorKind kind, @Nullable Object detail, int directiveIndex, int valueIndex) {
+					policyListErrorConsumer.add(kind, detail, policyIndex, directiveIndex, valueIndex);
+				}
 
-			++index[0];
+				@Override
+				public boolean ignores(Severity severity) {
+					return policyListErrorConsumer.ignores(severity);
+				}
+			};
+			policies.add(parseTokenizedDirectives(tokenizer, directive, end, policyErrorConsumer));
+			directive = end;
 		}
 		return new PolicyList(policies);
 	}
 
+	// Parses `length` bytes starting at `offset` as ASCII, without decoding them up front. Only the directive names and values which end up in the result are turned into strings.
+	@Nonnull
+	public static PolicyList parseSerializedCSPList(byte[] serialized, int offset, int length, PolicyListErrorConsumer policyListErrorConsumer) {
+		return parseSerializedCSPList(new AsciiBytes(serialized, offset, length), policyListErrorConsumer);
+	}
+
+	// Parses the bytes between the buffer's position and its limit as ASCII; this works equally well for direct buffers. The buffer's position is not changed.
+	@Nonnull
+	public static PolicyList parseSerializedCSPList(ByteBuffer serialized, PolicyListErrorConsumer policyListErrorConsumer) {
+		return parseSerializedCSPList(new AsciiBytes(serialized), policyListErrorConsumer);
+	}
+
 	// https://w3c.github.io/webappsec-csp/#parse-serialized-policy
 	@Nonnull
 	public static Policy parseSerializedCSP(String serialized, PolicyErrorConsumer policyErrorConsumer) {
+		return parseSerializedCSP((CharSequence) serialized, policyErrorConsumer);
+	}
+
+	@Nonnull
+	public static Policy parseSerializedCSP(CharSequence serialized, PolicyErrorConsumer policyErrorConsumer) {
 		// "A serialized CSP is an ASCII string", and browsers do in fact reject CSPs which contain non-ASCII characters
-		enforceAscii(serialized);
-		if (serialized.contains(",")) {
-			// This is not quite per spec, but
-			throw new IllegalArgumentException("Serialized CSPs cannot contain commas - you may have wanted parseSerializedCSPList");
-		}
+		// The tokenizer enforces this, and also rejects commas
+		PolicyTokenizer tokenizer = PolicyTokenizer.tokenize(serialized, false);
+		return parseTokenizedDirectives(tokenizer, 0, tokenizer.directiveCount(), policyErrorConsumer);
+	}
 
-		int[] index = { 0 }; // java's lambdas are dumb
-		Directive.DirectiveErrorConsumer directiveErrorConsumer = (Severity severity, String message, int valueIndex) -> {
-			policyErrorConsumer.add(severity, message, index[0], valueIndex);
-		};
+	@Nonnull
+	public static Policy parseSerializedCSP(byte[] serialized, int offset, int length, PolicyErrorConsumer policyErrorConsumer) {
+		return parseSerializedCSP(new AsciiBytes(serialized, offset, length), policyErrorConsumer);
+	}
 
-		Policy policy = new Policy();
+	@Nonnull
+	public static Policy parseSerializedCSP(ByteBuffer serialized, PolicyErrorConsumer policyErrorConsumer) {
+		return parseSerializedCSP(new AsciiBytes(serialized), policyErrorConsumer);
+	}
+
+	// Like parseSerializedCSPList, except that each directive is only fully parsed the first time something needs it, e.g. `getFetchDirective` or an `allows*` method.
+	// This is much cheaper when only a few directives of a large policy are ever consulted.
+	// Since directives may never be parsed, no warnings or errors are reported; use parseSerializedCSPList if you need those.
+	// The resulting policies are not safe to query from multiple threads at once, since querying can modify them.
+	@Nonnull
+	public static PolicyList parseSerializedCSPListLazily(String serialized) {
+		// Only Strings are accepted because the input is held on to until it is needed, so it must not change in the meantime
+		PolicyTokenizer tokenizer = PolicyTokenizer.tokenize(serialized, true);
+
+		List<Policy> policies = new ArrayList<>();
 
-		// https://infra.spec.whatwg.org/#strictly-split
-		for (String token : serialized.split(";")) {
-			String strippedLeadingAndTrailingWhitespace = stripTrailingWhitespace(stripLeadingWhitespace(token));
-			if (strippedLeadingAndTrailingWhitespace.isEmpty()) {
-				++index[0];
-				continue;
+		int directive = 0;
+		while (directive < tokenizer.directiveCount()) {
+			int policyIndex = tokenizer.policyIndex(directive);
+			int end = directive + 1;
+			while (end < tokenizer.directiveCount() && tokenizer.policyIndex(end) == policyIndex) {
+				++end;
 			}
-			String directiveName = collect(strippedLeadingAndTrailingWhitespace, "[^" + Constants.WHITESPACE_CHARS + "]+");
+			policies.add(lazilyParseTokenizedDirectives(tokenizer, directive, end));
+			directive = end;
+		}
+		return new PolicyList(policies);
+	}
 
-			// Note: we do not lowercase directive names or skip duplicates during parsing, to allow round-tripping even invalid policies
+	// Like parseSerializedCSP, except that each directive is only fully parsed the first time something needs it. See parseSerializedCSPListLazily.
+	@Nonnull
+	public static Policy parseSerializedCSPLazily(String serialized) {
+		PolicyTokenizer tokenizer = PolicyTokenizer.tokenize(serialized, false);
+		return lazilyParseTokenizedDirectives(tokenizer, 0, tokenizer.directiveCount());
+	}
+
+	private static Policy parseTokenizedDirectives(PolicyTokenizer tokenizer, int start, int end, PolicyErrorConsumer policyErrorConsumer) {
+		int[] index = { 0 }; // java's lambdas are dumb
+		Directive.DirectiveErrorConsumer directiveErrorConsumer = new Directive.DirectiveErrorConsumer() {
+			@Override
+			public void add(Severity severity, String message, int valueIndex) {
+				policyErrorConsumer.add(severity, message, index[0], valueIndex);
+			}
 
-			String remainingToken = strippedLeadingAndTrailingWhitespace.substring(directiveName.length());
+			@Override
+			public void add(ErrorKind kind, @Nullable Object detail, int valueIndex) {
+				policyErrorConsumer.add(kind, detail, index[0], valueIndex);
+			}
 
-			List<String> directiveValues = Utils.splitOnAsciiWhitespace(remainingToken);
+			@Override
+			public boolean ignores(Severity severity) {
+				return policyErrorConsumer.ignores(severity);
+			}
+		};
 
-			policy.add(directiveName, directiveValues, directiveErrorConsumer);
+		Policy policy = new Policy();
+		for (int directive = start; directive < end; ++directive) {
+			// The tokenizer skips empty directives, but they still count towards the directive index
+			index[0] = tokenizer.directiveIndex(directive);
 
-			++index[0];
+			// Note: we do not lowercase directive names or skip duplicates during parsing, to allow round-tripping even invalid policies
+			policy.add(tokenizer.directiveName(directive), tokenizer.directiveValues(directive), directiveErrorConsumer);
 		}
 
 		return policy;
 	}
 
+	private static Policy lazilyParseTokenizedDirectives(PolicyTokenizer tokenizer, int start, int end) {
+		Policy policy = new Policy();
+		PendingDirectives pending = new PendingDirectives(tokenizer, start, end);
+		for (int directive = start; directive < end; ++directive) {
+			// These are all cheap enough that there is no point in deferring them
+			switch (pending.lowcaseName(directive)) {
+				case "block-all-mixed-content":
+					policy.blockAllMixedContent = true;
+					break;
+				case "upgrade-insecure-requests":
+					policy.upgradeInsecureRequests = true;
+					break;
+				case "report-to":
+					// This mirrors `add`, including that a malformed report-to does not prevent a later one from being used
+					if (policy.reportTo == null) {
+						List<String> values = tokenizer.directiveValues(directive);
+						if (values.size() == 1) {
+							policy.reportTo = RFC7230Token.parseRFC7230Token(values.get(0)).orElse(null);
+						}
+					}
+					break;
+				default:
+					pending.recordIfFirstOfItsKind(directive);
+					break;
+			}
+		}
+		policy.pending = pending;
+		return policy;
+	}
+
 
 	// Manipulation APIs
 
@@ -146,6 +257,7 @@ public class Policy {
 	// We do not provide a generic method for updating an existing directive in-place. Just remove the existing one and add it back.
 	public Directive add(String name, List<String> values, Directive.DirectiveErrorConsumer directiveErrorConsumer) {
 		enforceAscii(name);
+		this.materializeAll();
 
 		// the parser will never hit these errors by construction, but use of the manipulation APIs can
 		if (Directive.containsNonDirectiveCharacter.test(name)) {
@@ -174,7 +286,7 @@ public class Policy {
 				// https://www.w3.org/TR/mixed-content/#strict-opt-in
 				if (!this.blockAllMixedContent) {
 					if (!values.isEmpty()) {
-						directiveErrorConsumer.add(Severity.Error, "The block-all-mixed-content directive does not support values", 0);
+						directiveErrorConsumer.add(ErrorKind.BlockAllMixedContentHasValues, null, 0);
 					}
 					this.blockAllMixedContent = true;
 				} else {
@@ -234,17 +346,17 @@ public class Policy {
 				// https://w3c.github.io/webappsec-csp/#directive-report-to
 				if (this.reportTo == null) {
 					if (values.isEmpty()) {
-						directiveErrorConsumer.add(Severity.Error, "The report-to directive requires a value", -1);
+						directiveErrorConsumer.add(ErrorKind.ReportToMissingValue, null, -1);
 					} else if (values.size() == 1) {
 						String token = values.get(0);
 						Optional<RFC7230Token> matched = RFC7230Token.parseRFC7230Token(token);
 						if (matched.isPresent()) {
 							this.reportTo = matched.get();
 						} else {
-							directiveErrorConsumer.add(Severity.Error, "Expecting RFC 7230 token but found \"" + token + "\"", 0);
+							directiveErrorConsumer.add(ErrorKind.ReportToInvalidToken, token, 0);
 						}
 					} else {
-						directiveErrorConsumer.add(Severity.Error, "The report-to directive requires exactly one value (found " + values.size() + ")", 1);
+						directiveErrorConsumer.add(ErrorKind.ReportToTooManyValues, values.size(), 1);
 					}
 				} else {
 					wasDupe = true;
@@ -254,7 +366,7 @@ public class Policy {
 			}
 			case "report-uri": {
 				// https://w3c.github.io/webappsec-csp/#directive-report-uri
-				directiveErrorConsumer.add(Severity.Warning,"The report-uri directive has been deprecated in favor of the new report-to directive", -1);
+				directiveErrorConsumer.add(ErrorKind.ReportUriDeprecated, null, -1);
 
 				ReportUriDirective thisDirective = new ReportUriDirective(values, directiveErrorConsumer);
 				if (this.reportUri == null) {
@@ -280,7 +392,7 @@ public class Policy {
 				// https://www.w3.org/TR/upgrade-insecure-requests/#delivery
 				if (!this.upgradeInsecureRequests) {
 					if (!values.isEmpty()) {
-						directiveErrorConsumer.add(Severity.Error, "The upgrade-insecure-requests directive does not support values", 0);
+						directiveErrorConsumer.add(ErrorKind.UpgradeInsecureRequestsHasValues, null, 0);
 					}
 					this.upgradeInsecureRequests = true;
 				} else {
@@ -291,7 +403,7 @@ public class Policy {
 			}
 			default: {
 				if (!Directive.IS_DIRECTIVE_NAME.test(name)) {
-					directiveErrorConsumer.add(Severity.Error, "Directive name " + name + " contains characters outside the range ALPHA / DIGIT / \"-\"", -1);
+					directiveErrorConsumer.add(ErrorKind.InvalidDirectiveName, name, -1);
 					newDirective = new Directive(values);
 					break;
 				}
@@ -306,7 +418,7 @@ public class Policy {
 					newDirective = thisDirective;
 					break;
 				}
-				directiveErrorConsumer.add(Severity.Warning, "Unrecognized directive " + lowcaseDirectiveName, -1);
+				directiveErrorConsumer.add(ErrorKind.UnrecognizedDirective, lowcaseDirectiveName, -1);
 				newDirective = new Directive(values);
 				break;
 			}
@@ -314,7 +426,7 @@ public class Policy {
 
 		this.directives.add(new NamedDirective(name, newDirective));
 		if (wasDupe) {
-			directiveErrorConsumer.add(Severity.Warning, "Duplicate directive " + lowcaseDirectiveName, -1);
+			directiveErrorConsumer.add(ErrorKind.DuplicateDirective, lowcaseDirectiveName, -1);
 		}
 		return newDirective;
 	}
@@ -322,6 +434,7 @@ public class Policy {
 	// Note that this removes all directives matching this name.
 	// Returns true if at least one directive was removed.
 	public boolean remove(String name) {
+		this.materializeAll();
 		boolean removed = false;
 		String lowcaseName = name.toLowerCase(Locale.ENGLISH);
 		ArrayList<NamedDirective> copy = new ArrayList<>(this.directives.size());
@@ -389,8 +502,150 @@ public class Policy {
 	}
 
 
+	// Sharing directives between policies, for FrozenPolicy and PolicyBuilder. This is only safe because those never change a shared directive in place.
+
+	// A policy with exactly these directives, which are used as they are rather than parsed again
+	static Policy ofDirectives(List<NamedDirective> directives) {
+		Policy policy = new Policy();
+		policy.directives.addAll(directives);
+		policy.indexDirectives();
+		return policy;
+	}
+
+	List<NamedDirective> namedDirectives() {
+		this.materializeAll();
+		return Collections.unmodifiableList(this.directives);
+	}
+
+	// The first directive with this name, which is the one that takes effect
+	@Nullable
+	Directive firstDirective(String name) {
+		this.materializeAll();
+		String lowcaseName = name.toLowerCase(Locale.ENGLISH);
+		for (NamedDirective existing : this.directives) {
+			if (existing.lowcaseName.equals(lowcaseName)) {
+				return existing.directive;
+			}
+		}
+		return null;
+	}
+
+	// Replaces `directive` with a copy which nothing else refers to, and returns the copy
+	Directive replaceWithCopy(Directive directive) {
+		this.materializeAll();
+		ArrayList<NamedDirective> copy = new ArrayList<>(this.directives.size());
+		Directive replacement = null;
+		for (NamedDirective existing : this.directives) {
+			if (existing.directive == directive) {
+				NamedDirective copied = existing.copy();
+				replacement = copied.directive;
+				copy.add(copied);
+			} else {
+				copy.add(existing);
+			}
+		}
+		if (replacement == null) {
+			throw new IllegalArgumentException("directive is not part of this policy");
+		}
+		this.directives = copy;
+		this.indexDirectives();
+		return replacement;
+	}
+
+	// Fills in the typed fields from `directives`, as `add` does, without parsing anything again
+	private void indexDirectives() {
+		this.baseUri = null;
+		this.blockAllMixedContent = false;
+		this.formAction = null;
+		this.frameAncestors = null;
+		this.navigateTo = null;
+		this.pluginTypes = null;
+		this.reportTo = null;
+		this.reportUri = null;
+		this.sandbox = null;
+		this.upgradeInsecureRequests = false;
+		this.fetchDirectives.clear();
+		// Only the first directive of each name takes effect, so `add` would have reported the others as duplicates and left these alone
+		for (NamedDirective named : this.directives) {
+			Directive directive = named.directive;
+			switch (named.lowcaseName) {
+				case "base-uri":
+					if (this.baseUri == null) {
+						this.baseUri = (SourceExpressionDirective) directive;
+					}
+					break;
+				case "block-all-mixed-content":
+					this.blockAllMixedContent = true;
+					break;
+				case "form-action":
+					if (this.formAction == null) {
+						this.formAction = (SourceExpressionDirective) directive;
+					}
+					break;
+				case "frame-ancestors":
+					if (this.frameAncestors == null) {
+						this.frameAncestors = (FrameAncestorsDirective) directive;
+					}
+					break;
+				case "navigate-to":
+					if (this.navigateTo == null) {
+						this.navigateTo = (SourceExpressionDirective) directive;
+					}
+					break;
+				case "plugin-types":
+					if (this.pluginTypes == null) {
+						this.pluginTypes = (PluginTypesDirective) directive;
+					}
+					break;
+				case "report-to":
+					// This mirrors `add`, including that a malformed report-to does not prevent a later one from being used
+					if (this.reportTo == null && directive.getValues().size() == 1) {
+						this.reportTo = RFC7230Token.parseRFC7230Token(directive.getValues().get(0)).orElse(null);
+					}
+					break;
+				case "report-uri":
+					if (this.reportUri == null) {
+						this.reportUri = (ReportUriDirective) directive;
+					}
+					break;
+				case "sandbox":
+					if (this.sandbox == null) {
+						this.sandbox = (SandboxDirective) directive;
+					}
+					break;
+				case "upgrade-insecure-requests":
+					this.upgradeInsecureRequests = true;
+					break;
+				default:
+					FetchDirectiveKind fetchDirectiveKind = FetchDirectiveKind.fromString(named.lowcaseName);
+					if (fetchDirectiveKind != null && directive instanceof SourceExpressionDirective) {
+						this.fetchDirectives.putIfAbsent(fetchDirectiveKind, (SourceExpressionDirective) directive);
+					}
+					break;
+			}
+		}
+	}
+
+	// Returns an immutable snapshot of this policy, which can be shared between threads and edited with a PolicyBuilder. See FrozenPolicy.
+	// The snapshot has its own copies of the directives, so later changes to this policy are not reflected in it.
+	public FrozenPolicy freeze() {
+		return new FrozenPolicy(this.copy());
+	}
+
+	// A policy with copies of this one's directives, so that changing either does not affect the other
+	Policy copy() {
+		this.materializeAll();
+		List<NamedDirective> copies = new ArrayList<>(this.directives.size());
+		for (NamedDirective directive : this.directives) {
+			copies.add(directive.copy());
+		}
+		return ofDirectives(copies);
+	}
+
+
 	@Override
 	public String toString() {
+		this.materializeAll();
 		StringBuilder out = new StringBuilder();
 		boolean first = true;
 		for (NamedDirective directive : this.directives) {
@@ -411,6 +666,7 @@ public class Policy {
 
 
 	public Optional<SourceExpressionDirective> baseUri() {
+		this.materialize(BASE_URI_SLOT);
 		return Optional.ofNullable(this.baseUri);
 	}
 
@@ -419,6 +675,7 @@ public class Policy {
 	}
 
 	public void setBlockAllMixedContent(boolean value) {
+		this.materializeAll();
 		if (this.blockAllMixedContent) {
 			if (value) {
 				return;
@@ -434,18 +691,22 @@ public class Policy {
 	}
 
 	public Optional<SourceExpressionDirective> formAction() {
+		this.materialize(FORM_ACTION_SLOT);
 		return Optional.ofNullable(this.formAction);
 	}
 
 	public Optional<FrameAncestorsDirective> frameAncestors() {
+		this.materialize(FRAME_ANCESTORS_SLOT);
 		return Optional.ofNullable(this.frameAncestors);
 	}
 
 	public Optional<SourceExpressionDirective> navigateTo() {
+		this.materialize(NAVIGATE_TO_SLOT);
 		return Optional.ofNullable(this.navigateTo);
 	}
 
 	public Optional<PluginTypesDirective> pluginTypes() {
+		this.materialize(PLUGIN_TYPES_SLOT);
 		return Optional.ofNullable(this.pluginTypes);
 	}
 
@@ -454,6 +715,7 @@ public class Policy {
 	}
 
 	public void setReportTo(RFC7230Token token) {
+		this.materializeAll();
 		if (token == null) {
 			this.remove("report-to");
 			return;
@@ -477,10 +739,12 @@ public class Policy {
 	}
 
 	public Optional<ReportUriDirective> reportUri() {
+		this.materialize(REPORT_URI_SLOT);
 		return Optional.ofNullable(this.reportUri);
 	}
 
 	public Optional<SandboxDirective> sandbox() {
+		this.materialize(SANDBOX_SLOT);
 		return Optional.ofNullable(this.sandbox);
 	}
 
@@ -489,6 +753,7 @@ public class Policy {
 	}
 
 	public void setUpgradeInsecureRequests(boolean value) {
+		this.materializeAll();
 		if (this.upgradeInsecureRequests) {
 			if (value) {
 				return;
@@ -504,6 +769,7 @@ public class Policy {
 	}
 
 	public Optional<SourceExpressionDirective> getFetchDirective(FetchDirectiveKind kind) {
+		this.materialize(kind.ordinal());
 		return Optional.ofNullable(this.fetchDirectives.get(kind));
 	}
 
@@ -511,40 +777,65 @@ public class Policy {
 	// High-level querying
 
 
+	// Returns an immutable snapshot of this policy which answers the queries below more quickly, and can be shared between threads. See CompiledPolicy.
+	public CompiledPolicy compile() {
+		return new CompiledPolicy(this);
+	}
+
+	// The memo which the fetch queries below consult, or null (the default) to always scan the source lists. See DecisionMemo.
+	@Nullable
+	public DecisionMemo getDecisionMemo() {
+		return this.decisionMemo;
+	}
+
+	public void setDecisionMemo(@Nullable DecisionMemo memo) {
+		this.decisionMemo = memo;
+	}
+
+	// The cache which checking inline sources against hash-sources consults, or null (the default) to always compute digests. See DigestCache.
+	// A policy compiled from this one keeps the cache this one had at the time.
+	@Nullable
+	public DigestCache getDigestCache() {
+		return this.digestCache;
+	}
+
+	public void setDigestCache(@Nullable DigestCache cache) {
+		this.digestCache = cache;
+	}
+
 	/*
-	For each of these arguments, if the value provided is Optional.empty(), this method will return `true` only if there is no value for the Optional.of() case of that parameter which would cause it to return `false`.
+	For each of these arguments, if the value provided is null (or TriState.Unknown), this method will return `true` only if there is no value for that parameter which would cause it to return `false`.
+	QueryablePolicy also provides each of these methods without the `Nullable` suffix, taking Optionals instead, which delegate to these.
 	Take care with `integrity`; your script can be allowed by CSP but blocked by SRI if its integrity is wrong.
 	See https://www.w3.org/TR/SRI/
 	Also note that the notion of "the URL" is a little fuzzy because there can be redirects.
 	https://w3c.github.io/webappsec-csp/#script-pre-request
 	https://w3c.github.io/webappsec-csp/#script-post-request
 	 */
-	public boolean allowsExternalScript(Optional<String> nonce, Optional<String> integrity, Optional<URLWithScheme> scriptUrl, Optional<Boolean> parserInserted, Optional<URLWithScheme> origin) {
+	public boolean allowsExternalScriptNullable(@Nullable String nonce, @Nullable String integrity, @Nullable URLWithScheme scriptUrl, TriState parserInserted, @Nullable URLWithScheme origin) {
+		this.materialize(SANDBOX_SLOT);
 		if (this.sandbox != null && !this.sandbox.allowScripts()) {
 			return false;
 		}
 		// Effective directive is "script-src-elem" per https://w3c.github.io/webappsec-csp/#effective-directive-for-a-request
-		SourceExpressionDirective directive = getGoverningDirectiveForEffectiveDirective(FetchDirectiveKind.ScriptSrcElem).orElse(null);
+		SourceExpressionDirective directive = this.governingDirective(FetchDirectiveKind.ScriptSrcElem);
 		if (directive == null) {
 			return true;
 		}
-		if (nonce.isPresent()) {
-			String actualNonce = nonce.get();
-			if (actualNonce.length() > 0 && directive.getNonces().stream().anyMatch(n -> n.base64ValuePart.equals(actualNonce))) {
-				return true;
-			}
+		// Nonce-sources are never empty, so an empty nonce matches nothing
+		if (nonce != null && directive.containsNonce(nonce)) {
+			return true;
 		}
-		if (integrity.isPresent() && !directive.getHashes().isEmpty()) {
-			String integritySources = integrity.get();
+		if (integrity != null && directive.hasHashes()) {
 			boolean bypassDueToIntegrityMatch = true;
 			boolean atLeastOneValidIntegrity = false;
 			// https://www.w3.org/TR/SRI/#parse-metadata
-			for (String source : Utils.splitOnAsciiWhitespace(integritySources)) {
+			for (String source : Utils.splitOnAsciiWhitespace(integrity)) {
 				Optional<Hash> parsedIntegritySource = Hash.parseHash("'" + source + "'");
 				if (!parsedIntegritySource.isPresent()) {
 					continue;
 				}
-				if (!directive.getHashes().contains(parsedIntegritySource.get())) {
+				if (!directive.containsHash(parsedIntegritySource.get())) {
 					bypassDueToIntegrityMatch = false;
 					break;
 				}
@@ -557,14 +848,15 @@ public class Policy {
 		if (directive.strictDynamic()) {
 			return !parserInserted.orElse(true); // if not the parameter is not supplied, we have to assume the worst case
 		}
-		if (scriptUrl.isPresent()) {
-			return doesUrlMatchSourceListInOrigin(scriptUrl.get(), directive, origin);
+		if (scriptUrl != null) {
+			return this.doesUrlMatchFetchDirective(FetchDirectiveKind.ScriptSrcElem, scriptUrl, directive, origin);
 		}
 		return false;
 	}
 
 	// https://w3c.github.io/webappsec-csp/#script-src-elem-inline
-	public boolean allowsInlineScript(Optional<String> nonce, Optional<String> source, Optional<Boolean> parserInserted) {
+	public boolean allowsInlineScriptNullable(@Nullable String nonce, @Nullable String source, TriState parserInserted) {
+		this.materialize(SANDBOX_SLOT);
 		if (this.sandbox != null && !this.sandbox.allowScripts()) {
 			return false;
 		}
@@ -572,16 +864,19 @@ public class Policy {
 	}
 
 	// https://w3c.github.io/webappsec-csp/#script-src-attr-inline
-	public boolean allowsScriptAsAttribute(Optional<String> source) {
+	public boolean allowsScriptAsAttributeNullable(@Nullable String source) {
+		this.materialize(SANDBOX_SLOT);
 		if (this.sandbox != null && !this.sandbox.allowScripts()) {
 			return false;
 		}
-		return doesElementMatchSourceListForTypeAndSource(InlineType.ScriptAttribute, Optional.empty(), source, Optional.empty());
+		return doesElementMatchSourceListForTypeAndSource(InlineType.ScriptAttribute, null, source, TriState.Unknown);
 	}
 
 	// https://w3c.github.io/webappsec-csp/#can-compile-strings
 	public boolean allowsEval() {
 		// This is done in prose, not in a table
+		this.materialize(FetchDirectiveKind.ScriptSrc.ordinal());
+		this.materialize(FetchDirectiveKind.DefaultSrc.ordinal());
 		FetchDirectiveKind governingDirective = this.fetchDirectives.containsKey(FetchDirectiveKind.ScriptSrc) ? FetchDirectiveKind.ScriptSrc : FetchDirectiveKind.DefaultSrc;
 		SourceExpressionDirective sourceList = this.fetchDirectives.get(governingDirective);
 		return sourceList == null || sourceList.unsafeEval();
@@ -591,37 +886,43 @@ public class Policy {
 	// https://w3c.github.io/webappsec-csp/#navigate-to-navigation-response
 	// Strictly speaking this requires the _response_'s CSP as well, because of frame-ancestors.
 	// But we are maybe not going to worry about that.
-	// Note: it is nonsensical to provide redirectedTo if redirected is Optional.of(false)
+	// Note: it is nonsensical to provide redirectedTo if redirected is TriState.False
 	// Note: this also does not handle `javascript:` navigation; there's an explicit API for that
-	public boolean allowsNavigation(Optional<URLWithScheme> to, Optional<Boolean> redirected, Optional<URLWithScheme> redirectedTo, Optional<URLWithScheme> origin) {
+	public boolean allowsNavigationNullable(@Nullable URLWithScheme to, TriState redirected, @Nullable URLWithScheme redirectedTo, @Nullable URLWithScheme origin) {
+		return this.allowsNavigationInOrigin(to, redirected, redirectedTo, OriginMatcher.of(origin));
+	}
+
+	// The queries which take an OriginMatcher are for PolicyInOrigin, which builds the matcher once rather than on every query
+	boolean allowsNavigationInOrigin(@Nullable URLWithScheme to, TriState redirected, @Nullable URLWithScheme redirectedTo, OriginMatcher origin) {
+		this.materialize(NAVIGATE_TO_SLOT);
 		if (this.navigateTo == null) {
 			return true;
 		}
 		if (this.navigateTo.unsafeAllowRedirects()) {
 			// if unsafe-allow-redirects is present, check `to` in non-redirect or maybe-non-redirect cases
 			if (!redirected.orElse(false)) {
-				if (!to.isPresent()) {
+				if (to == null) {
 					return false;
 				}
-				if (!doesUrlMatchSourceListInOrigin(to.get(), navigateTo, origin)) {
+				if (!doesUrlMatchSourceListInOrigin(to, navigateTo, origin)) {
 					return false;
 				}
 			}
 			// if unsafe-allow-redirects is present, check `redirectedTo` in redirect or maybe-redirect cases
 			if (redirected.orElse(true)) {
-				if (!redirectedTo.isPresent()) {
+				if (redirectedTo == null) {
 					return false;
 				}
-				if (!doesUrlMatchSourceListInOrigin(redirectedTo.get(), navigateTo, origin)) {
+				if (!doesUrlMatchSourceListInOrigin(redirectedTo, navigateTo, origin)) {
 					return false;
 				}
 			}
 		} else {
 			// if unsafe-allow-redirects is absent, always and only check `to`
-			if (!to.isPresent()) {
+			if (to == null) {
 				return false;
 			}
-			if (!doesUrlMatchSourceListInOrigin(to.get(), navigateTo, origin)) {
+			if (!doesUrlMatchSourceListInOrigin(to, navigateTo, origin)) {
 				return false;
 			}
 		}
@@ -630,92 +931,101 @@ public class Policy {
 
 	// https://w3c.github.io/webappsec-csp/#navigate-to-pre-navigate
 	// https://w3c.github.io/webappsec-csp/#navigate-to-navigation-response
-	// Note: it is nonsensical to provide redirectedTo if redirected is Optional.of(false)
-	public boolean allowsFormAction(Optional<URLWithScheme> to, Optional<Boolean> redirected, Optional<URLWithScheme> redirectedTo, Optional<URLWithScheme> origin) {
+	// Note: it is nonsensical to provide redirectedTo if redirected is TriState.False
+	public boolean allowsFormActionNullable(@Nullable URLWithScheme to, TriState redirected, @Nullable URLWithScheme redirectedTo, @Nullable URLWithScheme origin) {
+		return this.allowsFormActionInOrigin(to, redirected, redirectedTo, OriginMatcher.of(origin));
+	}
+
+	boolean allowsFormActionInOrigin(@Nullable URLWithScheme to, TriState redirected, @Nullable URLWithScheme redirectedTo, OriginMatcher origin) {
+		this.materialize(SANDBOX_SLOT);
 		if (this.sandbox != null && !this.sandbox.allowForms()) {
 			return false;
 		}
+		this.materialize(FORM_ACTION_SLOT);
 		if (this.formAction != null) {
-			if (!to.isPresent()) {
+			if (to == null) {
 				return false;
 			}
-			if (!doesUrlMatchSourceListInOrigin(to.get(), this.formAction, origin)) {
+			if (!doesUrlMatchSourceListInOrigin(to, this.formAction, origin)) {
 				return false;
 			}
 			return true;
 		} else {
 			// this isn't implemented like other fallbacks because it isn't one: form-action does not respect unsafe-allow-redirects
-			return this.allowsNavigation(to, redirected, redirectedTo, origin);
+			return this.allowsNavigationInOrigin(to, redirected, redirectedTo, origin);
 		}
 	}
 
 	// NB: the hashes (for unsafe-hashes) are supposed to include the javascript: part, per spec
-	public boolean allowsJavascriptUrlNavigation(Optional<String> source, Optional<URLWithScheme> origin) {
-		return this.allowsNavigation(Optional.of(new GUID("javascript", source.orElse(""))), Optional.of(false), Optional.empty(), origin)
-				&& this.doesElementMatchSourceListForTypeAndSource(InlineType.Navigation, Optional.empty(), source.map(s -> "javascript:" + s), Optional.of(false));
+	public boolean allowsJavascriptUrlNavigationNullable(@Nullable String source, @Nullable URLWithScheme origin) {
+		return this.allowsNavigationNullable(new GUID("javascript", source == null ? "" : source), TriState.False, null, origin)
+				&& this.doesElementMatchSourceListForTypeAndSource(InlineType.Navigation, null, source == null ? null : "javascript:" + source, TriState.False);
 	}
 
-	public boolean allowsExternalStyle(Optional<String> nonce, Optional<URLWithScheme> styleUrl, Optional<URLWithScheme> origin) {
+	public boolean allowsExternalStyleNullable(@Nullable String nonce, @Nullable URLWithScheme styleUrl, @Nullable URLWithScheme origin) {
 		// Effective directive is "script-src-elem" per https://w3c.github.io/webappsec-csp/#effective-directive-for-a-request
-		SourceExpressionDirective directive = getGoverningDirectiveForEffectiveDirective(FetchDirectiveKind.StyleSrcElem).orElse(null);
+		SourceExpressionDirective directive = this.governingDirective(FetchDirectiveKind.StyleSrcElem);
 		if (directive == null) {
 			return true;
 		}
-		if (nonce.isPresent()) {
-			String actualNonce = nonce.get();
-			if (actualNonce.length() > 0 && directive.getNonces().stream().anyMatch(n -> n.base64ValuePart.equals(actualNonce))) {
-				return true;
-			}
+		// Nonce-sources are never empty, so an empty nonce matches nothing
+		if (nonce != null && directive.containsNonce(nonce)) {
+			return true;
 		}
 		// integrity is not used: https://github.com/w3c/webappsec-csp/issues/430
-		if (styleUrl.isPresent()) {
-			return doesUrlMatchSourceListInOrigin(styleUrl.get(), directive, origin);
+		if (styleUrl != null) {
+			return this.doesUrlMatchFetchDirective(FetchDirectiveKind.StyleSrcElem, styleUrl, directive, origin);
 		}
 		return false;
 	}
 
-	public boolean allowsInlineStyle(Optional<String> nonce, Optional<String> source) {
-		return doesElementMatchSourceListForTypeAndSource(InlineType.Style, nonce, source, Optional.empty());
+	public boolean allowsInlineStyleNullable(@Nullable String nonce, @Nullable String source) {
+		return doesElementMatchSourceListForTypeAndSource(InlineType.Style, nonce, source, TriState.Unknown);
 	}
 
-	public boolean allowsStyleAsAttribute(Optional<String> source) {
-		return doesElementMatchSourceListForTypeAndSource(InlineType.StyleAttribute, Optional.empty(), source, Optional.empty());
+	public boolean allowsStyleAsAttributeNullable(@Nullable String source) {
+		return doesElementMatchSourceListForTypeAndSource(InlineType.StyleAttribute, null, source, TriState.Unknown);
 	}
 
-	public boolean allowsFrame(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
-		SourceExpressionDirective sourceList = getGoverningDirectiveForEffectiveDirective(FetchDirectiveKind.FrameSrc).orElse(null);
+	public boolean allowsFrameNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		SourceExpressionDirective sourceList = this.governingDirective(FetchDirectiveKind.FrameSrc);
 		if (sourceList == null) {
 			return true;
 		}
-		if (!source.isPresent()) {
+		if (source == null) {
 			return false;
 		}
-		return doesUrlMatchSourceListInOrigin(source.get(), sourceList, origin);
+		return this.doesUrlMatchFetchDirective(FetchDirectiveKind.FrameSrc, source, sourceList, origin);
 	}
 
-	public boolean allowsFrameAncestor(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
+	public boolean allowsFrameAncestorNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		return this.allowsFrameAncestorInOrigin(source, OriginMatcher.of(origin));
+	}
+
+	boolean allowsFrameAncestorInOrigin(@Nullable URLWithScheme source, OriginMatcher origin) {
+		this.materialize(FRAME_ANCESTORS_SLOT);
 		if (this.frameAncestors == null) {
 			return true;
 		}
-		if (!source.isPresent()) {
+		if (source == null) {
 			return false;
 		}
-		return doesUrlMatchSourceListInOrigin(source.get(), frameAncestors, origin);
+		return doesUrlMatchSourceListInOrigin(source, frameAncestors, origin);
 	}
 
 
 	// This assumes that a `ws:` or `wss:` URL is being used with `new WebSocket` specifically
-	public boolean allowsConnection(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
-		SourceExpressionDirective sourceList = getGoverningDirectiveForEffectiveDirective(FetchDirectiveKind.ConnectSrc).orElse(null);
+	public boolean allowsConnectionNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		SourceExpressionDirective sourceList = this.governingDirective(FetchDirectiveKind.ConnectSrc);
 		if (sourceList == null) {
 			return true;
 		}
-		if (!source.isPresent()) {
+		if (source == null) {
 			return false;
 		}
 		// See https://fetch.spec.whatwg.org/#concept-websocket-establish
 		// Also browsers don't implement this; see https://github.com/w3c/webappsec-csp/issues/429
-		URLWithScheme actualSource = source.get();
+		URLWithScheme actualSource = source;
 		String scheme = actualSource.scheme;
 		URLWithScheme usedSource = actualSource;
 		if (actualSource instanceof URI) {
@@ -726,114 +1036,210 @@ public class Policy {
 			}
 		}
 
-		return doesUrlMatchSourceListInOrigin(usedSource, sourceList, origin);
+		return this.doesUrlMatchFetchDirective(FetchDirectiveKind.ConnectSrc, usedSource, sourceList, origin);
 	}
 
-	public boolean allowsFont(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
-		SourceExpressionDirective sourceList = getGoverningDirectiveForEffectiveDirective(FetchDirectiveKind.FontSrc).orElse(null);
+	public boolean allowsFontNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		SourceExpressionDirective sourceList = this.governingDirective(FetchDirectiveKind.FontSrc);
 		if (sourceList == null) {
 			return true;
 		}
-		if (!source.isPresent()) {
+		if (source == null) {
 			return false;
 		}
-		return doesUrlMatchSourceListInOrigin(source.get(), sourceList, origin);
+		return this.doesUrlMatchFetchDirective(FetchDirectiveKind.FontSrc, source, sourceList, origin);
 	}
 
-	public boolean allowsImage(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
-		SourceExpressionDirective sourceList = getGoverningDirectiveForEffectiveDirective(FetchDirectiveKind.ImgSrc).orElse(null);
+	public boolean allowsImageNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		SourceExpressionDirective sourceList = this.governingDirective(FetchDirectiveKind.ImgSrc);
 		if (sourceList == null) {
 			return true;
 		}
-		if (!source.isPresent()) {
+		if (source == null) {
 			return false;
 		}
-		return doesUrlMatchSourceListInOrigin(source.get(), sourceList, origin);
+		return this.doesUrlMatchFetchDirective(FetchDirectiveKind.ImgSrc, source, sourceList, origin);
 	}
 
-	public boolean allowsApplicationManifest(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
-		SourceExpressionDirective sourceList = getGoverningDirectiveForEffectiveDirective(FetchDirectiveKind.ManifestSrc).orElse(null);
+	public boolean allowsApplicationManifestNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		SourceExpressionDirective sourceList = this.governingDirective(FetchDirectiveKind.ManifestSrc);
 		if (sourceList == null) {
 			return true;
 		}
-		if (!source.isPresent()) {
+		if (source == null) {
 			return false;
 		}
-		return doesUrlMatchSourceListInOrigin(source.get(), sourceList, origin);
+		return this.doesUrlMatchFetchDirective(FetchDirectiveKind.ManifestSrc, source, sourceList, origin);
 	}
 
-	public boolean allowsMedia(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
-		SourceExpressionDirective sourceList = getGoverningDirectiveForEffectiveDirective(FetchDirectiveKind.MediaSrc).orElse(null);
+	public boolean allowsMediaNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		SourceExpressionDirective sourceList = this.governingDirective(FetchDirectiveKind.MediaSrc);
 		if (sourceList == null) {
 			return true;
 		}
-		if (!source.isPresent()) {
+		if (source == null) {
 			return false;
 		}
-		return doesUrlMatchSourceListInOrigin(source.get(), sourceList, origin);
+		return this.doesUrlMatchFetchDirective(FetchDirectiveKind.MediaSrc, source, sourceList, origin);
 	}
 
-	public boolean allowsObject(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
-		SourceExpressionDirective sourceList = getGoverningDirectiveForEffectiveDirective(FetchDirectiveKind.ObjectSrc).orElse(null);
+	public boolean allowsObjectNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		SourceExpressionDirective sourceList = this.governingDirective(FetchDirectiveKind.ObjectSrc);
 		if (sourceList == null) {
 			return true;
 		}
-		if (!source.isPresent()) {
+		if (source == null) {
 			return false;
 		}
-		return doesUrlMatchSourceListInOrigin(source.get(), sourceList, origin);
+		return this.doesUrlMatchFetchDirective(FetchDirectiveKind.ObjectSrc, source, sourceList, origin);
 	}
 
 	// Not actually spec'd properly; see https://github.com/whatwg/fetch/issues/1008
-	public boolean allowsPrefetch(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
-		SourceExpressionDirective sourceList = getGoverningDirectiveForEffectiveDirective(FetchDirectiveKind.PrefetchSrc).orElse(null);
+	public boolean allowsPrefetchNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		SourceExpressionDirective sourceList = this.governingDirective(FetchDirectiveKind.PrefetchSrc);
 		if (sourceList == null) {
 			return true;
 		}
-		if (!source.isPresent()) {
+		if (source == null) {
 			return false;
 		}
-		return doesUrlMatchSourceListInOrigin(source.get(), sourceList, origin);
+		return this.doesUrlMatchFetchDirective(FetchDirectiveKind.PrefetchSrc, source, sourceList, origin);
 	}
 
-	public boolean allowsWorker(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
-		SourceExpressionDirective sourceList = getGoverningDirectiveForEffectiveDirective(FetchDirectiveKind.WorkerSrc).orElse(null);
+	public boolean allowsWorkerNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin) {
+		SourceExpressionDirective sourceList = this.governingDirective(FetchDirectiveKind.WorkerSrc);
 		if (sourceList == null) {
 			return true;
 		}
-		if (!source.isPresent()) {
+		if (source == null) {
 			return false;
 		}
-		return doesUrlMatchSourceListInOrigin(source.get(), sourceList, origin);
+		return this.doesUrlMatchFetchDirective(FetchDirectiveKind.WorkerSrc, source, sourceList, origin);
 	}
 
-	public boolean allowsPlugin(Optional<MediaType> mediaType) {
+	public boolean allowsPluginNullable(@Nullable MediaType mediaType) {
+		this.materialize(PLUGIN_TYPES_SLOT);
 		if (this.pluginTypes == null) {
 			return true;
 		}
-		if (!mediaType.isPresent()) {
+		if (mediaType == null) {
+			return false;
+		}
+		return this.pluginTypes.getMediaTypes().contains(mediaType);
+	}
+
+
+	// Resolves the governing directive for each kind of fetch in the batch once, rather than once per URL, and checks the URLs which share a directive together
+	@Override
+	@Nonnull
+	public BitSet allowsUrls(FetchDirectiveKind[] kinds, URLWithScheme[] urls, @Nullable URLWithScheme origin, @Nullable ForkJoinPool pool) {
+		UrlBatch.checkArguments(kinds, urls);
+		// All materialization happens here, before any work is split across threads
+		this.materialize(SANDBOX_SLOT);
+		boolean scriptsSandboxed = this.sandbox != null && !this.sandbox.allowScripts();
+		// Each kind of fetch is resolved to its governing directive once, and kinds which share a directive share a group
+		FetchDirectiveKind[] allKinds = FetchDirectiveKind.values();
+		SourceExpressionDirective[] governing = new SourceExpressionDirective[allKinds.length];
+		int[] groupOfKind = new int[allKinds.length];
+		Arrays.fill(groupOfKind, -1);
+		SourceExpressionDirective[] groupDirectives = new SourceExpressionDirective[allKinds.length];
+		int groupCount = 0;
+		int[] groups = new int[kinds.length];
+		for (int i = 0; i < kinds.length; ++i) {
+			int kind = kinds[i].ordinal();
+			if (groupOfKind[kind] == -1) {
+				SourceExpressionDirective directive = this.governingDirective(kinds[i]);
+				governing[kind] = directive;
+				int group = 0;
+				while (group < groupCount && groupDirectives[group] != directive) {
+					++group;
+				}
+				if (group == groupCount) {
+					groupDirectives[groupCount++] = directive;
+				}
+				groupOfKind[kind] = group;
+			}
+			groups[i] = groupOfKind[kind];
+		}
+		DecisionMemo memo = this.decisionMemo;
+		OriginMatcher matcher = OriginMatcher.of(origin);
+		return UrlBatch.evaluate(UrlBatch.groupBy(groups, groupCount), i -> allowsUrlWithDirective(kinds[i], governing[kinds[i].ordinal()], urls[i], matcher, scriptsSandboxed, memo), pool);
+	}
+
+	// allowsUrl, for PolicyInOrigin; `kind` must be the effective directive of a fetch
+	boolean allowsUrlInOrigin(FetchDirectiveKind kind, @Nullable URLWithScheme url, OriginMatcher origin) {
+		this.materialize(SANDBOX_SLOT);
+		boolean scriptsSandboxed = this.sandbox != null && !this.sandbox.allowScripts();
+		return allowsUrlWithDirective(kind, this.governingDirective(kind), url, origin, scriptsSandboxed, this.decisionMemo);
+	}
+
+	// allowsUrl, given the governing directive; this has to agree with the individual methods above
+	private static boolean allowsUrlWithDirective(FetchDirectiveKind kind, @Nullable SourceExpressionDirective directive, @Nullable URLWithScheme url, OriginMatcher origin, boolean scriptsSandboxed, @Nullable DecisionMemo memo) {
+		if (kind == FetchDirectiveKind.ScriptSrcElem) {
+			if (scriptsSandboxed) {
+				return false;
+			}
+			if (directive != null && directive.strictDynamic()) {
+				// Whether the script is parser-inserted is not known, so assume the worst, as allowsExternalScript does
+				return false;
+			}
+		}
+		if (directive == null) {
+			return true;
+		}
+		if (url == null) {
 			return false;
 		}
-		return this.pluginTypes.getMediaTypes().contains(mediaType.get());
+		if (kind == FetchDirectiveKind.ConnectSrc && url instanceof URI) {
+			// See allowsConnection
+			if (url.scheme.equals("ws")) {
+				url = new URI("http", url.host, url.port, url.path);
+			} else if (url.scheme.equals("wss")) {
+				url = new URI("https", url.host, url.port, url.path);
+			}
+		}
+		return doesUrlMatchFetchDirective(memo, kind, url, directive, origin);
 	}
 
+	// doesUrlMatchSourceListInOrigin, through the memo if there is one and the decision cannot depend on the URL's path
+	private boolean doesUrlMatchFetchDirective(FetchDirectiveKind effectiveDirective, URLWithScheme url, SourceExpressionDirective directive, @Nullable URLWithScheme origin) {
+		DecisionMemo memo = this.decisionMemo;
+		if (memo == null || directive.getHostIndex().hasPaths()) {
+			return doesUrlMatchSourceListInOrigin(url, directive, origin);
+		}
+		// The memo is keyed by the origin itself, so a hit does not need a matcher
+		return memo.matches(effectiveDirective, directive, url, origin);
+	}
+
+	private static boolean doesUrlMatchFetchDirective(@Nullable DecisionMemo memo, FetchDirectiveKind effectiveDirective, URLWithScheme url, SourceExpressionDirective directive, OriginMatcher origin) {
+		if (memo == null || directive.getHostIndex().hasPaths()) {
+			return doesUrlMatchSourceListInOrigin(url, directive, origin);
+		}
+		return memo.matches(effectiveDirective, directive, url, origin.origin);
+	}
 
 	// https://w3c.github.io/webappsec-csp/#should-directive-execute
 	public Optional<SourceExpressionDirective> getGoverningDirectiveForEffectiveDirective(FetchDirectiveKind kind) {
+		return Optional.ofNullable(this.governingDirective(kind));
+	}
+
+	@Nullable
+	private SourceExpressionDirective governingDirective(FetchDirectiveKind kind) {
 		for (FetchDirectiveKind candidate : FetchDirectiveKind.getFetchDirectiveFallbackList(kind)) {
+			this.materialize(candidate.ordinal());
 			SourceExpressionDirective list = this.fetchDirectives.get(candidate);
 			if (list != null) {
-				return Optional.of(list);
+				return list;
 			}
 		}
-		return Optional.empty();
+		return null;
 	}
 
 	// https://w3c.github.io/webappsec-csp/#directive-inline-check
 	// https://w3c.github.io/webappsec-csp/#should-block-inline specifies the first four values
 	// https://w3c.github.io/webappsec-csp/#should-block-navigation-request specifies "navigation", used for `javascript:` urls
 	// https://w3c.github.io/webappsec-csp/#effective-directive-for-inline-check
-	private enum InlineType {
+	enum InlineType {
 		Script(FetchDirectiveKind.ScriptSrcElem),
 		ScriptAttribute(FetchDirectiveKind.ScriptSrcAttr),
 		Style(FetchDirectiveKind.StyleSrcElem),
@@ -849,63 +1255,25 @@ public class Policy {
 
 	// Note: this assumes the element is nonceable. See https://w3c.github.io/webappsec-csp/#is-element-nonceable
 	// https://w3c.github.io/webappsec-csp/#match-element-to-source-list
-	private boolean doesElementMatchSourceListForTypeAndSource(InlineType type, Optional<String> nonce, Optional<String> source, Optional<Boolean> parserInserted) {
-		SourceExpressionDirective directive = getGoverningDirectiveForEffectiveDirective(type.effectiveDirective).orElse(null);
+	private boolean doesElementMatchSourceListForTypeAndSource(InlineType type, @Nullable String nonce, @Nullable String source, TriState parserInserted) {
+		SourceExpressionDirective directive = this.governingDirective(type.effectiveDirective);
 		if (directive == null) {
 			return true;
 		}
 		// https://w3c.github.io/webappsec-csp/#allow-all-inline
-		boolean allowAllInline = directive.getNonces().isEmpty() && directive.getHashes().isEmpty()
+		boolean allowAllInline = !directive.hasNonces() && !directive.hasHashes()
 				&& !((type == InlineType.Script || type == InlineType.ScriptAttribute || type == InlineType.Navigation) && directive.strictDynamic())
 				&& directive.unsafeInline();
 		if (allowAllInline) {
 			return true;
 		}
-		if (nonce.isPresent()) {
-			String actualNonce = nonce.get();
-			if (actualNonce.length() > 0 && directive.getNonces().stream().anyMatch(n -> n.base64ValuePart.equals(actualNonce))) {
-				return true;
-			}
+		// Nonce-sources are never empty, so an empty nonce matches nothing
+		if (nonce != null && directive.containsNonce(nonce)) {
+			return true;
 		}
-		if (source.isPresent() && !directive.getHashes().isEmpty() && (type == InlineType.Script || type == InlineType.Style || directive.unsafeHashes())) {
-			byte[] actualSource = source.get().getBytes(StandardCharsets.UTF_8);
-			Base64.Encoder base64encoder = Base64.getEncoder();
-			String actualSha256 = null;
-			String actualSha384 = null;
-			String actualSha512 = null;
-			try {
-				for (Hash hash : directive.getHashes()) {
-					switch (hash.algorithm) {
-						case SHA256:
-							if (actualSha256 == null) {
-								actualSha256 = base64encoder.encodeToString(MessageDigest.getInstance("SHA-256").digest(actualSource));
-							}
-							if (actualSha256.equals(normalizeBase64Url(hash.base64ValuePart))) {
-								return true;
-							}
-							break;
-						case SHA384:
-							if (actualSha384 == null) {
-								actualSha384 = base64encoder.encodeToString(MessageDigest.getInstance("SHA-384").digest(actualSource));
-							}
-							if (actualSha384.equals(normalizeBase64Url(hash.base64ValuePart))) {
-								return true;
-							}
-							break;
-						case SHA512:
-							if (actualSha512 == null) {
-								actualSha512 = base64encoder.encodeToString(MessageDigest.getInstance("SHA-512").digest(actualSource));
-							}
-							if (actualSha512.equals(normalizeBase64Url(hash.base64ValuePart))) {
-								return true;
-							}
-							break;
-						default:
-							throw new IllegalArgumentException("Unknown hash algorithm " + hash.algorithm);
-					}
-				}
-			} catch (NoSuchAlgorithmException e) {
-				throw new RuntimeException(e);
+		if (source != null && directive.hasHashes() && (type == InlineType.Script || type == InlineType.Style || directive.unsafeHashes())) {
+			if (directive.getHashIndex().matches(source, this.digestCache)) {
+				return true;
 			}
 		}
 		// This is not per spec, but matches implementations and the spec author's intent: https://github.com/w3c/webappsec-csp/issues/426
@@ -915,72 +1283,65 @@ public class Policy {
 		return false;
 	}
 
-	private static String normalizeBase64Url(String input) {
-		return input.replace('-', '+').replace('_', '/');
-	}
-
 	// https://w3c.github.io/webappsec-csp/#match-url-to-source-list
 	public static boolean doesUrlMatchSourceListInOrigin(URLWithScheme url, HostSourceDirective list, Optional<URLWithScheme> origin) {
+		return doesUrlMatchSourceListInOrigin(url, list, origin.orElse(null));
+	}
+
+	// The forms taking a nullable origin or a matcher are package-private, so that a call with a literal null origin still resolves to the public one
+	static boolean doesUrlMatchSourceListInOrigin(URLWithScheme url, HostSourceDirective list, @Nullable URLWithScheme origin) {
+		return doesUrlMatchSourceListInOrigin(url, list, OriginMatcher.of(origin));
+	}
+
+	static boolean doesUrlMatchSourceListInOrigin(URLWithScheme url, HostSourceDirective list, OriginMatcher origin) {
 		String urlScheme = url.scheme;
-		if (list.star()) {
-			// https://fetch.spec.whatwg.org/#network-scheme
-			// Note that "ws" and "wss" are _not_ network schemes
-			if (Objects.equals(urlScheme, "ftp") || Objects.equals(urlScheme, "http") || Objects.equals(urlScheme, "https")) {
-				return true;
-			}
-			if (origin.isPresent() && Objects.equals(urlScheme, origin.get().scheme)) {
-				return true;
-			}
+		if (list.star() && origin.starMatches(urlScheme)) {
+			return true;
 		}
-		for (Scheme scheme : list.getSchemes()) {
-			if (schemePartMatches(scheme.value, urlScheme)) {
+		// Indexed rather than iterated, so that the query does not allocate
+		List<Scheme> schemes = list.getSchemes();
+		for (int i = 0; i < schemes.size(); ++i) {
+			if (schemePartMatches(schemes.get(i).value, urlScheme)) {
 				return true;
 			}
 		}
-		for (Host expression : list.getHosts()) {
-			String scheme = expression.scheme;
-			if (scheme != null) {
-				if (!schemePartMatches(scheme, urlScheme)) {
-					continue;
-				}
-			} else {
-				if (!origin.isPresent() || !schemePartMatches(origin.get().scheme, urlScheme)) {
-					continue;
-				}
-			}
-			if (url.host == null) {
-				continue;
-			}
-			if (!hostPartMatches(expression.host, url.host)) {
-				continue;
-			}
-			// url.port is non-null whenever url.host is
-			if (!portPartMatches(expression.port, url.port, urlScheme)) {
-				continue;
-			}
-			if (!pathPartMatches(expression.path, url.path)) {
-				continue;
-			}
+		// 'self' is checked before the host-sources only because it is cheaper; the order does not affect the result
+		if (list.self() && origin.selfMatches(url)) {
 			return true;
 		}
-		if (list.self()) {
-			if (origin.isPresent()) {
-				URLWithScheme actualOrigin = origin.get();
-				String originScheme = actualOrigin.scheme;
-				if (
-						Objects.equals(actualOrigin.host, url.host)
-						&& (Objects.equals(actualOrigin.port, url.port) || Objects.equals(actualOrigin.port, URI.defaultPortForProtocol(originScheme)) && Objects.equals(url.port, URI.defaultPortForProtocol(urlScheme)))
-						&& (urlScheme.equals("https") || urlScheme.equals("wss") || originScheme.equals("http") && (urlScheme.equals("http") || urlScheme.equals("ws")))
-				) {
-					return true;
-				}
-			}
+		return list.getHostIndex().matches(url, origin);
+	}
+
+	// The pieces of doesUrlMatchSourceListInOrigin are shared with CompiledPolicy and HostIndex, so that they cannot disagree; the parts which depend only on the origin are in OriginMatcher
+
+	static boolean hostSourceMatches(Host expression, URLWithScheme url, OriginMatcher origin) {
+		if (!hostSourceSchemeMatches(expression, url.scheme, origin)) {
+			return false;
 		}
-		return false;
+		if (url.host == null) {
+			return false;
+		}
+		if (!hostPartMatches(expression, url.host)) {
+			return false;
+		}
+		return portAndPathPartsMatch(expression, url);
+	}
+
+	static boolean hostSourceSchemeMatches(Host expression, String urlScheme, OriginMatcher origin) {
+		String scheme = expression.scheme;
+		if (scheme != null) {
+			return schemePartMatches(scheme, urlScheme);
+		}
+		return origin.schemelessHostMatches(urlScheme);
+	}
+
+	static boolean portAndPathPartsMatch(Host expression, URLWithScheme url) {
+		// url.port is non-null whenever url.host is
+		return portPartMatches(expression.port, url.port, url.scheme) && pathPartMatches(expression, url.path);
 	}
 
 	// https://w3c.github.io/webappsec-csp/#scheme-part-match
-	private static boolean schemePartMatches(String A, String B) {
+	static boolean schemePartMatches(String A, String B) {
 		// Assumes inputs are already lowcased
 		return A.equals(B)
 				|| A.equals("http") && B.equals("https")
@@ -989,23 +1350,19 @@ public class Policy {
 	}
 
 	// https://w3c.github.io/webappsec-csp/#host-part-match
-	private static boolean hostPartMatches(String A, String B) {
-		if (A.startsWith("*")) {
-			String remaining = A.substring(1);
+	static boolean hostPartMatches(Host A, String B) {
+		String host = A.host;
+		if (host.startsWith("*")) {
+			String remaining = host.substring(1);
 			return B.toLowerCase(Locale.ENGLISH).endsWith(remaining.toLowerCase(Locale.ENGLISH));
 		}
 
-		if (!A.equalsIgnoreCase(B)) {
+		if (!host.equalsIgnoreCase(B)) {
 			return false;
 		}
 
-		Matcher IPv4Matcher = Constants.IPv4address.matcher(A);
-		Matcher IPv6Matcher = Constants.IPv6addressWithOptionalBracket.matcher(A);
-		Matcher IPv6LoopbackMatcher = Constants.IPV6loopback.matcher(A);
-		if ((IPv4Matcher.find() && !A.equals("127.0.0.1")) || IPv6Matcher.find() || IPv6LoopbackMatcher.find()) {
-			return false;
-		}
-		return true;
+		// Host-sources which are IP addresses never match anything, except for 127.0.0.1
+		return A.kind.isMatchable();
 	}
 
 	// https://w3c.github.io/webappsec-csp/#port-part-matches
@@ -1026,81 +1383,182 @@ public class Policy {
 	}
 
 	// https://w3c.github.io/webappsec-csp/#path-part-match
-	private static boolean pathPartMatches(String pathA, String pathB) {
-		if (pathA == null) pathA = "";
-		if (pathB == null) pathB = "";
+	private static boolean pathPartMatches(Host A, String pathB) {
+		HostSourcePath path = A.parsedPath;
+		return path == null || path.matches(pathB);
+	}
 
-		if (pathA.isEmpty()) {
-			return true;
-		}
 
-		if (pathA.equals("/") && pathB.isEmpty()) {
-			return true;
+	// Utilities and helper classes
+
+	static void enforceAscii(String s) {
+		for (int i = 0; i < s.length(); ++i) {
+			if (s.charAt(i) > 0x7F) {
+				throw new IllegalArgumentException("string is not ascii: \"" + s + "\"");
+			}
 		}
+	}
 
-		boolean exactMatch = !pathA.endsWith("/");
 
-		List<String> pathListA = Utils.strictlySplit(pathA, '/');
-		List<String> pathListB = Utils.strictlySplit(pathB, '/');
+	// Slots for materialize: fetch directives use their ordinal, and the other directives which we keep track of follow those
+	private static final FetchDirectiveKind[] FETCH_DIRECTIVE_KINDS = FetchDirectiveKind.values();
+	private static final int BASE_URI_SLOT = FETCH_DIRECTIVE_KINDS.length;
+	private static final int FORM_ACTION_SLOT = BASE_URI_SLOT + 1;
+	private static final int FRAME_ANCESTORS_SLOT = BASE_URI_SLOT + 2;
+	private static final int NAVIGATE_TO_SLOT = BASE_URI_SLOT + 3;
+	private static final int PLUGIN_TYPES_SLOT = BASE_URI_SLOT + 4;
+	private static final int REPORT_URI_SLOT = BASE_URI_SLOT + 5;
+	private static final int SANDBOX_SLOT = BASE_URI_SLOT + 6;
+	private static final int SLOT_COUNT = BASE_URI_SLOT + 7;
 
-		if (pathListA.size() > pathListB.size()) {
-			return false;
+	private static int slotFor(String lowcaseName) {
+		switch (lowcaseName) {
+			case "base-uri":
+				return BASE_URI_SLOT;
+			case "form-action":
+				return FORM_ACTION_SLOT;
+			case "frame-ancestors":
+				return FRAME_ANCESTORS_SLOT;
+			case "navigate-to":
+				return NAVIGATE_TO_SLOT;
+			case "plugin-types":
+				return PLUGIN_TYPES_SLOT;
+			case "report-uri":
+				return REPORT_URI_SLOT;
+			case "sandbox":
+				return SANDBOX_SLOT;
+			default: {
+				FetchDirectiveKind fetchDirectiveKind = FetchDirectiveKind.fromString(lowcaseName);
+				return fetchDirectiveKind == null ? -1 : fetchDirectiveKind.ordinal();
+			}
 		}
+	}
 
-		if (exactMatch && pathListA.size() != pathListB.size()) {
-			return false;
+	// Fills in the field for the given slot from the first directive of that kind, if the policy was parsed lazily and that has not happened yet
+	private void materialize(int slot) {
+		if (this.pending == null) {
+			return;
 		}
-
-		if (!exactMatch) {
-			pathListA.remove(pathListA.size() - 1);
+		int directive = this.pending.takeFirstOfKind(slot);
+		if (directive == -1) {
+			return;
 		}
-
-		Iterator<String> it1 = pathListA.iterator();
-		Iterator<String> it2 = pathListB.iterator();
-
-		while (it1.hasNext()) {
-			String a = Utils.decodeString(it1.next());
-			String b = Utils.decodeString(it2.next());
-			if (!a.equals(b)) {
-				return false;
-			}
+		Directive materialized = this.pending.materialize(directive);
+		if (slot < BASE_URI_SLOT) {
+			this.fetchDirectives.put(FETCH_DIRECTIVE_KINDS[slot], (SourceExpressionDirective) materialized);
+		} else if (slot == BASE_URI_SLOT) {
+			this.baseUri = (SourceExpressionDirective) materialized;
+		} else if (slot == FORM_ACTION_SLOT) {
+			this.formAction = (SourceExpressionDirective) materialized;
+		} else if (slot == FRAME_ANCESTORS_SLOT) {
+			this.frameAncestors = (FrameAncestorsDirective) materialized;
+		} else if (slot == NAVIGATE_TO_SLOT) {
+			this.navigateTo = (SourceExpressionDirective) materialized;
+		} else if (slot == PLUGIN_TYPES_SLOT) {
+			this.pluginTypes = (PluginTypesDirective) materialized;
+		} else if (slot == REPORT_URI_SLOT) {
+			this.reportUri = (ReportUriDirective) materialized;
+		} else {
+			this.sandbox = (SandboxDirective) materialized;
 		}
-		return true;
 	}
 
-
-	// Utilities and helper classes
-
-	static void enforceAscii(String s) {
-		if (!StandardCharsets.US_ASCII.newEncoder().canEncode(s)) {
-			throw new IllegalArgumentException("string is not ascii: \"" + s + "\"");
+	// Turns a lazily parsed policy into an ordinary one, reusing any directives which have already been handed out
+	private void materializeAll() {
+		if (this.pending == null) {
+			return;
+		}
+		for (int slot = 0; slot < SLOT_COUNT; ++slot) {
+			this.materialize(slot);
+		}
+		for (int directive = this.pending.start; directive < this.pending.end; ++directive) {
+			this.directives.add(new NamedDirective(this.pending.tokenizer.directiveName(directive), this.pending.materialize(directive)));
 		}
+		this.pending = null;
 	}
 
-	private static String stripLeadingWhitespace(String string) {
-		return string.replaceFirst("^[" + Constants.WHITESPACE_CHARS + "]+", "");
-	}
+	private static class PendingDirectives {
+		final PolicyTokenizer tokenizer;
+		final int start;
+		final int end;
+		private final String[] lowcaseNames;
+		private final Directive[] materialized;
+		private final int[] firstOfKind = new int[SLOT_COUNT];
+
+		private PendingDirectives(PolicyTokenizer tokenizer, int start, int end) {
+			this.tokenizer = tokenizer;
+			this.start = start;
+			this.end = end;
+			this.lowcaseNames = new String[end - start];
+			this.materialized = new Directive[end - start];
+			Arrays.fill(this.firstOfKind, -1);
+		}
+
+		String lowcaseName(int directive) {
+			String lowcaseName = this.lowcaseNames[directive - this.start];
+			if (lowcaseName == null) {
+				lowcaseName = this.tokenizer.directiveName(directive).toLowerCase(Locale.ENGLISH);
+				this.lowcaseNames[directive - this.start] = lowcaseName;
+			}
+			return lowcaseName;
+		}
 
-	private static String stripTrailingWhitespace(String string) {
-		return string.replaceAll("[" + Constants.WHITESPACE_CHARS + "]+$", "");
-	}
+		void recordIfFirstOfItsKind(int directive) {
+			int slot = slotFor(this.lowcaseName(directive));
+			if (slot != -1 && this.firstOfKind[slot] == -1) {
+				this.firstOfKind[slot] = directive;
+			}
+		}
 
-	private static boolean containsLeadingWhitespace(String string) {
-		Matcher matcher = Pattern.compile("[" + Constants.WHITESPACE_CHARS + "]+").matcher(string);
-		return matcher.find() && matcher.start() == 0;
-	}
+		// Returns the first directive of this kind, or -1 if there is none or it has already been taken
+		int takeFirstOfKind(int slot) {
+			int directive = this.firstOfKind[slot];
+			this.firstOfKind[slot] = -1;
+			return directive;
+		}
 
-	@Nonnull
-	private static String collect(String input, String regex) {
-		Matcher matcher = Pattern.compile(regex).matcher(input);
-		if (!matcher.find() || matcher.start() != 0) {
-			return "";
+		// This builds the same kind of Directive as `add` would, but does not report anything
+		Directive materialize(int directive) {
+			Directive existing = this.materialized[directive - this.start];
+			if (existing != null) {
+				return existing;
+			}
+			List<String> values = this.tokenizer.directiveValues(directive);
+			Directive.DirectiveErrorConsumer errors = Directive.DirectiveErrorConsumer.ignored;
+			String lowcaseName = this.lowcaseName(directive);
+			Directive result;
+			switch (lowcaseName) {
+				case "base-uri":
+				case "form-action":
+				case "navigate-to":
+					result = new SourceExpressionDirective(values, errors);
+					break;
+				case "frame-ancestors":
+					result = new FrameAncestorsDirective(values, errors);
+					break;
+				case "plugin-types":
+					result = new PluginTypesDirective(values, errors);
+					break;
+				case "report-uri":
+					result = new ReportUriDirective(values, errors);
+					break;
+				case "sandbox":
+					result = new SandboxDirective(values, errors);
+					break;
+				default:
+					if (FetchDirectiveKind.fromString(lowcaseName) != null) {
+						result = new SourceExpressionDirective(values, errors);
+					} else {
+						result = new Directive(values);
+					}
+					break;
+			}
+			this.materialized[directive - this.start] = result;
+			return result;
 		}
-		return input.substring(0, matcher.end());
 	}
 
-
-	private static class NamedDirective {
+	static class NamedDirective {
 		final String name;
 		final Directive directive;
 		final String lowcaseName;
@@ -1110,6 +1568,27 @@ public class Policy {
 			this.directive = directive;
 			this.lowcaseName = this.name.toLowerCase(Locale.ENGLISH);
 		}
+
+		// The same directive, with the same type and values, but which nothing else refers to. Its values were checked when it was first created, so errors are not reported again.
+		NamedDirective copy() {
+			List<String> values = this.directive.getValues();
+			Directive.DirectiveErrorConsumer ignored = Directive.DirectiveErrorConsumer.ignored;
+			Directive copy;
+			if (this.directive instanceof SourceExpressionDirective) {
+				copy = new SourceExpressionDirective(values, ignored);
+			} else if (this.directive instanceof FrameAncestorsDirective) {
+				copy = new FrameAncestorsDirective(values, ignored);
+			} else if (this.directive instanceof PluginTypesDirective) {
+				copy = new PluginTypesDirective(values, ignored);
+			} else if (this.directive instanceof ReportUriDirective) {
+				copy = new ReportUriDirective(values, ignored);
+			} else if (this.directive instanceof SandboxDirective) {
+				copy = new SandboxDirective(values, ignored);
+			} else {
+				copy = new Directive(values);
+			}
+			return new NamedDirective(this.name, copy);
+		}
 	}
 
 	// Info: strictly informative
@@ -1121,13 +1600,65 @@ public class Policy {
 	public interface PolicyErrorConsumer {
 		void add(Severity severity, String message, int directiveIndex, int valueIndex); // valueIndex = -1 for errors not pertaining to a value
 
-		PolicyErrorConsumer ignored = (severity, message, directiveIndex, valueIndex) -> {};
+		// See Directive.DirectiveErrorConsumer
+		default void add(ErrorKind kind, @Nullable Object detail, int directiveIndex, int valueIndex) {
+			if (!this.ignores(kind.severity)) {
+				this.add(kind.severity, kind.message(detail), directiveIndex, valueIndex);
+			}
+		}
+
+		default boolean ignores(Severity severity) {
+			return false;
+		}
+
+		PolicyErrorConsumer ignored = new PolicyErrorConsumer() {
+			@Override
+			public void add(Severity severity, String message, int directiveIndex, int valueIndex) {
+				// ignored
+			}
+
+			@Override
+			public void add(ErrorKind kind, @Nullable Object detail, int directiveIndex, int valueIndex) {
+				// ignored
+			}
+
+			@Override
+			public boolean ignores(Severity severity) {
+				return true;
+			}
+		};
 	}
 
 	@FunctionalInterface
 	public interface PolicyListErrorConsumer {
 		void add(Severity severity, String message, int policyIndex, int directiveIndex, int valueIndex); // valueIndex = -1 for errors not pertaining to a value
 
-		PolicyListErrorConsumer ignored = (severity, message, policyIndex, directiveIndex, valueIndex) -> {};
+		// See Directive.DirectiveErrorConsumer
+		default void add(ErrorKind kind, @Nullable Object detail, int policyIndex, int directiveIndex, int valueIndex) {
+			if (!this.ignores(kind.severity)) {
+				this.add(kind.severity, kind.message(detail), policyIndex, directiveIndex, valueIndex);
+			}
+		}
+
+		default boolean ignores(Severity severity) {
+			return false;
+		}
+
+		PolicyListErrorConsumer ignored = new PolicyListErrorConsumer() {
+			@Override
+			public void add(Severity severity, String message, int policyIndex, int directiveIndex, int valueIndex) {
+				// ignored
+			}
+
+			@Override
+			public void add(ErrorKind kind, @Nullable Object detail, int policyIndex, int directiveIndex, int valueIndex) {
+				// ignored
+			}
+
+			@Override
+			public boolean ignores(Severity severity) {
+				return true;
+			}
+		};
 	}
 }
@@ -0,0 +1,107 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.Directives.SourceExpressionDirective;
+import com.shapesecurity.salvation2.Values.RFC7230Token;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+// Collects edits to a FrozenPolicy and produces a new snapshot with `build`, leaving the original as it is.
+// The methods correspond to Policy's manipulation APIs. Directives start out shared with the snapshot the builder came from, and each one is copied the first time it is edited, so building after a few edits does not copy the rest.
+// Builders are not thread-safe; the snapshots they build are.
+public final class PolicyBuilder {
+	private final Policy working;
+	// The directives this builder has created or copied since it last built a snapshot. Any other directive may be shared with a snapshot, so it has to be copied before it is changed.
+	private final Set<Directive> owned = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	// A builder for a policy with no directives
+	public PolicyBuilder() {
+		this.working = Policy.ofDirectives(Collections.emptyList());
+	}
+
+	// Shares `from`'s directives, which must never be changed in place
+	PolicyBuilder(Policy from) {
+		this.working = Policy.ofDirectives(from.namedDirectives());
+	}
+
+	// See Policy.add
+	@Nonnull
+	public PolicyBuilder add(String name, List<String> values, Directive.DirectiveErrorConsumer directiveErrorConsumer) {
+		this.owned.add(this.working.add(name, values, directiveErrorConsumer));
+		return this;
+	}
+
+	// See Policy.remove
+	@Nonnull
+	public PolicyBuilder remove(String name) {
+		this.working.remove(name);
+		return this;
+	}
+
+	@Nonnull
+	public PolicyBuilder setBlockAllMixedContent(boolean value) {
+		this.working.setBlockAllMixedContent(value);
+		return this;
+	}
+
+	@Nonnull
+	public PolicyBuilder setReportTo(@Nullable RFC7230Token token) {
+		// Policy.setReportTo changes an existing report-to directive in place
+		Directive existing = this.working.firstDirective("report-to");
+		if (token != null && existing != null) {
+			this.ownedCopyOf(existing);
+		}
+		this.working.setReportTo(token);
+		return this;
+	}
+
+	@Nonnull
+	public PolicyBuilder setUpgradeInsecureRequests(boolean value) {
+		this.working.setUpgradeInsecureRequests(value);
+		return this;
+	}
+
+	// Applies `edit` to the fetch directive of this kind, e.g. to add a host to it. Throws if there is none.
+	@Nonnull
+	public PolicyBuilder editFetchDirective(FetchDirectiveKind kind, Consumer<? super SourceExpressionDirective> edit) {
+		return this.editDirective(kind.repr, SourceExpressionDirective.class, edit);
+	}
+
+	// Applies `edit` to the first directive with this name, which is the one that takes effect. Throws if there is none, or if it is not a `type`.
+	// `edit` must not keep the directive: once this builder builds a snapshot, the directive may be shared with it.
+	@Nonnull
+	public <T extends Directive> PolicyBuilder editDirective(String name, Class<T> type, Consumer<? super T> edit) {
+		Directive existing = this.working.firstDirective(name);
+		if (existing == null) {
+			throw new IllegalArgumentException("there is no " + name + " directive");
+		}
+		if (!type.isInstance(existing)) {
+			throw new IllegalArgumentException("the " + name + " directive is not a " + type.getSimpleName());
+		}
+		edit.accept(type.cast(this.ownedCopyOf(existing)));
+		return this;
+	}
+
+	// A snapshot of the policy as edited so far. The builder can go on being used afterwards; that does not affect the snapshot.
+	@Nonnull
+	public FrozenPolicy build() {
+		FrozenPolicy built = new FrozenPolicy(Policy.ofDirectives(this.working.namedDirectives()));
+		// Every directive is now shared with `built`
+		this.owned.clear();
+		return built;
+	}
+
+	private Directive ownedCopyOf(Directive directive) {
+		if (this.owned.contains(directive)) {
+			return directive;
+		}
+		Directive copy = this.working.replaceWithCopy(directive);
+		this.owned.add(copy);
+		return copy;
+	}
+}
@@ -0,0 +1,176 @@
+package com.shapesecurity.salvation2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// A bounded, thread-safe cache of compiled policy lists, keyed by the serialized header, for servers which see the same headers over and over.
+// Entries are evicted least-recently-used first once there are more than `maxEntries` of them.
+// The cached lists are immutable snapshots, so they can be shared between callers and threads; use Policy.parseSerializedCSPList if you need policies you can modify.
+public final class PolicyCache {
+	private final int maxEntries;
+
+	// Keys are either Strings or heap ByteBuffers which nothing else holds on to; ByteBuffer's equals and hashCode are by content, so a direct buffer finds the entry for a heap buffer with the same bytes
+	private final LinkedHashMap<Object, Entry> entries;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	public PolicyCache(int maxEntries) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be positive");
+		}
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Object, Entry> eldest) {
+				if (this.size() > PolicyCache.this.maxEntries) {
+					++PolicyCache.this.evictions;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	// Equivalent to Policy.parseSerializedCSPList followed by PolicyList.compile, except that the result may be shared with other callers.
+	// Any warnings or errors are reported every time, including when the header was already in the cache.
+	@Nonnull
+	public CompiledPolicyList parseSerializedCSPList(String serialized, Policy.PolicyListErrorConsumer policyListErrorConsumer) {
+		Entry entry = this.get(serialized);
+		if (entry == null) {
+			entry = this.put(serialized, Entry.parse(serialized));
+		}
+		entry.replayErrors(policyListErrorConsumer);
+		return entry.policyList;
+	}
+
+	@Nonnull
+	public CompiledPolicyList parseSerializedCSPList(byte[] serialized, int offset, int length, Policy.PolicyListErrorConsumer policyListErrorConsumer) {
+		if (offset < 0 || length < 0 || offset > serialized.length - length) {
+			throw new IndexOutOfBoundsException("offset " + offset + " and length " + length + " are out of bounds for an array of length " + serialized.length);
+		}
+		return this.parseSerializedCSPList(ByteBuffer.wrap(serialized, offset, length), policyListErrorConsumer);
+	}
+
+	// The bytes between the buffer's position and its limit are the header; the buffer's position is not changed
+	@Nonnull
+	public CompiledPolicyList parseSerializedCSPList(ByteBuffer serialized, Policy.PolicyListErrorConsumer policyListErrorConsumer) {
+		Entry entry = this.get(serialized);
+		if (entry == null) {
+			// The caller may reuse their buffer, so the key needs its own copy
+			byte[] copy = new byte[serialized.remaining()];
+			serialized.duplicate().get(copy);
+			entry = this.put(ByteBuffer.wrap(copy), Entry.parse(new AsciiBytes(copy, 0, copy.length)));
+		}
+		entry.replayErrors(policyListErrorConsumer);
+		return entry.policyList;
+	}
+
+	public synchronized long hitCount() {
+		return this.hits;
+	}
+
+	public synchronized long missCount() {
+		return this.misses;
+	}
+
+	public synchronized long evictionCount() {
+		return this.evictions;
+	}
+
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	public synchronized void clear() {
+		this.entries.clear();
+	}
+
+	private synchronized Entry get(Object key) {
+		Entry entry = this.entries.get(key);
+		if (entry == null) {
+			++this.misses;
+		} else {
+			++this.hits;
+		}
+		return entry;
+	}
+
+	// Parsing happens outside the lock, so two threads may both parse the same header; whichever finishes first wins
+	private synchronized Entry put(Object key, Entry entry) {
+		Entry existing = this.entries.get(key);
+		if (existing != null) {
+			return existing;
+		}
+		this.entries.put(key, entry);
+		return entry;
+	}
+
+	private static final class Entry {
+		final CompiledPolicyList policyList;
+		private final List<RecordedError> errors;
+
+		private Entry(CompiledPolicyList policyList, List<RecordedError> errors) {
+			this.policyList = policyList;
+			this.errors = errors;
+		}
+
+		static Entry parse(CharSequence serialized) {
+			List<RecordedError> errors = new ArrayList<>();
+			PolicyList parsed = Policy.parseSerializedCSPList(serialized, new Policy.PolicyListErrorConsumer() {
+				@Override
+				public void add(Policy.Severity severity, String message, int policyIndex, int directiveIndex, int valueIndex) {
+					errors.add(new RecordedError(severity, message, null, null, policyIndex, directiveIndex, valueIndex));
+				}
+
+				// Messages are only built if a consumer asks for them on replay
+				@Override
+				public void add(ErrorKind kind, @Nullable Object detail, int policyIndex, int directiveIndex, int valueIndex) {
+					errors.add(new RecordedError(kind.severity, null, kind, detail, policyIndex, directiveIndex, valueIndex));
+				}
+			});
+			return new Entry(parsed.compile(), errors.isEmpty() ? Collections.emptyList() : errors);
+		}
+
+		void replayErrors(Policy.PolicyListErrorConsumer policyListErrorConsumer) {
+			for (RecordedError error : this.errors) {
+				if (policyListErrorConsumer.ignores(error.severity)) {
+					continue;
+				}
+				if (error.kind != null) {
+					policyListErrorConsumer.add(error.kind, error.detail, error.policyIndex, error.directiveIndex, error.valueIndex);
+				} else {
+					policyListErrorConsumer.add(error.severity, error.message, error.policyIndex, error.directiveIndex, error.valueIndex);
+				}
+			}
+		}
+	}
+
+	private static final class RecordedError {
+		final Policy.Severity severity;
+		// Exactly one of `message` and `kind` is non-null, depending on which form it was reported in
+		final String message;
+		final ErrorKind kind;
+		final Object detail;
+		final int policyIndex;
+		final int directiveIndex;
+		final int valueIndex;
+
+		RecordedError(Policy.Severity severity, String message, ErrorKind kind, Object detail, int policyIndex, int directiveIndex, int valueIndex) {
+			this.severity = severity;
+			this.message = message;
+			this.kind = kind;
+			this.detail = detail;
+			this.policyIndex = policyIndex;
+			this.directiveIndex = directiveIndex;
+			this.valueIndex = valueIndex;
+		}
+	}
+}
@@ -2,15 +2,32 @@ package com.shapesecurity.salvation2;
 
 import com.shapesecurity.salvation2.URLs.URLWithScheme;
 
-import java.util.Optional;
+import javax.annotation.Nullable;
+
 
 public class PolicyInOrigin {
+	// The policy being queried, or null if this was made from something else, like a CompiledPolicy
+	@Nullable
 	public final Policy policy;
+	// What the queries go to: `policy`, or the CompiledPolicy or other QueryablePolicy this was made from
+	public final QueryablePolicy queryable;
 	public final URLWithScheme origin;
+	// What 'self' and the other origin-dependent parts of matching accept, worked out once here rather than on every query
+	public final OriginMatcher originMatcher;
 
 	public PolicyInOrigin(Policy policy, URLWithScheme origin) {
+		this(policy, policy, origin);
+	}
+
+	public PolicyInOrigin(QueryablePolicy queryable, URLWithScheme origin) {
+		this(queryable instanceof Policy ? (Policy) queryable : null, queryable, origin);
+	}
+
+	private PolicyInOrigin(@Nullable Policy policy, QueryablePolicy queryable, URLWithScheme origin) {
 		this.policy = policy;
+		this.queryable = queryable;
 		this.origin = origin;
+		this.originMatcher = OriginMatcher.of(origin);
 	}
 
 
@@ -18,67 +35,96 @@ public class PolicyInOrigin {
 	// Low-level querying
 
 	public boolean allowsScriptFromSource(URLWithScheme url) {
-		return this.policy.allowsExternalScript(Optional.empty(), Optional.empty(), Optional.of(url), Optional.empty(), Optional.of(this.origin));
+		return this.allowsUrl(FetchDirectiveKind.ScriptSrcElem, url);
 	}
 
 	public boolean allowsStyleFromSource(URLWithScheme url) {
-		return this.policy.allowsExternalStyle(Optional.empty(), Optional.of(url), Optional.of(this.origin));
+		return this.allowsUrl(FetchDirectiveKind.StyleSrcElem, url);
 	}
 
 	public boolean allowsImageFromSource(URLWithScheme url) {
-		return this.policy.allowsImage(Optional.of(url), Optional.of(this.origin));
+		return this.allowsUrl(FetchDirectiveKind.ImgSrc, url);
 	}
 
 	public boolean allowsFrameFromSource(URLWithScheme url) {
-		return this.policy.allowsFrame(Optional.of(url), Optional.of(this.origin));
+		return this.allowsUrl(FetchDirectiveKind.FrameSrc, url);
 	}
 
 	public boolean allowsWorkerFromSource(URLWithScheme url) {
-		return this.policy.allowsWorker(Optional.of(url), Optional.of(this.origin));
+		return this.allowsUrl(FetchDirectiveKind.WorkerSrc, url);
 	}
 
 	public boolean allowsFontFromSource(URLWithScheme url) {
-		return this.policy.allowsFont(Optional.of(url), Optional.of(this.origin));
+		return this.allowsUrl(FetchDirectiveKind.FontSrc, url);
 	}
 
 	public boolean allowsObjectFromSource(URLWithScheme url) {
-		return this.policy.allowsObject(Optional.of(url), Optional.of(this.origin));
+		return this.allowsUrl(FetchDirectiveKind.ObjectSrc, url);
 	}
 
 	public boolean allowsMediaFromSource(URLWithScheme url) {
-		return this.policy.allowsMedia(Optional.of(url), Optional.of(this.origin));
+		return this.allowsUrl(FetchDirectiveKind.MediaSrc, url);
 	}
 
 	public boolean allowsManifestFromSource(URLWithScheme url) {
-		return this.policy.allowsApplicationManifest(Optional.of(url), Optional.of(this.origin));
+		return this.allowsUrl(FetchDirectiveKind.ManifestSrc, url);
 	}
 
 	public boolean allowsPrefetchFromSource(URLWithScheme url) {
-		return this.policy.allowsPrefetch(Optional.of(url), Optional.of(this.origin));
+		return this.allowsUrl(FetchDirectiveKind.PrefetchSrc, url);
 	}
 
 	public boolean allowsUnsafeInlineScript() {
-		return this.policy.allowsInlineScript(Optional.empty(), Optional.empty(), Optional.empty());
+		return this.queryable.allowsInlineScriptNullable(null, null, TriState.Unknown);
 	}
 
 	public boolean allowsUnsafeInlineStyle() {
-		return this.policy.allowsInlineStyle(Optional.empty(), Optional.empty());
+		return this.queryable.allowsInlineStyleNullable(null, null);
 	}
 
 	public boolean allowsConnection(URLWithScheme url) {
-		return this.policy.allowsConnection(Optional.of(url), Optional.of(this.origin));
+		return this.allowsUrl(FetchDirectiveKind.ConnectSrc, url);
 	}
 
 	public boolean allowsNavigation(URLWithScheme url) {
-		return this.policy.allowsNavigation(Optional.of(url), Optional.empty(), Optional.empty(), Optional.of(this.origin));
+		if (this.queryable instanceof CompiledPolicy) {
+			return ((CompiledPolicy) this.queryable).allowsNavigationInOrigin(url, TriState.Unknown, null, this.originMatcher);
+		}
+		if (this.queryable instanceof Policy) {
+			return ((Policy) this.queryable).allowsNavigationInOrigin(url, TriState.Unknown, null, this.originMatcher);
+		}
+		return this.queryable.allowsNavigationNullable(url, TriState.Unknown, null, this.origin);
 	}
 
 	public boolean allowsFrameAncestor(URLWithScheme url) {
-		return this.policy.allowsFrameAncestor(Optional.of(url), Optional.of(this.origin));
+		if (this.queryable instanceof CompiledPolicy) {
+			return ((CompiledPolicy) this.queryable).allowsFrameAncestorInOrigin(url, this.originMatcher);
+		}
+		if (this.queryable instanceof Policy) {
+			return ((Policy) this.queryable).allowsFrameAncestorInOrigin(url, this.originMatcher);
+		}
+		return this.queryable.allowsFrameAncestorNullable(url, this.origin);
 	}
 
 	public boolean allowsFormAction(URLWithScheme url) {
-		return this.policy.allowsFormAction(Optional.of(url), Optional.empty(), Optional.empty(), Optional.of(this.origin));
+		if (this.queryable instanceof CompiledPolicy) {
+			return ((CompiledPolicy) this.queryable).allowsFormActionInOrigin(url, TriState.Unknown, null, this.originMatcher);
+		}
+		if (this.queryable instanceof Policy) {
+			return ((Policy) this.queryable).allowsFormActionInOrigin(url, TriState.Unknown, null, this.originMatcher);
+		}
+		return this.queryable.allowsFormActionNullable(url, TriState.Unknown, null, this.origin);
+	}
+
+	// Policies and compiled policies are queried with the matcher; anything else is queried with the origin, and builds its own matcher
+	private boolean allowsUrl(FetchDirectiveKind kind, URLWithScheme url) {
+		if (this.queryable instanceof CompiledPolicy) {
+			return ((CompiledPolicy) this.queryable).allowsUrlInOrigin(kind, url, this.originMatcher);
+		}
+		if (this.queryable instanceof Policy) {
+			return ((Policy) this.queryable).allowsUrlInOrigin(kind, url, this.originMatcher);
+		}
+		return this.queryable.allowsUrl(kind, url, this.origin);
 	}
 
 
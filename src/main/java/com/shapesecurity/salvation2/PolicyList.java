@@ -1,14 +1,33 @@
 package com.shapesecurity.salvation2;
 
+import javax.annotation.Nonnull;
 import java.util.List;
 
-public class PolicyList {
+// Browsers enforce every policy in a list, so the list allows a query only if every policy in it does; an empty list allows everything.
+// The querying methods check the policies in order and stop at the first which denies. To query the same list many times, compile it.
+public class PolicyList extends AbstractPolicyList {
 	public final List<Policy> policies;
 
 	public PolicyList(List<Policy> policies) {
 		this.policies = policies;
 	}
 
+	// An immutable snapshot of the list, with each policy compiled and the ones most likely to deny a query checked first. See CompiledPolicyList.
+	@Nonnull
+	public CompiledPolicyList compile() {
+		return new CompiledPolicyList(this.policies);
+	}
+
+	@Override
+	int policyCount() {
+		return this.policies.size();
+	}
+
+	@Override
+	QueryablePolicy policyAt(int index) {
+		return this.policies.get(index);
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder out = new StringBuilder();
@@ -0,0 +1,254 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.Directives.HostSourceDirective;
+import com.shapesecurity.salvation2.Directives.SourceExpressionDirective;
+import com.shapesecurity.salvation2.URLs.URI;
+import com.shapesecurity.salvation2.Values.Host;
+import com.shapesecurity.salvation2.Values.Scheme;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+// Shrinks a policy without changing any decision it makes, for servers which send large generated policies with every response.
+// It drops scheme-sources and host-sources which the rest of their directive already covers: those subsumed by `*`, by a scheme-source, by a wildcard host or by a path prefix.
+// Then it drops fetch directives which are the same as the directive they fall back to, e.g. an img-src with the same sources as default-src; default-src itself is always kept.
+// "Covers" means for every origin, including none: `*` does not cover `example.com` on its own, for example, because with a ws: origin that also matches wss: URLs.
+// Only what this library queries is considered. Nonces, hashes and keywords are never dropped, and neither are directives which govern nothing here, since browsers may consult them for kinds of fetch this library does not know about.
+public final class PolicyOptimizer {
+	// The URL schemes which schemePartMatches treats specially; together with the scheme of the source and of the origin, these are the only URL schemes whose handling can differ
+	private static final String[] SPECIAL_SCHEMES = { "http", "https", "ws", "wss", "ftp" };
+
+	// Coverage only depends on the origin's scheme, and these are the schemes which are handled differently, plus one which stands for every other scheme.
+	// `*` is not a valid scheme, so it cannot equal the scheme of any source.
+	private static final OriginMatcher[] ORIGINS;
+
+	static {
+		String[] schemes = { "http", "https", "ws", "wss", "ftp", "gopher", "file", "*" };
+		ORIGINS = new OriginMatcher[schemes.length + 1];
+		ORIGINS[0] = OriginMatcher.NONE;
+		for (int i = 0; i < schemes.length; ++i) {
+			ORIGINS[i + 1] = OriginMatcher.of(new URI(schemes[i], "origin.invalid", URI.defaultPortForProtocol(schemes[i]), ""));
+		}
+	}
+
+	private PolicyOptimizer() {
+		// Utility class
+	}
+
+	// Returns an optimized copy of `policy`, which is left as it is
+	@Nonnull
+	public static Result optimize(Policy policy) {
+		String original = policy.toString();
+		Policy optimized = policy.copy();
+		for (Policy.NamedDirective named : optimized.namedDirectives()) {
+			if (named.directive instanceof HostSourceDirective) {
+				dropSubsumedSources((HostSourceDirective) named.directive);
+			}
+		}
+		dropRedundantFetchDirectives(optimized);
+		return new Result(optimized, original.length(), optimized.toString().length());
+	}
+
+	public static final class Result {
+		@Nonnull
+		public final Policy policy;
+		// Lengths of the serialized policies, which are ASCII, so these are also their sizes in bytes
+		public final int originalLength;
+		public final int optimizedLength;
+
+		private Result(Policy policy, int originalLength, int optimizedLength) {
+			this.policy = policy;
+			this.originalLength = originalLength;
+			this.optimizedLength = optimizedLength;
+		}
+
+		public int bytesSaved() {
+			return this.originalLength - this.optimizedLength;
+		}
+	}
+
+	private static void dropSubsumedSources(HostSourceDirective directive) {
+		boolean star = directive.star();
+		List<Scheme> schemes = new ArrayList<>(directive.getSchemes());
+		List<Host> hosts = new ArrayList<>(directive.getHosts());
+		List<Scheme> droppedSchemes = new ArrayList<>();
+		List<Host> droppedHosts = new ArrayList<>();
+		// Sources are considered last to first, so of two sources which cover each other, the first is kept. Each is checked against the sources still kept, whose union never changes.
+		for (int i = schemes.size() - 1; i >= 0; --i) {
+			Scheme scheme = schemes.remove(i);
+			if (isCovered(scheme, star, schemes)) {
+				droppedSchemes.add(scheme);
+			} else {
+				schemes.add(i, scheme);
+			}
+		}
+		for (int i = hosts.size() - 1; i >= 0; --i) {
+			Host host = hosts.remove(i);
+			if (isCovered(host, star, schemes, hosts)) {
+				droppedHosts.add(host);
+			} else {
+				hosts.add(i, host);
+			}
+		}
+		directive.removeSchemes(droppedSchemes);
+		directive.removeHosts(droppedHosts);
+	}
+
+	// Whether every URL which `scheme` matches, in every origin, is matched by `*` or one of `schemes`
+	private static boolean isCovered(Scheme scheme, boolean star, List<Scheme> schemes) {
+		for (OriginMatcher origin : ORIGINS) {
+			for (String urlScheme : candidateSchemes(scheme.value)) {
+				if (!Policy.schemePartMatches(scheme.value, urlScheme)) {
+					continue;
+				}
+				if (!(star && origin.starMatches(urlScheme) || anySchemeMatches(schemes, urlScheme))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	// Whether every URL which `host` matches, in every origin, is matched by `*`, one of `schemes`, or one of `hosts`
+	private static boolean isCovered(Host host, boolean star, List<Scheme> schemes, List<Host> hosts) {
+		// The host and path parts do not depend on the scheme or origin, so most hosts are ruled out once here
+		List<Host> candidates = new ArrayList<>();
+		for (Host other : hosts) {
+			if (hostPartCovers(other, host) && pathPartCovers(other, host)) {
+				candidates.add(other);
+			}
+		}
+		for (OriginMatcher origin : ORIGINS) {
+			String extraScheme = host.scheme != null ? host.scheme : origin.origin != null ? origin.origin.scheme : null;
+			for (String urlScheme : candidateSchemes(extraScheme)) {
+				if (!Policy.hostSourceSchemeMatches(host, urlScheme, origin)) {
+					continue;
+				}
+				if (star && origin.starMatches(urlScheme) || anySchemeMatches(schemes, urlScheme)) {
+					continue;
+				}
+				boolean covered = false;
+				for (Host other : candidates) {
+					if (Policy.hostSourceSchemeMatches(other, urlScheme, origin) && portPartCovers(other, host, urlScheme)) {
+						covered = true;
+						break;
+					}
+				}
+				if (!covered) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static String[] candidateSchemes(String extraScheme) {
+		if (extraScheme == null) {
+			return SPECIAL_SCHEMES;
+		}
+		String[] schemes = new String[SPECIAL_SCHEMES.length + 1];
+		System.arraycopy(SPECIAL_SCHEMES, 0, schemes, 0, SPECIAL_SCHEMES.length);
+		schemes[SPECIAL_SCHEMES.length] = extraScheme;
+		return schemes;
+	}
+
+	private static boolean anySchemeMatches(List<Scheme> schemes, String urlScheme) {
+		for (Scheme scheme : schemes) {
+			if (Policy.schemePartMatches(scheme.value, urlScheme)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// See Policy.hostPartMatches; hosts are lowercase
+	private static boolean hostPartCovers(Host covering, Host covered) {
+		if (!covering.host.startsWith("*")) {
+			return covering.host.equals(covered.host);
+		}
+		String suffix = covering.host.substring(1);
+		String coveredHosts = covered.host.startsWith("*") ? covered.host.substring(1) : covered.host;
+		return coveredHosts.endsWith(suffix);
+	}
+
+	// See Policy.portPartMatches
+	private static boolean portPartCovers(Host covering, Host covered, String urlScheme) {
+		return covering.port == Constants.WILDCARD_PORT
+				|| covering.port == covered.port
+				|| covered.port == Constants.EMPTY_PORT && covering.port == URI.defaultPortForProtocol(urlScheme);
+	}
+
+	// See HostSourcePath. Paths are compared as written, and paths with percent-encoding are left alone, since decoding them may fail.
+	private static boolean pathPartCovers(Host covering, Host covered) {
+		if (covering.parsedPath == null) {
+			return true;
+		}
+		if (covered.parsedPath == null || covering.path.indexOf('%') != -1 || covered.path.indexOf('%') != -1) {
+			return false;
+		}
+		return covering.path.equals(covered.path) || covering.path.endsWith("/") && covered.path.startsWith(covering.path);
+	}
+
+	private static void dropRedundantFetchDirectives(Policy policy) {
+		// Dropping one directive can make another govern something it did not before, e.g. child-src once frame-src is gone, so this repeats until nothing changes
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (FetchDirectiveKind kind : FetchDirectiveKind.values()) {
+				if (kind == FetchDirectiveKind.DefaultSrc) {
+					continue;
+				}
+				SourceExpressionDirective directive = policy.getFetchDirective(kind).orElse(null);
+				if (directive != null && fallsBackToEquivalent(policy, kind, directive)) {
+					policy.remove(kind.repr);
+					changed = true;
+				}
+			}
+		}
+	}
+
+	// Whether `directive` governs at least one kind of fetch, and for every kind it governs, the directive which would govern it instead has the same sources
+	private static boolean fallsBackToEquivalent(Policy policy, FetchDirectiveKind kind, SourceExpressionDirective directive) {
+		boolean governsAny = false;
+		for (FetchDirectiveKind effective : FetchDirectiveKind.values()) {
+			if (effective == FetchDirectiveKind.DefaultSrc || effective == FetchDirectiveKind.ChildSrc) {
+				// Never the effective directive of anything
+				continue;
+			}
+			FetchDirectiveKind[] fallbacks = FetchDirectiveKind.getFetchDirectiveFallbackList(effective);
+			int i = 0;
+			while (i < fallbacks.length && !policy.getFetchDirective(fallbacks[i]).isPresent()) {
+				++i;
+			}
+			if (i == fallbacks.length || fallbacks[i] != kind) {
+				continue;
+			}
+			governsAny = true;
+			SourceExpressionDirective next = null;
+			for (++i; i < fallbacks.length && next == null; ++i) {
+				next = policy.getFetchDirective(fallbacks[i]).orElse(null);
+			}
+			if (next == null || !sameSources(directive, next)) {
+				return false;
+			}
+		}
+		return governsAny;
+	}
+
+	private static boolean sameSources(SourceExpressionDirective a, SourceExpressionDirective b) {
+		return a.star() == b.star()
+				&& a.self() == b.self()
+				&& a.unsafeInline() == b.unsafeInline()
+				&& a.unsafeEval() == b.unsafeEval()
+				&& a.strictDynamic() == b.strictDynamic()
+				&& a.unsafeHashes() == b.unsafeHashes()
+				&& a.reportSample() == b.reportSample()
+				&& a.unsafeAllowRedirects() == b.unsafeAllowRedirects()
+				&& new HashSet<>(a.getSchemes()).equals(new HashSet<>(b.getSchemes()))
+				&& new HashSet<>(a.getHosts()).equals(new HashSet<>(b.getHosts()))
+				&& new HashSet<>(a.getNonces()).equals(new HashSet<>(b.getNonces()))
+				&& new HashSet<>(a.getHashes()).equals(new HashSet<>(b.getHashes()));
+	}
+}
@@ -0,0 +1,185 @@
+package com.shapesecurity.salvation2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Compiled policies stored by key (a host, a route, a tenant), for servers which would otherwise parse the same headers on every request.
+// Everything the registry holds is one immutable Snapshot, which every change replaces atomically. Reads never lock or wait, and a reader which takes a snapshot sees either all of a change or none of it, however many keys the change touches.
+// Each change, including a bulk `reload` or `putAll`, gets the next version number, which becomes the version of the snapshot and of every entry it stored.
+// Policies are compiled before anything is replaced, so the time spent compiling never delays readers; `reload` and `putAll` can compile on a ForkJoinPool.
+// Instances are safe to share between threads.
+public final class PolicyRegistry {
+	private final AtomicReference<Snapshot> current = new AtomicReference<>(new Snapshot(0, Collections.emptyMap()));
+
+	// The compiled policies for `key` in the current snapshot, or null if there are none
+	@Nullable
+	public CompiledPolicyList get(String key) {
+		return this.current.get().get(key);
+	}
+
+	// Everything the registry holds right now. It never changes, so several lookups in it are consistent with each other.
+	@Nonnull
+	public Snapshot snapshot() {
+		return this.current.get();
+	}
+
+	public long version() {
+		return this.current.get().version;
+	}
+
+	// Compiles `policies` and stores them for `key`, replacing whatever was there; returns the compiled form. `policies` is not used after this returns.
+	@Nonnull
+	public CompiledPolicyList put(String key, PolicyList policies) {
+		CompiledPolicyList compiled = policies.compile();
+		this.update(false, (entries, version) -> {
+			entries.put(key, new Entry(compiled, version));
+			return true;
+		});
+		return compiled;
+	}
+
+	// Removes the policies for `key`; returns whether there were any. Removing a missing key is not a change, so it does not use up a version.
+	public boolean remove(String key) {
+		return this.update(false, (entries, version) -> entries.remove(key) != null);
+	}
+
+	// Compiles each of `policies` and stores them all in one change, replacing whatever was stored for their keys and leaving the other keys as they are.
+	// Compilation is split across `pool` if there is one.
+	public void putAll(Map<String, PolicyList> policies, @Nullable ForkJoinPool pool) {
+		Map<String, CompiledPolicyList> compiled = compileAll(policies, pool);
+		this.update(false, (entries, version) -> {
+			compiled.forEach((key, list) -> entries.put(key, new Entry(list, version)));
+			return true;
+		});
+	}
+
+	// As `putAll`, but replaces everything the registry holds, so keys missing from `policies` are removed
+	public void reload(Map<String, PolicyList> policies, @Nullable ForkJoinPool pool) {
+		Map<String, CompiledPolicyList> compiled = compileAll(policies, pool);
+		this.update(true, (entries, version) -> {
+			compiled.forEach((key, list) -> entries.put(key, new Entry(list, version)));
+			return true;
+		});
+	}
+
+	// Replaces the current snapshot with a copy which `change` has edited, retrying if another change got in first; returns whatever `change` did.
+	// `change` gets a fresh map each time, so running it more than once is harmless.
+	private boolean update(boolean startEmpty, Change change) {
+		while (true) {
+			Snapshot previous = this.current.get();
+			long version = previous.version + 1;
+			Map<String, Entry> entries = startEmpty ? new HashMap<>() : new HashMap<>(previous.entries);
+			if (!change.apply(entries, version)) {
+				return false;
+			}
+			if (this.current.compareAndSet(previous, new Snapshot(version, entries))) {
+				return true;
+			}
+		}
+	}
+
+	@FunctionalInterface
+	private interface Change {
+		// Edits `entries` for the change with this version; returns false if there is nothing to change
+		boolean apply(Map<String, Entry> entries, long version);
+	}
+
+	private static Map<String, CompiledPolicyList> compileAll(Map<String, PolicyList> policies, @Nullable ForkJoinPool pool) {
+		List<String> keys = new ArrayList<>(policies.keySet());
+		CompiledPolicyList[] compiled = new CompiledPolicyList[keys.size()];
+		if (pool == null) {
+			for (int i = 0; i < compiled.length; ++i) {
+				compiled[i] = policies.get(keys.get(i)).compile();
+			}
+		} else {
+			pool.invoke(new Compilation(policies, keys, 0, compiled.length, compiled));
+		}
+		Map<String, CompiledPolicyList> result = new HashMap<>();
+		for (int i = 0; i < compiled.length; ++i) {
+			result.put(keys.get(i), compiled[i]);
+		}
+		return result;
+	}
+
+	// Compiles the policies for keys `start` to `end`, each into its own entry of `compiled`. A single compilation is already enough work to be worth a task of its own.
+	private static final class Compilation extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Map<String, PolicyList> policies;
+		private final List<String> keys;
+		private final int start;
+		private final int end;
+		private final CompiledPolicyList[] compiled;
+
+		Compilation(Map<String, PolicyList> policies, List<String> keys, int start, int end, CompiledPolicyList[] compiled) {
+			this.policies = policies;
+			this.keys = keys;
+			this.start = start;
+			this.end = end;
+			this.compiled = compiled;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.end - this.start <= 1) {
+				if (this.start < this.end) {
+					this.compiled[this.start] = this.policies.get(this.keys.get(this.start)).compile();
+				}
+				return;
+			}
+			int middle = (this.start + this.end) >>> 1;
+			invokeAll(new Compilation(this.policies, this.keys, this.start, middle, this.compiled), new Compilation(this.policies, this.keys, middle, this.end, this.compiled));
+		}
+	}
+
+	// An immutable view of the registry as of one version
+	public static final class Snapshot {
+		public final long version;
+		private final Map<String, Entry> entries;
+
+		private Snapshot(long version, Map<String, Entry> entries) {
+			this.version = version;
+			this.entries = entries;
+		}
+
+		@Nullable
+		public CompiledPolicyList get(String key) {
+			Entry entry = this.entries.get(key);
+			return entry == null ? null : entry.policies;
+		}
+
+		// The version of the change which stored the policies for `key`, or -1 if there are none
+		public long version(String key) {
+			Entry entry = this.entries.get(key);
+			return entry == null ? -1 : entry.version;
+		}
+
+		@Nonnull
+		public Set<String> keys() {
+			return Collections.unmodifiableSet(this.entries.keySet());
+		}
+
+		public int size() {
+			return this.entries.size();
+		}
+	}
+
+	private static final class Entry {
+		final CompiledPolicyList policies;
+		final long version;
+
+		Entry(CompiledPolicyList policies, long version) {
+			this.policies = policies;
+			this.version = version;
+		}
+	}
+}
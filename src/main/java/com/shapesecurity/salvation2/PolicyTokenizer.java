@@ -0,0 +1,152 @@
+package com.shapesecurity.salvation2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// A single linear pass over a serialized CSP (list), recording where each directive and each of its tokens starts and ends.
+// This is equivalent to https://infra.spec.whatwg.org/#split-on-commas, then https://infra.spec.whatwg.org/#strictly-split on ";",
+// then https://infra.spec.whatwg.org/#split-on-ascii-whitespace of each directive, but without allocating any intermediate strings.
+// It also enforces that the input is ASCII as it goes, so callers do not need a separate pass for that.
+final class PolicyTokenizer {
+	final CharSequence input;
+
+	// Token `i` is `input.substring(this.tokens[2 * i], this.tokens[2 * i + 1])`
+	private int[] tokens = new int[32];
+	private int tokenCount = 0;
+
+	// Directive `d` is described by `this.directives[4 * d ..  4 * d + 3]`: its policy index, its directive index within that policy,
+	// its first token (which is its name), and one past its last token.
+	// Empty directives and policies are not recorded, but they are still counted towards the indices of subsequent ones.
+	private int[] directives = new int[16];
+	private int directiveCount = 0;
+
+	private PolicyTokenizer(CharSequence input) {
+		this.input = input;
+	}
+
+	// Throws IllegalArgumentException if the input is not ASCII, or if it contains a comma and `allowCommas` is false.
+	// These checks happen before anything is reported to an error consumer, so callers never see a partial set of errors.
+	static PolicyTokenizer tokenize(CharSequence input, boolean allowCommas) {
+		PolicyTokenizer tokenizer = new PolicyTokenizer(input);
+		boolean sawComma = tokenizer.scan();
+		if (sawComma && !allowCommas) {
+			// This is not quite per spec, but
+			throw new IllegalArgumentException("Serialized CSPs cannot contain commas - you may have wanted parseSerializedCSPList");
+		}
+		return tokenizer;
+	}
+
+	// Returns whether the input contained a comma. The ASCII check takes priority over the comma check, so we keep going after seeing one.
+	private boolean scan() {
+		CharSequence input = this.input;
+		int length = input.length();
+		boolean sawComma = false;
+		int policyIndex = 0;
+		int directiveIndex = 0;
+		int firstToken = 0;
+		int i = 0;
+		while (i < length) {
+			char c = this.asciiCharAt(i);
+			if (c == ',') {
+				sawComma = true;
+				this.endDirective(policyIndex, directiveIndex, firstToken);
+				++policyIndex;
+				directiveIndex = 0;
+				firstToken = this.tokenCount;
+				++i;
+			} else if (c == ';') {
+				this.endDirective(policyIndex, directiveIndex, firstToken);
+				++directiveIndex;
+				firstToken = this.tokenCount;
+				++i;
+			} else if (Utils.isAsciiWhitespace(c)) {
+				++i;
+			} else {
+				int start = i;
+				do {
+					++i;
+				} while (i < length && !isTokenBoundary(this.asciiCharAt(i)));
+				this.addToken(start, i);
+			}
+		}
+		this.endDirective(policyIndex, directiveIndex, firstToken);
+		return sawComma;
+	}
+
+	// "A serialized CSP is an ASCII string", and browsers do in fact reject CSPs which contain non-ASCII characters
+	private char asciiCharAt(int index) {
+		char c = this.input.charAt(index);
+		if (c > 0x7F) {
+			throw new IllegalArgumentException("string is not ascii: \"" + this.input + "\"");
+		}
+		return c;
+	}
+
+	private static boolean isTokenBoundary(char c) {
+		return c == ',' || c == ';' || Utils.isAsciiWhitespace(c);
+	}
+
+	private void addToken(int start, int end) {
+		if (2 * this.tokenCount == this.tokens.length) {
+			this.tokens = Arrays.copyOf(this.tokens, 2 * this.tokens.length);
+		}
+		this.tokens[2 * this.tokenCount] = start;
+		this.tokens[2 * this.tokenCount + 1] = end;
+		++this.tokenCount;
+	}
+
+	private void endDirective(int policyIndex, int directiveIndex, int firstToken) {
+		if (firstToken == this.tokenCount) {
+			return;
+		}
+		if (4 * this.directiveCount == this.directives.length) {
+			this.directives = Arrays.copyOf(this.directives, 2 * this.directives.length);
+		}
+		int offset = 4 * this.directiveCount;
+		this.directives[offset] = policyIndex;
+		this.directives[offset + 1] = directiveIndex;
+		this.directives[offset + 2] = firstToken;
+		this.directives[offset + 3] = this.tokenCount;
+		++this.directiveCount;
+	}
+
+	int directiveCount() {
+		return this.directiveCount;
+	}
+
+	int policyIndex(int directive) {
+		return this.directives[4 * directive];
+	}
+
+	int directiveIndex(int directive) {
+		return this.directives[4 * directive + 1];
+	}
+
+	String directiveName(int directive) {
+		return this.token(this.directives[4 * directive + 2]);
+	}
+
+	List<String> directiveValues(int directive) {
+		int first = this.directives[4 * directive + 2] + 1;
+		int end = this.directives[4 * directive + 3];
+		if (first == end) {
+			return Collections.emptyList();
+		}
+		ArrayList<String> values = new ArrayList<>(end - first);
+		for (int i = first; i < end; ++i) {
+			values.add(this.token(i));
+		}
+		return values;
+	}
+
+	private String token(int token) {
+		int start = this.tokens[2 * token];
+		int end = this.tokens[2 * token + 1];
+		if (this.input instanceof AsciiBytes) {
+			return ((AsciiBytes) this.input).substring(start, end);
+		}
+		return this.input.subSequence(start, end).toString();
+	}
+}
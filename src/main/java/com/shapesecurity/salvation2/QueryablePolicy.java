@@ -0,0 +1,185 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+import com.shapesecurity.salvation2.Values.MediaType;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.BitSet;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+
+// The high-level querying methods, which both Policy and CompiledPolicy provide. See Policy for what each of them means.
+// Implementations provide the forms taking nullable references and TriStates, which do not allocate; the forms taking Optionals, where Optional.empty() means the same as null or TriState.Unknown, delegate to them.
+// The nullable forms are named with a `Nullable` suffix, since a null argument would be ambiguous between two overloads of the same arity.
+public interface QueryablePolicy {
+	boolean allowsExternalScriptNullable(@Nullable String nonce, @Nullable String integrity, @Nullable URLWithScheme scriptUrl, TriState parserInserted, @Nullable URLWithScheme origin);
+
+	default boolean allowsExternalScript(Optional<String> nonce, Optional<String> integrity, Optional<URLWithScheme> scriptUrl, Optional<Boolean> parserInserted, Optional<URLWithScheme> origin) {
+		return this.allowsExternalScriptNullable(nonce.orElse(null), integrity.orElse(null), scriptUrl.orElse(null), TriState.of(parserInserted), origin.orElse(null));
+	}
+
+	boolean allowsInlineScriptNullable(@Nullable String nonce, @Nullable String source, TriState parserInserted);
+
+	default boolean allowsInlineScript(Optional<String> nonce, Optional<String> source, Optional<Boolean> parserInserted) {
+		return this.allowsInlineScriptNullable(nonce.orElse(null), source.orElse(null), TriState.of(parserInserted));
+	}
+
+	boolean allowsScriptAsAttributeNullable(@Nullable String source);
+
+	default boolean allowsScriptAsAttribute(Optional<String> source) {
+		return this.allowsScriptAsAttributeNullable(source.orElse(null));
+	}
+
+	boolean allowsEval();
+
+	boolean allowsNavigationNullable(@Nullable URLWithScheme to, TriState redirected, @Nullable URLWithScheme redirectedTo, @Nullable URLWithScheme origin);
+
+	default boolean allowsNavigation(Optional<URLWithScheme> to, Optional<Boolean> redirected, Optional<URLWithScheme> redirectedTo, Optional<URLWithScheme> origin) {
+		return this.allowsNavigationNullable(to.orElse(null), TriState.of(redirected), redirectedTo.orElse(null), origin.orElse(null));
+	}
+
+	boolean allowsFormActionNullable(@Nullable URLWithScheme to, TriState redirected, @Nullable URLWithScheme redirectedTo, @Nullable URLWithScheme origin);
+
+	default boolean allowsFormAction(Optional<URLWithScheme> to, Optional<Boolean> redirected, Optional<URLWithScheme> redirectedTo, Optional<URLWithScheme> origin) {
+		return this.allowsFormActionNullable(to.orElse(null), TriState.of(redirected), redirectedTo.orElse(null), origin.orElse(null));
+	}
+
+	boolean allowsJavascriptUrlNavigationNullable(@Nullable String source, @Nullable URLWithScheme origin);
+
+	default boolean allowsJavascriptUrlNavigation(Optional<String> source, Optional<URLWithScheme> origin) {
+		return this.allowsJavascriptUrlNavigationNullable(source.orElse(null), origin.orElse(null));
+	}
+
+	boolean allowsExternalStyleNullable(@Nullable String nonce, @Nullable URLWithScheme styleUrl, @Nullable URLWithScheme origin);
+
+	default boolean allowsExternalStyle(Optional<String> nonce, Optional<URLWithScheme> styleUrl, Optional<URLWithScheme> origin) {
+		return this.allowsExternalStyleNullable(nonce.orElse(null), styleUrl.orElse(null), origin.orElse(null));
+	}
+
+	boolean allowsInlineStyleNullable(@Nullable String nonce, @Nullable String source);
+
+	default boolean allowsInlineStyle(Optional<String> nonce, Optional<String> source) {
+		return this.allowsInlineStyleNullable(nonce.orElse(null), source.orElse(null));
+	}
+
+	boolean allowsStyleAsAttributeNullable(@Nullable String source);
+
+	default boolean allowsStyleAsAttribute(Optional<String> source) {
+		return this.allowsStyleAsAttributeNullable(source.orElse(null));
+	}
+
+	boolean allowsFrameNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin);
+
+	default boolean allowsFrame(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
+		return this.allowsFrameNullable(source.orElse(null), origin.orElse(null));
+	}
+
+	boolean allowsFrameAncestorNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin);
+
+	default boolean allowsFrameAncestor(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
+		return this.allowsFrameAncestorNullable(source.orElse(null), origin.orElse(null));
+	}
+
+	boolean allowsConnectionNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin);
+
+	default boolean allowsConnection(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
+		return this.allowsConnectionNullable(source.orElse(null), origin.orElse(null));
+	}
+
+	boolean allowsFontNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin);
+
+	default boolean allowsFont(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
+		return this.allowsFontNullable(source.orElse(null), origin.orElse(null));
+	}
+
+	boolean allowsImageNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin);
+
+	default boolean allowsImage(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
+		return this.allowsImageNullable(source.orElse(null), origin.orElse(null));
+	}
+
+	boolean allowsApplicationManifestNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin);
+
+	default boolean allowsApplicationManifest(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
+		return this.allowsApplicationManifestNullable(source.orElse(null), origin.orElse(null));
+	}
+
+	boolean allowsMediaNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin);
+
+	default boolean allowsMedia(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
+		return this.allowsMediaNullable(source.orElse(null), origin.orElse(null));
+	}
+
+	boolean allowsObjectNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin);
+
+	default boolean allowsObject(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
+		return this.allowsObjectNullable(source.orElse(null), origin.orElse(null));
+	}
+
+	boolean allowsPrefetchNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin);
+
+	default boolean allowsPrefetch(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
+		return this.allowsPrefetchNullable(source.orElse(null), origin.orElse(null));
+	}
+
+	boolean allowsWorkerNullable(@Nullable URLWithScheme source, @Nullable URLWithScheme origin);
+
+	default boolean allowsWorker(Optional<URLWithScheme> source, Optional<URLWithScheme> origin) {
+		return this.allowsWorkerNullable(source.orElse(null), origin.orElse(null));
+	}
+
+	boolean allowsPluginNullable(@Nullable MediaType mediaType);
+
+	default boolean allowsPlugin(Optional<MediaType> mediaType) {
+		return this.allowsPluginNullable(mediaType.orElse(null));
+	}
+
+	// Whether a fetch of `url` is allowed, where `kind` is the effective directive of the request (https://w3c.github.io/webappsec-csp/#effective-directive-for-a-request): ScriptSrcElem for an external script, StyleSrcElem for an external stylesheet, ImgSrc for an image, and so on.
+	// This is the same as the corresponding method above, with every other parameter null or TriState.Unknown.
+	default boolean allowsUrl(FetchDirectiveKind kind, @Nullable URLWithScheme url, @Nullable URLWithScheme origin) {
+		switch (kind) {
+			case ConnectSrc:
+				return this.allowsConnectionNullable(url, origin);
+			case FontSrc:
+				return this.allowsFontNullable(url, origin);
+			case FrameSrc:
+				return this.allowsFrameNullable(url, origin);
+			case ImgSrc:
+				return this.allowsImageNullable(url, origin);
+			case ManifestSrc:
+				return this.allowsApplicationManifestNullable(url, origin);
+			case MediaSrc:
+				return this.allowsMediaNullable(url, origin);
+			case ObjectSrc:
+				return this.allowsObjectNullable(url, origin);
+			case PrefetchSrc:
+				return this.allowsPrefetchNullable(url, origin);
+			case ScriptSrcElem:
+				return this.allowsExternalScriptNullable(null, null, url, TriState.Unknown, origin);
+			case StyleSrcElem:
+				return this.allowsExternalStyleNullable(null, url, origin);
+			case WorkerSrc:
+				return this.allowsWorkerNullable(url, origin);
+			default:
+				throw new IllegalArgumentException(kind.repr + " is not the effective directive of a fetch");
+		}
+	}
+
+	// allowsUrl for many fetches at once: bit i of the result is whether fetching urls[i] with effective directive kinds[i] is allowed.
+	@Nonnull
+	default BitSet allowsUrls(FetchDirectiveKind[] kinds, URLWithScheme[] urls, @Nullable URLWithScheme origin) {
+		return this.allowsUrls(kinds, urls, origin, null);
+	}
+
+	// As above, but large batches are split across `pool` if it is not null
+	@Nonnull
+	default BitSet allowsUrls(FetchDirectiveKind[] kinds, URLWithScheme[] urls, @Nullable URLWithScheme origin, @Nullable ForkJoinPool pool) {
+		UrlBatch.checkArguments(kinds, urls);
+		int[] order = new int[kinds.length];
+		for (int i = 0; i < order.length; ++i) {
+			order[i] = i;
+		}
+		return UrlBatch.evaluate(order, i -> this.allowsUrl(kinds[i], urls[i], origin), pool);
+	}
+}
@@ -0,0 +1,27 @@
+package com.shapesecurity.salvation2;
+
+import javax.annotation.Nonnull;
+import java.util.Optional;
+
+// A boolean which may not be known, for query parameters such as whether a script is parser-inserted.
+// This is the allocation-free counterpart of the Optional<Boolean> parameters: Unknown plays the part of Optional.empty().
+public enum TriState {
+	True,
+	False,
+	Unknown;
+
+	@Nonnull
+	public static TriState of(boolean value) {
+		return value ? True : False;
+	}
+
+	@Nonnull
+	public static TriState of(@Nonnull Optional<Boolean> value) {
+		return value.isPresent() ? of(value.get()) : Unknown;
+	}
+
+	// The value if known, and otherwise `other`; the same as Optional.orElse
+	public boolean orElse(boolean other) {
+		return this == Unknown ? other : this == True;
+	}
+}
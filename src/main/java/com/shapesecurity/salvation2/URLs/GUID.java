@@ -1,10 +1,9 @@
 package com.shapesecurity.salvation2.URLs;
 
-import com.shapesecurity.salvation2.Constants;
+import com.shapesecurity.salvation2.HostSourceParser;
 
 import javax.annotation.Nonnull;
 import java.util.Optional;
-import java.util.regex.Matcher;
 
 public class GUID extends URLWithScheme {
 	// See https://url.spec.whatwg.org/#example-url-components
@@ -13,12 +12,11 @@ public class GUID extends URLWithScheme {
 	}
 
 	public static Optional<GUID> parseGUID(String value) {
-		Matcher matcher = Constants.schemePattern.matcher(value);
-		if (!matcher.find()) {
+		// The same as matching Constants.schemePattern
+		int schemeEnd = HostSourceParser.scanScheme(value);
+		if (schemeEnd == 0 || schemeEnd == value.length() || value.charAt(schemeEnd) != ':') {
 			return Optional.empty();
 		}
-		String scheme = matcher.group("scheme");
-		scheme = scheme.substring(0, scheme.length() - 1);  // + 1 for the trailing ":"
-		return Optional.of(new GUID(scheme, value.substring(scheme.length() + 1)));
+		return Optional.of(new GUID(value.substring(0, schemeEnd), value.substring(schemeEnd + 1)));
 	}
 }
@@ -1,44 +1,51 @@
 package com.shapesecurity.salvation2.URLs;
 
 import com.shapesecurity.salvation2.Constants;
+import com.shapesecurity.salvation2.HostSourceParser;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.util.Locale;
 import java.util.Optional;
-import java.util.regex.Matcher;
 
 public class URI extends URLWithScheme {
 
+	// The usual schemes of URLs, so that parsing can use these rather than copying them out of the input. Only lowercase ones match.
+	private static final String[] COMMON_SCHEMES = { "https", "http", "wss", "ws", "ftp" };
+
 	public URI(@Nonnull String scheme, @Nonnull String host, int port, @Nonnull String path) {
 		super(scheme, host, port, path);
 	}
 
 	@Nonnull
 	public static Optional<URI> parseURI(@Nonnull String uri) {
-		Matcher matcher = Constants.hostSourcePattern.matcher(uri);
-		if (!matcher.find()) {
+		HostSourceParser parsed = HostSourceParser.parse(uri);
+		if (parsed == null || parsed.schemeEnd == -1) {
 			return Optional.empty();
 		}
-		String scheme = matcher.group("scheme");
+		String scheme = commonScheme(uri, parsed.schemeEnd);
 		if (scheme == null) {
-			return Optional.empty();
-		}
-		scheme = scheme.substring(0, scheme.length() - 3);
-		String portString = matcher.group("port");
-		int port;
-		if (portString == null) {
-			port = URI.defaultPortForProtocol(scheme.toLowerCase(Locale.ENGLISH));
-		} else {
-			port = portString.equals(":*") ? Constants.WILDCARD_PORT : Integer.parseInt(portString.substring(1));
+			scheme = uri.substring(0, parsed.schemeEnd).toLowerCase(Locale.ENGLISH);
 		}
-		String host = matcher.group("host");
-		String path = matcher.group("path");
+		int port = parsed.hasPort() ? parsed.port(Constants.EMPTY_PORT) : URI.defaultPortForProtocol(scheme);
+		String host = parsed.host();
+		String path = parsed.path();
 		if (path == null) {
 			path = "";
 		}
 		return Optional.of(new URI(scheme, host, port, path));
 	}
 
+	@Nullable
+	private static String commonScheme(String uri, int schemeEnd) {
+		for (String scheme : COMMON_SCHEMES) {
+			if (scheme.length() == schemeEnd && uri.startsWith(scheme)) {
+				return scheme;
+			}
+		}
+		return null;
+	}
+
 	// http://www.w3.org/TR/url/#default-port
 	public static int defaultPortForProtocol(@Nonnull String scheme) {
 		// NB this should just only be called with lowercase'd schemes
@@ -16,14 +16,27 @@ public abstract class URLWithScheme {
 	@Nonnull
 	public final String path;
 
+	// Computed the first time it is needed, like String's; 0 means not yet
+	private int hash = 0;
 
 	protected URLWithScheme(@Nonnull String scheme, @Nullable String host, @Nullable Integer port, @Nonnull String path) {
-		this.scheme = scheme.toLowerCase(Locale.ENGLISH);
-		this.host = host == null ? host : host.toLowerCase(Locale.ENGLISH);
+		this.scheme = lowercase(scheme);
+		this.host = host == null ? host : lowercase(host);
 		this.port = port;
 		this.path = path;
 	}
 
+	// The same as s.toLowerCase(Locale.ENGLISH), but only looks at each character once when there is nothing to change, which is the usual case
+	private static String lowercase(String s) {
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			if (c >= 'A' && c <= 'Z' || c > 0x7F) {
+				return s.toLowerCase(Locale.ENGLISH);
+			}
+		}
+		return s;
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (this == o) return true;
@@ -37,6 +50,12 @@ public abstract class URLWithScheme {
 
 	@Override
 	public int hashCode() {
-		return Objects.hash(scheme, host, port, path);
+		int hash = this.hash;
+		if (hash == 0) {
+			// The same as Objects.hash(scheme, host, port, path), without the array
+			hash = 31 * (31 * (31 * (31 + this.scheme.hashCode()) + Objects.hashCode(this.host)) + Objects.hashCode(this.port)) + this.path.hashCode();
+			this.hash = hash;
+		}
+		return hash;
 	}
 }
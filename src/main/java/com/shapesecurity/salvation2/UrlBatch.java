@@ -0,0 +1,130 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntPredicate;
+
+// The plumbing behind QueryablePolicy.allowsUrls: checking the arguments, putting the fetches which share a governing directive next to each other, and splitting the work across a ForkJoinPool.
+final class UrlBatch {
+	// Below this many fetches, a batch is not worth splitting
+	static final int PARALLEL_THRESHOLD = 512;
+
+	private UrlBatch() {
+		// Utility class
+	}
+
+	static void checkArguments(@Nonnull FetchDirectiveKind[] kinds, @Nonnull URLWithScheme[] urls) {
+		if (kinds.length != urls.length) {
+			throw new IllegalArgumentException("Got " + kinds.length + " kinds for " + urls.length + " urls");
+		}
+		for (FetchDirectiveKind kind : kinds) {
+			if (!isEffectiveDirectiveOfFetch(kind)) {
+				throw new IllegalArgumentException(kind.repr + " is not the effective directive of a fetch");
+			}
+		}
+	}
+
+	// https://w3c.github.io/webappsec-csp/#effective-directive-for-a-request
+	static boolean isEffectiveDirectiveOfFetch(FetchDirectiveKind kind) {
+		switch (kind) {
+			case ConnectSrc:
+			case FontSrc:
+			case FrameSrc:
+			case ImgSrc:
+			case ManifestSrc:
+			case MediaSrc:
+			case ObjectSrc:
+			case PrefetchSrc:
+			case ScriptSrcElem:
+			case StyleSrcElem:
+			case WorkerSrc:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	// The indices 0 to groups.length - 1, ordered so that those in the same group are consecutive, and otherwise in their original order.
+	// Groups are numbered from 0 to groupCount - 1.
+	@Nonnull
+	static int[] groupBy(@Nonnull int[] groups, int groupCount) {
+		// A counting sort, with each group's size turned into its starting offset
+		int[] offsets = new int[groupCount + 1];
+		for (int group : groups) {
+			++offsets[group + 1];
+		}
+		for (int group = 1; group < offsets.length; ++group) {
+			offsets[group] += offsets[group - 1];
+		}
+		int[] order = new int[groups.length];
+		for (int i = 0; i < groups.length; ++i) {
+			order[offsets[groups[i]]++] = i;
+		}
+		return order;
+	}
+
+	// The BitSet whose bit i is allows.test(i), for each i in `order`, which is evaluated in that order when `pool` is null and in pieces on `pool` otherwise.
+	// `allows` must be safe to call from several threads at once if there is a pool.
+	@Nonnull
+	static BitSet evaluate(@Nonnull int[] order, @Nonnull IntPredicate allows, @Nullable ForkJoinPool pool) {
+		BitSet allowed = new BitSet(order.length);
+		if (pool == null || order.length < PARALLEL_THRESHOLD) {
+			for (int index : order) {
+				if (allows.test(index)) {
+					allowed.set(index);
+				}
+			}
+			return allowed;
+		}
+		// BitSet is not thread-safe, so the pieces fill in an array which is copied into it at the end
+		boolean[] results = new boolean[order.length];
+		pool.invoke(new Evaluation(order, 0, order.length, allows, results));
+		for (int i = 0; i < results.length; ++i) {
+			if (results[i]) {
+				allowed.set(i);
+			}
+		}
+		return allowed;
+	}
+
+	private static void evaluate(int[] order, int start, int end, IntPredicate allows, boolean[] results) {
+		for (int i = start; i < end; ++i) {
+			int index = order[i];
+			results[index] = allows.test(index);
+		}
+	}
+
+	// Each index appears in `order` once, so the pieces write disjoint entries of `results`
+	private static final class Evaluation extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int[] order;
+		private final int start;
+		private final int end;
+		private final IntPredicate allows;
+		private final boolean[] results;
+
+		Evaluation(int[] order, int start, int end, IntPredicate allows, boolean[] results) {
+			this.order = order;
+			this.start = start;
+			this.end = end;
+			this.allows = allows;
+			this.results = results;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.end - this.start <= PARALLEL_THRESHOLD) {
+				evaluate(this.order, this.start, this.end, this.allows, this.results);
+				return;
+			}
+			int middle = (this.start + this.end) >>> 1;
+			invokeAll(new Evaluation(this.order, this.start, middle, this.allows, this.results), new Evaluation(this.order, middle, this.end, this.allows, this.results));
+		}
+	}
+}
@@ -14,15 +14,27 @@ public class Utils {
 	// https://infra.spec.whatwg.org/#split-on-ascii-whitespace
 	static List<String> splitOnAsciiWhitespace(String input) {
 		ArrayList<String> out = new ArrayList<>();
-		for (String value : input.split("[" + Constants.WHITESPACE_CHARS + "]")) {
-			if (value.isEmpty()) {
+		int length = input.length();
+		int i = 0;
+		while (i < length) {
+			if (isAsciiWhitespace(input.charAt(i))) {
+				++i;
 				continue;
 			}
-			out.add(value);
+			int start = i;
+			do {
+				++i;
+			} while (i < length && !isAsciiWhitespace(input.charAt(i)));
+			out.add(input.substring(start, i));
 		}
 		return out;
 	}
 
+	// https://infra.spec.whatwg.org/#ascii-whitespace
+	static boolean isAsciiWhitespace(char c) {
+		return c == '\t' || c == '\n' || c == '\f' || c == '\r' || c == ' ';
+	}
+
 	// https://infra.spec.whatwg.org/#strictly-split
 	static List<String> strictlySplit(@Nonnull String s, char delim) {
 		int off = 0;
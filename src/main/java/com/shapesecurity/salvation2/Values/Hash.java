@@ -3,19 +3,62 @@ package com.shapesecurity.salvation2.Values;
 import com.shapesecurity.salvation2.Utils;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Optional;
 
 public class Hash {
+	// Large enough to amortize the per-update overhead, small enough to stay in cache while all three digests read it
+	private static final int BLOCK_SIZE = 8192;
+
 	@Nonnull
 	public final Algorithm algorithm;
 	@Nonnull
 	public final String base64ValuePart;
+	// The decoded value, or null if it is not the canonical base64 (after mapping the URL-safe alphabet to the standard one) of a digest of the right length, in which case it can never match.
+	@Nullable
+	private final byte[] digest;
 
 	private Hash(Algorithm algorithm, String base64ValuePart) {
+		this(algorithm, base64ValuePart, decode(algorithm, base64ValuePart));
+	}
+
+	private Hash(Algorithm algorithm, String base64ValuePart, byte[] digest) {
 		this.algorithm = algorithm;
 		this.base64ValuePart = base64ValuePart;
+		this.digest = digest;
+	}
+
+	@Nullable
+	private static byte[] decode(Algorithm algorithm, String base64ValuePart) {
+		// Hashes are compared against the standard base64 encoding of the digest, so anything which does not re-encode to exactly that never matches
+		String normalized = base64ValuePart.replace('-', '+').replace('_', '/');
+		if (normalized.length() != algorithm.length) {
+			return null;
+		}
+		byte[] decoded;
+		try {
+			decoded = Base64.getDecoder().decode(normalized);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		if (!Base64.getEncoder().encodeToString(decoded).equals(normalized)) {
+			return null;
+		}
+		return decoded;
+	}
+
+	// The raw digest this hash allows, if it can match anything. The array is a copy.
+	@Nullable
+	public byte[] getDigest() {
+		return this.digest == null ? null : this.digest.clone();
 	}
 
 	public static Optional<Hash> parseHash(String value) {
@@ -44,6 +87,32 @@ public class Hash {
 		return Optional.empty();
 	}
 
+	// The hash-sources which would allow `source`, one for each algorithm, in the order of Algorithm.values().
+	// The UTF-8 encoding of the source is read once, a block at a time, feeding all three digests as it goes.
+	@Nonnull
+	public static List<Hash> allOf(@Nonnull String source) {
+		byte[] bytes = source.getBytes(StandardCharsets.UTF_8);
+		Algorithm[] algorithms = Algorithm.values();
+		MessageDigest[] digests = new MessageDigest[algorithms.length];
+		for (int i = 0; i < algorithms.length; ++i) {
+			digests[i] = algorithms[i].digests.get();
+			digests[i].reset();
+		}
+		for (int offset = 0; offset < bytes.length; offset += BLOCK_SIZE) {
+			int length = Math.min(BLOCK_SIZE, bytes.length - offset);
+			for (MessageDigest digest : digests) {
+				digest.update(bytes, offset, length);
+			}
+		}
+		List<Hash> hashes = new ArrayList<>(algorithms.length);
+		Base64.Encoder encoder = Base64.getEncoder();
+		for (int i = 0; i < algorithms.length; ++i) {
+			byte[] digest = digests[i].digest();
+			hashes.add(new Hash(algorithms[i], encoder.encodeToString(digest), digest));
+		}
+		return hashes;
+	}
+
 	@Override
 	public String toString() {
 		return "'" + this.algorithm.toString() + "-" + this.base64ValuePart + "'";
@@ -64,9 +133,9 @@ public class Hash {
 	}
 
 	public enum Algorithm {
-		SHA256("sha256", 44),
-		SHA384("sha384", 64),
-		SHA512("sha512", 88);
+		SHA256("sha256", 44, "SHA-256"),
+		SHA384("sha384", 64, "SHA-384"),
+		SHA512("sha512", 88, "SHA-512");
 
 		@Nonnull
 		private final String value;
@@ -74,10 +143,30 @@ public class Hash {
 		@Nonnull
 		public final int length;
 
+		// MessageDigest.getInstance looks up the provider and builds a new engine every time, so each thread keeps one of each and resets it between uses
+		@Nonnull
+		private final ThreadLocal<MessageDigest> digests;
+
 
-		Algorithm(@Nonnull String value, int length) {
+		Algorithm(@Nonnull String value, int length, @Nonnull String javaName) {
 			this.value = value;
 			this.length = length;
+			this.digests = ThreadLocal.withInitial(() -> {
+				try {
+					return MessageDigest.getInstance(javaName);
+				} catch (NoSuchAlgorithmException e) {
+					// Every Java platform is required to support these
+					throw new RuntimeException(e);
+				}
+			});
+		}
+
+		// The digest of `input`
+		@Nonnull
+		public byte[] digest(@Nonnull byte[] input) {
+			MessageDigest digest = this.digests.get();
+			digest.reset();
+			return digest.digest(input);
 		}
 
 		@Override
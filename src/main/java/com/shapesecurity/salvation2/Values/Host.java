@@ -1,6 +1,8 @@
 package com.shapesecurity.salvation2.Values;
 
 import com.shapesecurity.salvation2.Constants;
+import com.shapesecurity.salvation2.HostSourceParser;
+import com.shapesecurity.salvation2.HostSourcePath;
 import com.shapesecurity.salvation2.URLs.URI;
 
 import javax.annotation.Nonnull;
@@ -8,7 +10,6 @@ import javax.annotation.Nullable;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.regex.Matcher;
 
 public class Host {
 	@Nullable
@@ -18,6 +19,12 @@ public class Host {
 	public final int port;
 	@Nullable
 	public final String path;
+	// `path`, split and decoded for matching; null if there is no path
+	@Nullable
+	public final HostSourcePath parsedPath;
+	// Decided once here, since it only depends on `host` and matching needs it for every candidate
+	@Nonnull
+	public final Kind kind;
 
 	public static final Host STAR = new Host(null, "*", Constants.EMPTY_PORT, null);
 
@@ -26,35 +33,51 @@ public class Host {
 		this.host = host;
 		this.port = port;
 		this.path = path;
+		this.parsedPath = HostSourcePath.of(path);
+		this.kind = classify(host);
 	}
 
 	public static Optional<Host> parseHost(String value) {
-		Matcher matcher = Constants.hostSourcePattern.matcher(value);
-		if (matcher.find()) {
-			String scheme = matcher.group("scheme");
-			if (scheme != null) {
-				scheme = scheme.substring(0, scheme.length() - 3).toLowerCase(Locale.ENGLISH);
-			}
-			String portString = matcher.group("port");
-			int port;
-			if (portString == null) {
-				port = Constants.EMPTY_PORT;
-			} else {
-				port = portString.equals(":*") ? Constants.WILDCARD_PORT : Integer.parseInt(portString.substring(1));
-			}
-			// Hosts are only consumed lowercase: https://w3c.github.io/webappsec-csp/#host-part-match
-			String host = matcher.group("host").toLowerCase(Locale.ENGLISH); // There is no possible NPE here; host is not optional
-			String path = matcher.group("path");
-
-			// TODO contemplate warning for paths which contain `//`, `/../`, or `/./`, since those will never match an actual request
-			// TODO contemplate warning for ports which are implied by their scheme
-			// TODO think about IDN and percent-encoding :((((
-			// We really want paths to be minimally percent-encoded - all and only the things which need to be
-			// (IDN isn't that bad because we restrict to ascii)
-			return Optional.of(new Host(scheme, host, port, path));
-		} else {
+		HostSourceParser parsed = HostSourceParser.parse(value);
+		if (parsed == null) {
 			return Optional.empty();
 		}
+		String scheme = parsed.scheme();
+		if (scheme != null) {
+			scheme = scheme.toLowerCase(Locale.ENGLISH);
+		}
+		int port = parsed.port(Constants.EMPTY_PORT);
+		// Hosts are only consumed lowercase: https://w3c.github.io/webappsec-csp/#host-part-match
+		String host = parsed.host().toLowerCase(Locale.ENGLISH);
+		String path = parsed.path();
+
+		// TODO contemplate warning for paths which contain `//`, `/../`, or `/./`, since those will never match an actual request
+		// TODO contemplate warning for ports which are implied by their scheme
+		// TODO think about IDN and percent-encoding :((((
+		// We really want paths to be minimally percent-encoded - all and only the things which need to be
+		// (IDN isn't that bad because we restrict to ascii)
+		return Optional.of(new Host(scheme, host, port, path));
+	}
+
+	private static Kind classify(String host) {
+		// Only strings of digits and dots can be IPv4 addresses, and only strings with colons can be IPv6 addresses, so most hosts never reach the patterns
+		boolean digitsAndDots = true;
+		boolean colon = false;
+		for (int i = 0; i < host.length(); ++i) {
+			char c = host.charAt(i);
+			if (c == ':') {
+				colon = true;
+			} else if (c != '.' && (c < '0' || c > '9')) {
+				digitsAndDots = false;
+			}
+		}
+		if (digitsAndDots && Constants.IPv4address.matcher(host).find()) {
+			return host.equals("127.0.0.1") ? Kind.Loopback : Kind.IPv4;
+		}
+		if (colon && (Constants.IPv6addressWithOptionalBracket.matcher(host).find() || Constants.IPV6loopback.matcher(host).find())) {
+			return Kind.IPv6;
+		}
+		return Kind.Name;
 	}
 
 	@Override
@@ -83,4 +106,20 @@ public class Host {
 	public int hashCode() {
 		return Objects.hash(scheme, host, port, path);
 	}
+
+	// See https://w3c.github.io/webappsec-csp/#host-part-match
+	public enum Kind {
+		// A host name, possibly starting with a `*` wildcard
+		Name,
+		// An IPv4 address other than 127.0.0.1. These never match.
+		IPv4,
+		// An IPv6 address, including the loopback address. These never match.
+		IPv6,
+		// 127.0.0.1, the one IP address which host-sources may match
+		Loopback;
+
+		public boolean isMatchable() {
+			return this == Name || this == Loopback;
+		}
+	}
 }
@@ -0,0 +1,73 @@
+package com.shapesecurity.salvation2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.function.Supplier;
+
+// A deliberately tiny harness for the *Benchmark classes, which are run by hand rather than as part of `mvn test`:
+// mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.shapesecurity.salvation2.ParserBenchmark
+// The numbers are only meaningful relative to each other, on the same machine and JVM.
+final class Benchmark {
+	private static final long WARMUP_NANOS = 2_000_000_000L;
+	private static final long MEASURE_NANOS = 3_000_000_000L;
+
+	private static volatile int sink;
+
+	private Benchmark() {
+		// Utility class
+	}
+
+	static void run(String name, Supplier<?> body) {
+		long deadline = System.nanoTime() + WARMUP_NANOS;
+		long iterations = 0;
+		while (System.nanoTime() < deadline) {
+			consume(body.get());
+			++iterations;
+		}
+
+		// Aim for the measured run taking roughly MEASURE_NANOS, based on the warmup
+		long measured = Math.max(1, iterations * MEASURE_NANOS / WARMUP_NANOS);
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		for (long i = 0; i < measured; ++i) {
+			consume(body.get());
+		}
+		long elapsed = System.nanoTime() - start;
+		long allocated = allocatedBytes() - allocatedBefore;
+
+		System.out.printf("%-60s %12.1f ns/op %12.1f B/op%n", name, (double) elapsed / measured, allocatedBefore < 0 ? Double.NaN : (double) allocated / measured);
+	}
+
+	private static void consume(Object result) {
+		sink ^= System.identityHashCode(result);
+	}
+
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	// The real-world policies in csp.txt, one per line, as `host:policy`
+	static List<String> realWorldPolicies() throws IOException {
+		List<String> policies = new ArrayList<>();
+		try (InputStream in = Benchmark.class.getResourceAsStream("/csp.txt"); Scanner scanner = new Scanner(in, StandardCharsets.US_ASCII.name())) {
+			while (scanner.hasNextLine()) {
+				String line = scanner.nextLine();
+				int colon = line.indexOf(':');
+				if (colon != -1) {
+					policies.add(line.substring(colon + 1));
+				}
+			}
+		}
+		return policies;
+	}
+}
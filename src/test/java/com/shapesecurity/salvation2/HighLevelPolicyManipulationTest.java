@@ -5,6 +5,8 @@ import com.shapesecurity.salvation2.Directives.PluginTypesDirective;
 import com.shapesecurity.salvation2.Directives.ReportUriDirective;
 import com.shapesecurity.salvation2.Directives.SandboxDirective;
 import com.shapesecurity.salvation2.Directives.SourceExpressionDirective;
+import com.shapesecurity.salvation2.URLs.URI;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
 import com.shapesecurity.salvation2.Values.Hash;
 import com.shapesecurity.salvation2.Values.Host;
 import com.shapesecurity.salvation2.Values.MediaType;
@@ -22,6 +24,7 @@ import java.util.function.Supplier;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class HighLevelPolicyManipulationTest extends TestBase {
 	private class SourceDirectiveKind {
@@ -399,6 +402,10 @@ public class HighLevelPolicyManipulationTest extends TestBase {
 				assertAll.run();
 				assertEquals(nonces("'nonce-asdf'", "'nonce-ASDF'"), d.getNonces());
 				assertEquals(kind.repr + " 'nonce-asdf' 'nonce-ASDF'", p.toString());
+				assertTrue(d.containsNonce("asdf"));
+				assertTrue(d.containsNonce("ASDF"));
+				assertFalse(d.containsNonce("aSdF"));
+				assertFalse(d.containsNonce(""));
 
 				d.addNonce(nonce("'NONCE-asdf'"), manipulationErrorConsumer);
 				assertErrors(e(Directive.ManipulationErrorConsumer.Severity.Warning, "Duplicate nonce 'nonce-asdf'"));
@@ -411,9 +418,12 @@ public class HighLevelPolicyManipulationTest extends TestBase {
 				assertAll.run();
 				assertEquals(nonces("'nonce-ASDF'"), d.getNonces());
 				assertEquals(kind.repr + " 'nonce-ASDF'", p.toString());
+				assertFalse(d.containsNonce("asdf"));
+				assertTrue(d.containsNonce("ASDF"));
 
 				assertTrue(d.removeNonce(nonce("'nonce-ASDF'")));
 				assertFalse(d.removeNonce(nonce("'nonce-ASDF'")));
+				assertFalse(d.containsNonce("ASDF"));
 				assertions.add(noncesIsEmpty);
 				assertAll.run();
 				assertEquals(kind.repr + " 'none'", p.toString());
@@ -989,6 +999,198 @@ public class HighLevelPolicyManipulationTest extends TestBase {
 		});
 	}
 
+	@Test
+	public void testDuplicatesAfterRemoval() {
+		// Duplicates are found through sets kept alongside the lists, which have to follow removals
+		Policy p = Policy.parseSerializedCSP("script-src a.example.com https: 'nonce-abc' 'sha256-AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA='", throwIfPolicyError);
+		SourceExpressionDirective d = p.getFetchDirective(FetchDirectiveKind.ScriptSrc).get();
+		Hash hash = Hash.parseHash("'sha256-AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA='").get();
+
+		d.addHost(host("a.example.com"), manipulationErrorConsumer);
+		d.addScheme(scheme("https:"), manipulationErrorConsumer);
+		d.addNonce(nonce("'nonce-abc'"), manipulationErrorConsumer);
+		d.addHash(hash, manipulationErrorConsumer);
+		assertErrors(
+				e(Directive.ManipulationErrorConsumer.Severity.Warning, "Duplicate host a.example.com"),
+				e(Directive.ManipulationErrorConsumer.Severity.Warning, "Duplicate scheme https:"),
+				e(Directive.ManipulationErrorConsumer.Severity.Warning, "Duplicate nonce 'nonce-abc'"),
+				e(Directive.ManipulationErrorConsumer.Severity.Warning, "Duplicate hash 'sha256-AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA='")
+		);
+		assertTrue(d.containsHash(hash));
+
+		assertTrue(d.removeHost(host("a.example.com")));
+		assertTrue(d.removeScheme(scheme("https:")));
+		assertTrue(d.removeNonce(nonce("'nonce-abc'")));
+		assertTrue(d.removeHash(hash));
+		assertFalse(d.removeHost(host("a.example.com")));
+		assertFalse(d.removeScheme(scheme("https:")));
+		assertFalse(d.removeNonce(nonce("'nonce-abc'")));
+		assertFalse(d.removeHash(hash));
+		assertFalse(d.containsHash(hash));
+		assertFalse(d.containsNonce("abc"));
+		assertEquals("script-src 'none'", p.toString());
+
+		d.addHost(host("a.example.com"), manipulationErrorConsumer);
+		d.addScheme(scheme("https:"), manipulationErrorConsumer);
+		d.addNonce(nonce("'nonce-abc'"), manipulationErrorConsumer);
+		d.addHash(hash, manipulationErrorConsumer);
+		assertErrors();
+		assertEquals("script-src a.example.com https: 'nonce-abc' 'sha256-AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA='", p.toString());
+	}
+
+	@Test
+	public void testBulkManipulation() {
+		Policy p = Policy.parseSerializedCSP("script-src 'self' * A.example.com b.example.com https://c.example.com HTTPS: data: 'NONCE-abc' 'nonce-def' 'sha256-AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=' 'SHA384-BBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBB'", throwIfPolicyError);
+		SourceExpressionDirective d = p.getFetchDirective(FetchDirectiveKind.ScriptSrc).get();
+		Hash sha256 = Hash.parseHash("'sha256-AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA='").get();
+		Hash sha384 = Hash.parseHash("'sha384-BBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBB'").get();
+
+		// Values are matched however they are written
+		assertTrue(d.removeHosts(Arrays.asList(host("a.example.com"), host("https://c.example.com"), host("missing.example.com"))));
+		assertFalse(d.removeHosts(Arrays.asList(host("a.example.com"), host("missing.example.com"))));
+		assertTrue(d.removeSchemes(Arrays.asList(scheme("https:"), scheme("ftp:"))));
+		assertTrue(d.removeNonces(Arrays.asList(nonce("'nonce-abc'"))));
+		assertTrue(d.removeHashes(Arrays.asList(sha384)));
+		assertErrors();
+		assertEquals("script-src 'self' * b.example.com data: 'nonce-def' 'sha256-AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA='", p.toString());
+
+		d.addHosts(Arrays.asList(host("a.example.com"), host("b.example.com"), host("c.example.com")), manipulationErrorConsumer);
+		d.addSchemes(Arrays.asList(scheme("https:"), scheme("data:")), manipulationErrorConsumer);
+		d.addNonces(Arrays.asList(nonce("'nonce-abc'"), nonce("'nonce-def'")), manipulationErrorConsumer);
+		d.addHashes(Arrays.asList(sha384, sha256), manipulationErrorConsumer);
+		assertErrors(
+				e(Directive.ManipulationErrorConsumer.Severity.Warning, "Duplicate host b.example.com"),
+				e(Directive.ManipulationErrorConsumer.Severity.Warning, "Duplicate scheme data:"),
+				e(Directive.ManipulationErrorConsumer.Severity.Warning, "Duplicate nonce 'nonce-def'"),
+				e(Directive.ManipulationErrorConsumer.Severity.Warning, "Duplicate hash 'sha256-AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA='")
+		);
+		assertEquals("script-src 'self' * b.example.com data: 'nonce-def' 'sha256-AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=' a.example.com c.example.com https: 'nonce-abc' 'sha384-BBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBBB'", p.toString());
+
+		// `*` is not one of the host-sources, so retainHosts leaves it alone
+		assertTrue(d.retainHosts(Arrays.asList(host("c.example.com"))));
+		assertFalse(d.retainHosts(Arrays.asList(host("c.example.com"))));
+		assertTrue(d.retainSchemes(Arrays.asList(scheme("https:"))));
+		assertTrue(d.retainNonces(Arrays.asList(nonce("'nonce-abc'"))));
+		assertTrue(d.retainHashes(Arrays.asList(sha256)));
+		assertEquals("script-src 'self' * 'sha256-AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=' c.example.com https: 'nonce-abc'", p.toString());
+		assertEquals(Arrays.asList(host("c.example.com")), d.getHosts());
+		assertTrue(d.containsNonce("abc"));
+		assertFalse(d.containsNonce("def"));
+		assertTrue(d.containsHash(sha256));
+		assertFalse(d.containsHash(sha384));
+
+		// Removing `*` along with hosts turns the star off
+		assertTrue(d.removeHosts(Arrays.asList(Host.STAR, host("c.example.com"))));
+		assertFalse(d.star());
+		assertTrue(d.removeSchemes(Arrays.asList(scheme("https:"))));
+		assertTrue(d.removeNonces(Arrays.asList(nonce("'nonce-abc'"))));
+		assertTrue(d.removeHashes(Arrays.asList(sha256)));
+		d.setSelf(false);
+		assertEquals("script-src 'none'", p.toString());
+	}
+
+	@Test
+	public void testPolicyOptimizer() {
+		// `*` covers scheme-sources and host-sources on network schemes, but not those on wss:, nor ones without a scheme, which a ws: origin extends to wss:
+		assertOptimized("script-src * https: HTTP://a.example.com https://b.example.com/x wss://c.example.com example.com", "script-src * wss://c.example.com example.com");
+		assertOptimized("img-src http: https: https://a.example.com:443 ws://b.example.com", "img-src http: ws://b.example.com");
+		// Wildcard hosts and path prefixes; a host-source without a scheme does not cover one with a scheme, since it matches nothing without an origin
+		assertOptimized("connect-src *.example.com a.example.com https://*.example.com:443/api/ https://x.example.com/api/v1 https://x.example.com/apiv2 https://x.example.com:8443/api/", "connect-src *.example.com https://*.example.com:443/api/ https://x.example.com/apiv2 https://x.example.com:8443/api/");
+		// An explicit default port also accepts URLs without a port, so it covers an implicit one but not the other way around
+		assertOptimized("frame-ancestors https://a.example.com:* https://a.example.com:*/", "frame-ancestors https://a.example.com:*");
+		assertOptimized("frame-ancestors https://a.example.com https://A.example.com:443", "frame-ancestors https://A.example.com:443");
+		// Directives which are the same as their fallback go, however their sources are written
+		assertOptimized("default-src 'self' https:; img-src https: 'SELF' https://cdn.example.com; script-src 'self' https: 'unsafe-inline'; script-src-elem 'self' https: 'unsafe-inline'", "default-src 'self' https:; script-src 'self' https: 'unsafe-inline'");
+		// but not when some kind of fetch they govern would fall back to something else, nor when they govern nothing
+		assertOptimized("default-src 'none'; script-src 'self'; child-src 'self'", "default-src 'none'; script-src 'self'; child-src 'self'");
+		assertOptimized("script-src 'self'; child-src 'self'; frame-src 'none'", "script-src 'self'; frame-src 'none'");
+		assertOptimized("default-src 'self'; child-src 'self'; frame-src 'self'; worker-src 'self'", "default-src 'self'");
+		assertOptimized("default-src 'self'; child-src 'none'; frame-src 'self'; worker-src 'self'", "default-src 'self'; child-src 'none'; frame-src 'self'; worker-src 'self'");
+
+		Policy p = Policy.parseSerializedCSP("default-src https:; img-src https: https://example.com", throwIfPolicyError);
+		PolicyOptimizer.Result result = PolicyOptimizer.optimize(p);
+		assertEquals("default-src https:", result.policy.toString());
+		assertEquals("default-src https:; img-src https: https://example.com".length(), result.originalLength);
+		assertEquals("default-src https:".length(), result.optimizedLength);
+		assertEquals(result.originalLength - result.optimizedLength, result.bytesSaved());
+		// The input is left as it is
+		assertEquals("default-src https:; img-src https: https://example.com", p.toString());
+	}
+
+	private void assertOptimized(String original, String optimized) {
+		assertEquals(optimized, PolicyOptimizer.optimize(Policy.parseSerializedCSP(original, throwIfPolicyError)).policy.toString());
+	}
+
+	@Test
+	public void testFreeze() {
+		Policy p = Policy.parseSerializedCSP("default-src 'self'; script-src https://cdn.example.com 'nonce-abc'; img-src a.example.com; frame-ancestors 'none'; report-to group", throwIfPolicyError);
+		FrozenPolicy frozen = p.freeze();
+		URLWithScheme origin = URI.parseURI("https://example.com").get();
+		String original = frozen.toString();
+		assertEquals(p.toString(), original);
+
+		// Later changes to the policy do not reach the snapshot
+		p.getFetchDirective(FetchDirectiveKind.ImgSrc).get().addHost(host("b.example.com"), throwIfManipulationError);
+		p.remove("script-src");
+		assertEquals(original, frozen.toString());
+		assertFalse(frozen.allowsImageNullable(URI.parseURI("https://b.example.com/x.png").get(), origin));
+		assertTrue(frozen.allowsExternalScriptNullable(null, null, URI.parseURI("https://cdn.example.com/a.js").get(), TriState.Unknown, null));
+
+		PolicyBuilder builder = frozen.toBuilder()
+				.editFetchDirective(FetchDirectiveKind.ImgSrc, d -> d.addHost(host("b.example.com"), throwIfManipulationError))
+				.editFetchDirective(FetchDirectiveKind.ImgSrc, d -> d.addScheme(scheme("data:"), throwIfManipulationError))
+				.editDirective("frame-ancestors", FrameAncestorsDirective.class, d -> d.setSelf(true))
+				.setReportTo(RFC7230Token.parseRFC7230Token("other").get())
+				.setUpgradeInsecureRequests(true);
+		FrozenPolicy edited = builder.build();
+		assertEquals("default-src 'self'; script-src https://cdn.example.com 'nonce-abc'; img-src a.example.com b.example.com data:; frame-ancestors 'self'; report-to other; upgrade-insecure-requests", edited.toString());
+		assertEquals(original, frozen.toString());
+		assertTrue(edited.allowsImageNullable(URI.parseURI("https://b.example.com/x.png").get(), origin));
+		assertFalse(frozen.allowsImageNullable(URI.parseURI("https://b.example.com/x.png").get(), origin));
+
+		// Directives which were not edited are shared, and edited ones are copied once
+		assertTrue(frozen.policy.getFetchDirective(FetchDirectiveKind.ScriptSrc).get() == edited.policy.getFetchDirective(FetchDirectiveKind.ScriptSrc).get());
+		assertTrue(frozen.policy.getFetchDirective(FetchDirectiveKind.DefaultSrc).get() == edited.policy.getFetchDirective(FetchDirectiveKind.DefaultSrc).get());
+		assertFalse(frozen.policy.getFetchDirective(FetchDirectiveKind.ImgSrc).get() == edited.policy.getFetchDirective(FetchDirectiveKind.ImgSrc).get());
+		assertFalse(frozen.policy.frameAncestors().get() == edited.policy.frameAncestors().get());
+
+		// The builder can keep going without disturbing what it already built
+		FrozenPolicy further = builder
+				.editFetchDirective(FetchDirectiveKind.ImgSrc, d -> d.removeHost(host("a.example.com")))
+				.remove("script-src")
+				.build();
+		assertEquals("default-src 'self'; img-src b.example.com data:; frame-ancestors 'self'; report-to other; upgrade-insecure-requests", further.toString());
+		assertTrue(edited.allowsImageNullable(URI.parseURI("https://a.example.com/x.png").get(), origin));
+		assertFalse(further.allowsImageNullable(URI.parseURI("https://a.example.com/x.png").get(), origin));
+		assertTrue(edited.policy.frameAncestors().get() == further.policy.frameAncestors().get());
+
+		// Thawing gives an independent, mutable policy
+		Policy thawed = further.thaw();
+		thawed.setUpgradeInsecureRequests(false);
+		thawed.getFetchDirective(FetchDirectiveKind.ImgSrc).get().setSelf(true);
+		assertEquals("default-src 'self'; img-src b.example.com data: 'self'; frame-ancestors 'self'; report-to other", thawed.toString());
+		assertEquals("default-src 'self'; img-src b.example.com data:; frame-ancestors 'self'; report-to other; upgrade-insecure-requests", further.toString());
+
+		// Building from scratch
+		FrozenPolicy built = new PolicyBuilder().add("script-src", Arrays.asList("'self'", "https:"), Directive.DirectiveErrorConsumer.ignored).build();
+		assertEquals("script-src 'self' https:", built.toString());
+		assertTrue(built.allowsExternalScriptNullable(null, null, URI.parseURI("https://example.com/a.js").get(), TriState.Unknown, null));
+		assertFalse(built.allowsEval());
+
+		try {
+			new PolicyBuilder().editFetchDirective(FetchDirectiveKind.ImgSrc, d -> d.setSelf(true));
+			fail("editing a missing directive should throw");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			frozen.toBuilder().editDirective("report-to", SourceExpressionDirective.class, d -> d.setSelf(true));
+			fail("editing a directive as the wrong type should throw");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
 	private ArrayList<ManipulationError> observedErrors = new ArrayList<>();
 
 	private Directive.ManipulationErrorConsumer manipulationErrorConsumer = (severity, message) -> {
@@ -0,0 +1,54 @@
+package com.shapesecurity.salvation2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+
+// See Benchmark for how to run this.
+public class HostSourceBenchmark {
+	public static void main(String[] args) {
+		List<String> typical = Arrays.asList(
+				"https://example.com",
+				"*.example.com",
+				"https://*.cdn.example.com:443/static/js/",
+				"example.com:*",
+				"https://www.google-analytics.com/analytics.js",
+				"wss://realtime.example.com:8443/socket?x=1#y"
+		);
+		compare("typical host-sources", typical);
+
+		StringBuilder longPath = new StringBuilder("https://example.com");
+		while (longPath.length() < 2000) {
+			longPath.append("/segment-").append(longPath.length()).append("%2F;a=b");
+		}
+		compare("2000 character path", Arrays.asList(longPath.toString()));
+
+		// Each of these runs to the end of a long path before failing to match, which makes the pattern give back one character at a time
+		StringBuilder manySegments = new StringBuilder("https://example.com");
+		for (int i = 0; i < 500; ++i) {
+			manySegments.append("/a");
+		}
+		compare("many segments, then an invalid percent-encoding", Arrays.asList(manySegments + "%zz", manySegments + "%", manySegments + "\\"));
+	}
+
+	private static void compare(String name, List<String> inputs) {
+		Benchmark.run(name + ": Constants.hostSourcePattern", () -> {
+			List<Object> out = new ArrayList<>(inputs.size());
+			for (String input : inputs) {
+				Matcher matcher = Constants.hostSourcePattern.matcher(input);
+				out.add(matcher.find() ? matcher.group("path") : null);
+			}
+			return out;
+		});
+
+		Benchmark.run(name + ": HostSourceParser", () -> {
+			List<Object> out = new ArrayList<>(inputs.size());
+			for (String input : inputs) {
+				HostSourceParser parsed = HostSourceParser.parse(input);
+				out.add(parsed != null ? parsed.path() : null);
+			}
+			return out;
+		});
+	}
+}
@@ -0,0 +1,69 @@
+package com.shapesecurity.salvation2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// This is how Policy.parseSerializedCSP used to split its input, with String.split and regexes, kept as a reference for tests and a baseline for benchmarks
+class LegacyParser {
+	private LegacyParser() {
+		// Utility class
+	}
+
+	static Policy parseSerializedCSP(String serialized, Policy.PolicyErrorConsumer policyErrorConsumer) {
+		Policy.enforceAscii(serialized);
+		if (serialized.contains(",")) {
+			throw new IllegalArgumentException("Serialized CSPs cannot contain commas - you may have wanted parseSerializedCSPList");
+		}
+
+		int[] index = { 0 };
+		Directive.DirectiveErrorConsumer directiveErrorConsumer = (severity, message, valueIndex) -> policyErrorConsumer.add(severity, message, index[0], valueIndex);
+
+		Policy policy = Policy.parseSerializedCSP("", Policy.PolicyErrorConsumer.ignored);
+		for (String token : serialized.split(";")) {
+			String stripped = strip(token);
+			if (!stripped.isEmpty()) {
+				String directiveName = directiveName(stripped);
+				policy.add(directiveName, values(stripped.substring(directiveName.length())), directiveErrorConsumer);
+			}
+			// Empty directives still count towards the indices in errors
+			++index[0];
+		}
+		return policy;
+	}
+
+	// Alternating directive names and lists of values, skipping empty directives
+	static List<Object> tokenize(String serialized) {
+		List<Object> out = new ArrayList<>();
+		for (String token : serialized.split(";")) {
+			String stripped = strip(token);
+			if (stripped.isEmpty()) {
+				continue;
+			}
+			String directiveName = directiveName(stripped);
+			out.add(directiveName);
+			out.add(values(stripped.substring(directiveName.length())));
+		}
+		return out;
+	}
+
+	private static String strip(String token) {
+		return token.replaceFirst("^[" + Constants.WHITESPACE_CHARS + "]+", "").replaceAll("[" + Constants.WHITESPACE_CHARS + "]+$", "");
+	}
+
+	private static String directiveName(String stripped) {
+		Matcher matcher = Pattern.compile("[^" + Constants.WHITESPACE_CHARS + "]+").matcher(stripped);
+		return !matcher.find() || matcher.start() != 0 ? "" : stripped.substring(0, matcher.end());
+	}
+
+	private static List<String> values(String remaining) {
+		List<String> values = new ArrayList<>();
+		for (String value : remaining.split("[" + Constants.WHITESPACE_CHARS + "]")) {
+			if (!value.isEmpty()) {
+				values.add(value);
+			}
+		}
+		return values;
+	}
+}
@@ -0,0 +1,229 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.Directives.SourceExpressionDirective;
+import com.shapesecurity.salvation2.Values.Host;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+// See Benchmark for how to run this.
+public class ParserBenchmark {
+	public static void main(String[] args) throws IOException {
+		List<String> policies = Benchmark.realWorldPolicies();
+
+		Benchmark.run("parse csp.txt: regex pipeline (previous implementation)", () -> {
+			List<Policy> out = new ArrayList<>(policies.size());
+			for (String policy : policies) {
+				out.add(LegacyParser.parseSerializedCSP(policy, Policy.PolicyErrorConsumer.ignored));
+			}
+			return out;
+		});
+
+		Benchmark.run("parse csp.txt: Policy.parseSerializedCSP", () -> {
+			List<Policy> out = new ArrayList<>(policies.size());
+			for (String policy : policies) {
+				out.add(Policy.parseSerializedCSP(policy, Policy.PolicyErrorConsumer.ignored));
+			}
+			return out;
+		});
+
+		Benchmark.run("parse csp.txt: Policy.parseSerializedCSP, collecting messages", () -> {
+			List<Object> out = new ArrayList<>(policies.size());
+			for (String policy : policies) {
+				out.add(Policy.parseSerializedCSP(policy, (severity, message, directiveIndex, valueIndex) -> out.add(message)));
+			}
+			return out;
+		});
+
+		Benchmark.run("parse csp.txt: Policy.parseSerializedCSP, collecting ErrorKinds", () -> {
+			List<Object> out = new ArrayList<>(policies.size());
+			Policy.PolicyErrorConsumer structured = new Policy.PolicyErrorConsumer() {
+				@Override
+				public void add(Policy.Severity severity, String message, int directiveIndex, int valueIndex) {
+					out.add(message);
+				}
+
+				@Override
+				public void add(ErrorKind kind, Object detail, int directiveIndex, int valueIndex) {
+					out.add(kind);
+				}
+			};
+			for (String policy : policies) {
+				out.add(Policy.parseSerializedCSP(policy, structured));
+			}
+			return out;
+		});
+
+		Benchmark.run("parse csp.txt and query script-src: parseSerializedCSP", () -> {
+			int allowed = 0;
+			for (String policy : policies) {
+				if (Policy.parseSerializedCSP(policy, Policy.PolicyErrorConsumer.ignored).allowsEval()) {
+					++allowed;
+				}
+			}
+			return allowed;
+		});
+
+		Benchmark.run("parse csp.txt and query script-src: parseSerializedCSPLazily", () -> {
+			int allowed = 0;
+			for (String policy : policies) {
+				if (Policy.parseSerializedCSPLazily(policy).allowsEval()) {
+					++allowed;
+				}
+			}
+			return allowed;
+		});
+
+		List<ByteBuffer> buffers = new ArrayList<>(policies.size());
+		for (String policy : policies) {
+			byte[] bytes = policy.getBytes(StandardCharsets.US_ASCII);
+			ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+			buffer.put(bytes);
+			buffer.flip();
+			buffers.add(buffer);
+		}
+
+		Benchmark.run("parse csp.txt: decode direct ByteBuffer, then parse", () -> {
+			List<Policy> out = new ArrayList<>(buffers.size());
+			for (ByteBuffer buffer : buffers) {
+				out.add(Policy.parseSerializedCSP(StandardCharsets.US_ASCII.decode(buffer.duplicate()).toString(), Policy.PolicyErrorConsumer.ignored));
+			}
+			return out;
+		});
+
+		Benchmark.run("parse csp.txt: Policy.parseSerializedCSP(ByteBuffer)", () -> {
+			List<Policy> out = new ArrayList<>(buffers.size());
+			for (ByteBuffer buffer : buffers) {
+				out.add(Policy.parseSerializedCSP(buffer, Policy.PolicyErrorConsumer.ignored));
+			}
+			return out;
+		});
+
+		Benchmark.run("tokenize csp.txt: regex pipeline (previous implementation)", () -> {
+			List<Object> out = new ArrayList<>(policies.size());
+			for (String policy : policies) {
+				out.add(LegacyParser.tokenize(policy));
+			}
+			return out;
+		});
+
+		Benchmark.run("tokenize csp.txt: PolicyTokenizer", () -> {
+			List<Object> out = new ArrayList<>(policies.size());
+			for (String policy : policies) {
+				PolicyTokenizer tokenizer = PolicyTokenizer.tokenize(policy, false);
+				for (int i = 0; i < tokenizer.directiveCount(); ++i) {
+					out.add(tokenizer.directiveName(i));
+					out.add(tokenizer.directiveValues(i));
+				}
+			}
+			return out;
+		});
+
+		editSnapshot();
+
+		for (int count : new int[] { 10, 100, 1000, 10000 }) {
+			manySources(count);
+		}
+
+		removeManyHosts();
+
+		optimize(policies);
+	}
+
+	// PolicyOptimizer over the real-world policies, and how much it saves on them
+	private static void optimize(List<String> serialized) {
+		List<Policy> policies = new ArrayList<>(serialized.size());
+		for (String policy : serialized) {
+			policies.add(Policy.parseSerializedCSP(policy, Policy.PolicyErrorConsumer.ignored));
+		}
+		long before = 0;
+		long saved = 0;
+		for (Policy policy : policies) {
+			PolicyOptimizer.Result result = PolicyOptimizer.optimize(policy);
+			before += result.originalLength;
+			saved += result.bytesSaved();
+		}
+		System.out.println("PolicyOptimizer saves " + saved + " of " + before + " bytes on csp.txt");
+
+		Benchmark.run("optimize csp.txt: PolicyOptimizer", () -> {
+			List<Policy> out = new ArrayList<>(policies.size());
+			for (Policy policy : policies) {
+				out.add(PolicyOptimizer.optimize(policy).policy);
+			}
+			return out;
+		});
+	}
+
+	// Parsing directives with many sources of one kind, which should cost about the same per source however many there are
+	private static void manySources(int count) {
+		StringBuilder hosts = new StringBuilder("script-src");
+		StringBuilder nonces = new StringBuilder("script-src");
+		StringBuilder hashes = new StringBuilder("script-src");
+		for (int i = 0; i < count; ++i) {
+			hosts.append(" https://host").append(i).append(".example.com");
+			nonces.append(" 'nonce-").append(Base64.getEncoder().encodeToString(("nonce" + i).getBytes(StandardCharsets.US_ASCII))).append('\'');
+			hashes.append(" 'sha256-").append(Base64.getEncoder().encodeToString(Arrays.copyOf(ByteBuffer.allocate(4).putInt(i).array(), 32))).append('\'');
+		}
+		for (String[] kind : new String[][] { { "host-sources", hosts.toString() }, { "nonces", nonces.toString() }, { "hashes", hashes.toString() } }) {
+			Benchmark.run("parse " + count + " " + kind[0], () -> Policy.parseSerializedCSP(kind[1], Policy.PolicyErrorConsumer.ignored));
+		}
+	}
+
+	// Removing half of the host-sources of a large directive one at a time and all at once. Each run parses the directive first, so the parse alone is a baseline.
+	private static void removeManyHosts() {
+		StringBuilder serialized = new StringBuilder("script-src 'self'");
+		List<Host> removed = new ArrayList<>();
+		for (int i = 0; i < 2000; ++i) {
+			String host = "https://host" + i + ".example.com";
+			serialized.append(' ').append(host);
+			if (i % 2 == 0) {
+				removed.add(Host.parseHost(host).get());
+			}
+		}
+		String header = serialized.toString();
+
+		Benchmark.run("parse 2000 host-sources", () -> Policy.parseSerializedCSP(header, Policy.PolicyErrorConsumer.ignored));
+
+		Benchmark.run("parse 2000 host-sources, then removeHost 1000 of them", () -> {
+			Policy policy = Policy.parseSerializedCSP(header, Policy.PolicyErrorConsumer.ignored);
+			SourceExpressionDirective directive = policy.getFetchDirective(FetchDirectiveKind.ScriptSrc).get();
+			for (Host host : removed) {
+				directive.removeHost(host);
+			}
+			return policy;
+		});
+
+		Benchmark.run("parse 2000 host-sources, then removeHosts 1000 of them", () -> {
+			Policy policy = Policy.parseSerializedCSP(header, Policy.PolicyErrorConsumer.ignored);
+			policy.getFetchDirective(FetchDirectiveKind.ScriptSrc).get().removeHosts(removed);
+			return policy;
+		});
+	}
+
+	// Adding one host to a policy with several large directives, by parsing the edited header again and by editing a snapshot; the snapshot shares the untouched directives and their indexes
+	private static void editSnapshot() {
+		StringBuilder serialized = new StringBuilder("default-src 'self'");
+		for (String directive : new String[] { "script-src", "style-src", "connect-src", "img-src" }) {
+			serialized.append("; ").append(directive);
+			for (int i = 0; i < 500; ++i) {
+				serialized.append(" https://").append(directive).append(i).append(".example.com");
+			}
+		}
+		String header = serialized.toString();
+		FrozenPolicy frozen = Policy.parseSerializedCSP(header, Policy.PolicyErrorConsumer.ignored).freeze();
+		Host added = Host.parseHost("https://new.example.com").get();
+
+		Benchmark.run("add one img-src host: parse the edited header and compile", () ->
+				Policy.parseSerializedCSP(header + " https://new.example.com", Policy.PolicyErrorConsumer.ignored).compile()
+		);
+
+		Benchmark.run("add one img-src host: PolicyBuilder on a FrozenPolicy", () ->
+				frozen.toBuilder().editFetchDirective(FetchDirectiveKind.ImgSrc, d -> d.addHost(added, Directive.ManipulationErrorConsumer.ignored)).build()
+		);
+	}
+}
@@ -1,12 +1,29 @@
 package com.shapesecurity.salvation2;
 
+import com.shapesecurity.salvation2.URLs.GUID;
+import com.shapesecurity.salvation2.URLs.URI;
+import com.shapesecurity.salvation2.Values.Host;
 import com.shapesecurity.salvation2.Values.Scheme;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.regex.Matcher;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ParserTest extends TestBase {
 	@Test
@@ -427,6 +444,323 @@ public class ParserTest extends TestBase {
 		);
 	}
 
+	@Test
+	public void testIndicesCountEmptyDirectivesAndPolicies() {
+		serializesTo(
+				" ;\t; default-src a a;;img-src b b ;",
+				"default-src a a; img-src b b",
+				e(Policy.Severity.Warning, "Duplicate host a", 2, 1),
+				e(Policy.Severity.Warning, "Duplicate host b", 4, 1)
+		);
+
+		ArrayList<PolicyListError> observedErrors = new ArrayList<>();
+		Policy.PolicyListErrorConsumer consumer = (severity, message, policyIndex, directiveIndex, valueIndex) -> {
+			observedErrors.add(e(severity, message, policyIndex, directiveIndex, valueIndex));
+		};
+		PolicyList p = Policy.parseSerializedCSPList(" , ;, ; default-src a a,img-src b b", consumer);
+		assertEquals("default-src a a, img-src b b", p.toString());
+
+		PolicyListError[] errors = {
+				e(Policy.Severity.Warning, "Duplicate host a", 2, 1, 1),
+				e(Policy.Severity.Warning, "Duplicate host b", 3, 0, 1)
+		};
+		assertEquals("should have the expected number of errors", errors.length, observedErrors.size());
+		for (int i = 0; i < errors.length; ++i) {
+			assertEquals(errors[i], observedErrors.get(i));
+		}
+	}
+
+	@Test
+	public void testRealWorldPolicies() throws IOException {
+		// The tokenizer has to produce the same policy and the same errors, at the same indices, as the split-and-regex pipeline it replaced
+		for (String serialized : Benchmark.realWorldPolicies()) {
+			ArrayList<PolicyError> expectedErrors = new ArrayList<>();
+			Policy expected = LegacyParser.parseSerializedCSP(serialized, (severity, message, directiveIndex, valueIndex) -> {
+				expectedErrors.add(e(severity, message, directiveIndex, valueIndex));
+			});
+			ArrayList<PolicyError> observedErrors = new ArrayList<>();
+			Policy policy = Policy.parseSerializedCSP(serialized, (severity, message, directiveIndex, valueIndex) -> {
+				observedErrors.add(e(severity, message, directiveIndex, valueIndex));
+			});
+			assertEquals(serialized, expected.toString(), policy.toString());
+			assertEquals(serialized, expectedErrors, observedErrors);
+
+			String reserialized = policy.toString();
+			assertEquals(reserialized, Policy.parseSerializedCSP(reserialized, Policy.PolicyErrorConsumer.ignored).toString());
+		}
+	}
+
+	@Test
+	public void testLazyParsing() throws IOException {
+		for (String serialized : Benchmark.realWorldPolicies()) {
+			assertEquals(Policy.parseSerializedCSP(serialized, Policy.PolicyErrorConsumer.ignored).toString(), Policy.parseSerializedCSPLazily(serialized).toString());
+		}
+
+		// The first of a duplicated directive is the one which takes effect, and the rest are preserved
+		Policy eager = Policy.parseSerializedCSP("script-src a; SCRIPT-SRC b; report-to x y; report-to z; upgrade-insecure-requests; sandbox allow-forms", Policy.PolicyErrorConsumer.ignored);
+		Policy lazy = Policy.parseSerializedCSPLazily("script-src a; SCRIPT-SRC b; report-to x y; report-to z; upgrade-insecure-requests; sandbox allow-forms");
+		assertEquals(eager.getFetchDirective(FetchDirectiveKind.ScriptSrc).get().getHosts(), lazy.getFetchDirective(FetchDirectiveKind.ScriptSrc).get().getHosts());
+		assertEquals(eager.reportTo(), lazy.reportTo());
+		assertEquals("z", lazy.reportTo().get().toString());
+		assertTrue(lazy.upgradeInsecureRequests());
+		assertEquals(eager.sandbox().get().allowForms(), lazy.sandbox().get().allowForms());
+		assertEquals(eager.allowsEval(), lazy.allowsEval());
+		assertEquals(eager.toString(), lazy.toString());
+
+		// Directives handed out before the rest of the policy is materialized are the ones which end up in the policy
+		lazy = Policy.parseSerializedCSPLazily("default-src a; img-src b");
+		lazy.getFetchDirective(FetchDirectiveKind.ImgSrc).get().setSelf(true);
+		assertEquals("default-src a; img-src b 'self'", lazy.toString());
+
+		lazy = Policy.parseSerializedCSPLazily("default-src a; img-src b");
+		lazy.getFetchDirective(FetchDirectiveKind.DefaultSrc).get().setStar(true);
+		lazy.add("style-src", Collections.singletonList("c"), Directive.DirectiveErrorConsumer.ignored);
+		assertEquals("default-src a *; img-src b; style-src c", lazy.toString());
+
+		PolicyList list = Policy.parseSerializedCSPListLazily("script-src a, , img-src b; script-src c");
+		assertEquals(2, list.policies.size());
+		assertEquals("script-src a, img-src b; script-src c", list.toString());
+	}
+
+	@Test
+	public void testPolicyCache() {
+		PolicyCache cache = new PolicyCache(2);
+		String header = "script-src a a, img-src 'self'";
+		PolicyListError duplicate = e(Policy.Severity.Warning, "Duplicate host a", 0, 0, 1);
+
+		ArrayList<PolicyListError> observedErrors = new ArrayList<>();
+		Policy.PolicyListErrorConsumer consumer = (severity, message, policyIndex, directiveIndex, valueIndex) -> observedErrors.add(e(severity, message, policyIndex, directiveIndex, valueIndex));
+		CompiledPolicyList first = cache.parseSerializedCSPList(header, consumer);
+		assertFalse(first.allowsEval());
+		assertEquals(Collections.singletonList(duplicate), observedErrors);
+		assertEquals(0, cache.hitCount());
+		assertEquals(1, cache.missCount());
+
+		// Warnings are replayed on a hit
+		observedErrors.clear();
+		assertTrue(first == cache.parseSerializedCSPList(header, consumer));
+		assertEquals(Collections.singletonList(duplicate), observedErrors);
+		assertEquals(1, cache.hitCount());
+
+		// Bytes are keyed by content, not identity
+		byte[] bytes = ("xx" + header).getBytes(StandardCharsets.US_ASCII);
+		CompiledPolicyList fromBytes = cache.parseSerializedCSPList(bytes, 2, bytes.length - 2, Policy.PolicyListErrorConsumer.ignored);
+		bytes[2] = 'X';
+		assertTrue(fromBytes == cache.parseSerializedCSPList(header.getBytes(StandardCharsets.US_ASCII), 0, header.length(), Policy.PolicyListErrorConsumer.ignored));
+		assertEquals(2, cache.hitCount());
+		assertEquals(2, cache.size());
+
+		// Buffers share entries with arrays, whether or not they are direct, and keep their position
+		ByteBuffer direct = ByteBuffer.allocateDirect(header.length() + 1);
+		direct.put((byte) 'x').put(header.getBytes(StandardCharsets.US_ASCII)).flip().position(1);
+		assertTrue(fromBytes == cache.parseSerializedCSPList(direct, Policy.PolicyListErrorConsumer.ignored));
+		assertEquals(1, direct.position());
+		assertEquals(3, cache.hitCount());
+		assertEquals(2, cache.size());
+
+		// The least recently used entry goes first
+		cache.parseSerializedCSPList("default-src 'none'", throwIfPolicyListError);
+		assertEquals(1, cache.evictionCount());
+		assertEquals(2, cache.size());
+		assertTrue(first != cache.parseSerializedCSPList(header, Policy.PolicyListErrorConsumer.ignored));
+		assertEquals(2, cache.evictionCount());
+
+		// Input which cannot be parsed is not cached
+		try {
+			cache.parseSerializedCSPList("script-src \u00e9", throwIfPolicyListError);
+			fail();
+		} catch (IllegalArgumentException expected) {
+			// ignored
+		}
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void testHostSourceParserAgreesWithPattern() {
+		List<String> inputs = new ArrayList<>(Arrays.asList(
+				"", "*", "*.", "*.a", "**.a", "a.*", "a..b", "a.b.", "-", "a-b.c-d",
+				"https://example.com:443/a/b;c=d?e#f", "HTTPS://EXAMPLE.COM", "a+b.c-d://e", "1a://b", "a:b", "a://", "a://*", "a://*:*", "a://*.b:12/",
+				"example.com:", "example.com:*/", "example.com:99999999999999999999x", "example.com/%", "example.com/%4", "example.com/%4g", "example.com/%4F%4f",
+				"example.com/a?b#c#d", "example.com?#", "example.com#\n", "example.com#a\r\n", "example.com#a\n\n", "example.com\r", "example.com\r\n", "example.com\n\r",
+				"example.com/\u0085", "example.com/\u2028", "example.com/a\u2029", "example.com?\u2028\u2029", "example.com/\u00e9", "example.com/ "
+		));
+		String alphabet = "a1*.:/%f?#-@\n\r";
+		List<String> words = new ArrayList<>(Collections.singletonList(""));
+		for (int length = 1; length <= 4; ++length) {
+			List<String> longer = new ArrayList<>();
+			for (String word : words) {
+				for (int i = 0; i < alphabet.length(); ++i) {
+					longer.add(word + alphabet.charAt(i));
+				}
+			}
+			inputs.addAll(longer);
+			for (String word : longer) {
+				inputs.add("h://" + word);
+				inputs.add("a.b" + word);
+			}
+			words = longer;
+		}
+
+		for (String input : inputs) {
+			Matcher matcher = Constants.hostSourcePattern.matcher(input);
+			HostSourceParser parsed = HostSourceParser.parse(input);
+			if (!matcher.find()) {
+				assertNull(input, parsed);
+				continue;
+			}
+			assertNotNull(input, parsed);
+			String scheme = matcher.group("scheme");
+			assertEquals(input, scheme == null ? null : scheme.substring(0, scheme.length() - 3), parsed.scheme());
+			assertEquals(input, matcher.group("host"), parsed.host());
+			String port = matcher.group("port");
+			assertEquals(input, port != null, parsed.hasPort());
+			if (port != null && !port.equals(":*")) {
+				assertEquals(input, Integer.parseInt(port.substring(1)), parsed.port(Constants.EMPTY_PORT));
+			}
+			assertEquals(input, matcher.group("path"), parsed.path());
+		}
+	}
+
+	@Test
+	public void testHostKinds() {
+		assertEquals(Host.Kind.Name, Host.parseHost("example.com").get().kind);
+		assertEquals(Host.Kind.Name, Host.parseHost("*.example.com").get().kind);
+		assertEquals(Host.Kind.Name, Host.parseHost("*").get().kind);
+		assertEquals(Host.Kind.Name, Host.parseHost("1.2.3").get().kind);
+		assertEquals(Host.Kind.Name, Host.parseHost("256.0.0.1").get().kind);
+		assertEquals(Host.Kind.Name, Host.parseHost("*.0.0.1").get().kind);
+		assertEquals(Host.Kind.IPv4, Host.parseHost("192.168.1.1").get().kind);
+		assertEquals(Host.Kind.IPv4, Host.parseHost("https://10.0.0.1:8080/path").get().kind);
+		assertEquals(Host.Kind.IPv4, Host.parseHost("127.0.0.2").get().kind);
+		assertEquals(Host.Kind.Loopback, Host.parseHost("127.0.0.1").get().kind);
+		assertEquals(Host.Kind.Loopback, Host.parseHost("http://127.0.0.1/a").get().kind);
+		assertEquals(Host.Kind.Name, Host.STAR.kind);
+	}
+
+	@Test
+	public void testUrlParsing() {
+		List<String> inputs = Arrays.asList(
+				"https://cdn.example.com/a.js", "HTTPS://CDN.Example.COM/A.js", "http://example.com", "http://example.com:8080/a?b#c", "https://example.com:443/",
+				"wss://example.com:443", "ws://example.com", "FTP://example.com", "HtTp://example.com", "httpx://example.com", "http-1.0://example.com",
+				"https://exampl\u00C9.com", "example.com", "https://", "https:/example.com", "1http://example.com", "", ":",
+				"data:image/png;base64,AAAA", "DATA:abc", "javascript:alert(1)", "blob:https://example.com/uuid", "a+b-c.d:", "a:", "1a:b", ":a", "ab", "ab?c:d"
+		);
+		for (String input : inputs) {
+			// What parseURI did before it stopped going through the regex
+			Optional<URI> expectedUri = Optional.empty();
+			Matcher matcher = Constants.hostSourcePattern.matcher(input);
+			if (matcher.find() && matcher.group("scheme") != null) {
+				String scheme = matcher.group("scheme");
+				scheme = scheme.substring(0, scheme.length() - 3);
+				String port = matcher.group("port");
+				String path = matcher.group("path");
+				expectedUri = Optional.of(new URI(scheme, matcher.group("host"), port == null ? URI.defaultPortForProtocol(scheme.toLowerCase(Locale.ENGLISH)) : Integer.parseInt(port.substring(1)), path == null ? "" : path));
+			}
+			Optional<URI> uri = URI.parseURI(input);
+			assertEquals(input, expectedUri, uri);
+			if (uri.isPresent()) {
+				URI u = uri.get();
+				assertEquals(input, u.scheme.toLowerCase(Locale.ENGLISH), u.scheme);
+				assertEquals(input, u.host.toLowerCase(Locale.ENGLISH), u.host);
+				assertEquals(input, Objects.hash(u.scheme, u.host, u.port, u.path), u.hashCode());
+			}
+
+			// And parseGUID
+			Optional<GUID> expectedGuid = Optional.empty();
+			matcher = Constants.schemePattern.matcher(input);
+			if (matcher.find()) {
+				String scheme = matcher.group("scheme");
+				scheme = scheme.substring(0, scheme.length() - 1);
+				expectedGuid = Optional.of(new GUID(scheme, input.substring(scheme.length() + 1)));
+			}
+			Optional<GUID> guid = GUID.parseGUID(input);
+			assertEquals(input, expectedGuid, guid);
+			if (guid.isPresent()) {
+				assertEquals(input, Objects.hash(guid.get().scheme, null, null, guid.get().path), guid.get().hashCode());
+			}
+		}
+	}
+
+	@Test
+	public void testStructuredErrors() {
+		String serialized = "script-src a a 'nonce-a' 'nonce-a' b::; report-to; frame-ancestors self";
+		ArrayList<String> observed = new ArrayList<>();
+		Policy.PolicyErrorConsumer structured = new Policy.PolicyErrorConsumer() {
+			@Override
+			public void add(Policy.Severity severity, String message, int directiveIndex, int valueIndex) {
+				fail("messages should not be built");
+			}
+
+			@Override
+			public void add(ErrorKind kind, Object detail, int directiveIndex, int valueIndex) {
+				observed.add(kind + " " + detail + " " + directiveIndex + " " + valueIndex);
+			}
+		};
+		Policy.parseSerializedCSP(serialized, structured);
+		assertEquals(Arrays.asList(
+				"DuplicateHost a 0 1",
+				"DuplicateNonce 'nonce-a' 0 3",
+				"UnrecognizedSourceExpression b:: 0 4",
+				"ReportToMissingValue null 1 -1",
+				"KeywordMissingQuotes self 2 0"
+		), observed);
+
+		// Rendering the structured form gives exactly the messages which string-based consumers see
+		ArrayList<PolicyError> rendered = new ArrayList<>();
+		Policy.parseSerializedCSP(serialized, new Policy.PolicyErrorConsumer() {
+			@Override
+			public void add(Policy.Severity severity, String message, int directiveIndex, int valueIndex) {
+				fail("messages should not be built");
+			}
+
+			@Override
+			public void add(ErrorKind kind, Object detail, int directiveIndex, int valueIndex) {
+				rendered.add(e(kind.severity, kind.message(detail), directiveIndex, valueIndex));
+			}
+		});
+		ArrayList<PolicyError> messages = new ArrayList<>();
+		Policy.parseSerializedCSP(serialized, (severity, message, directiveIndex, valueIndex) -> messages.add(e(severity, message, directiveIndex, valueIndex)));
+		assertEquals(messages, rendered);
+
+		// Severities which the consumer ignores are not reported at all
+		observed.clear();
+		Policy.parseSerializedCSP(serialized, new Policy.PolicyErrorConsumer() {
+			@Override
+			public void add(Policy.Severity severity, String message, int directiveIndex, int valueIndex) {
+				observed.add(message);
+			}
+
+			@Override
+			public boolean ignores(Policy.Severity severity) {
+				return severity != Policy.Severity.Error;
+			}
+		});
+		assertEquals(Arrays.asList("Unrecognized source-expression b::", "The report-to directive requires a value"), observed);
+
+		// The cache replays the structured form too
+		observed.clear();
+		PolicyCache cache = new PolicyCache(1);
+		for (int i = 0; i < 2; ++i) {
+			cache.parseSerializedCSPList(serialized, new Policy.PolicyListErrorConsumer() {
+				@Override
+				public void add(Policy.Severity severity, String message, int policyIndex, int directiveIndex, int valueIndex) {
+					fail("messages should not be built");
+				}
+
+				@Override
+				public void add(ErrorKind kind, Object detail, int policyIndex, int directiveIndex, int valueIndex) {
+					observed.add(kind.name());
+				}
+
+				@Override
+				public boolean ignores(Policy.Severity severity) {
+					return severity == Policy.Severity.Warning;
+				}
+			});
+		}
+		assertEquals(Arrays.asList("UnrecognizedSourceExpression", "ReportToMissingValue", "UnrecognizedSourceExpression", "ReportToMissingValue"), observed);
+	}
+
 	@Test
 	public void testNone() {
 		// This asserts that it serializes to the same, uppercased, value
@@ -652,6 +986,57 @@ public class ParserTest extends TestBase {
 		Policy.parseSerializedCSP("a ,", Policy.PolicyErrorConsumer.ignored);
 	}
 
+	@Test
+	public void testNonStringInputs() {
+		String serialized = "default-src 'self' https://example.com; script-src 'nonce-abc' 'strict-dynamic', img-src *";
+		byte[] bytes = ("xx" + serialized + "yy").getBytes(StandardCharsets.US_ASCII);
+
+		assertEquals(serialized, Policy.parseSerializedCSPList(new StringBuilder(serialized), throwIfPolicyListError).toString());
+		assertEquals(serialized, Policy.parseSerializedCSPList(bytes, 2, serialized.length(), throwIfPolicyListError).toString());
+
+		ByteBuffer heap = ByteBuffer.wrap(bytes, 2, serialized.length());
+		assertEquals(serialized, Policy.parseSerializedCSPList(heap, throwIfPolicyListError).toString());
+		assertEquals("the buffer's position is not changed", 2, heap.position());
+		assertEquals(serialized, Policy.parseSerializedCSPList(heap.asReadOnlyBuffer(), throwIfPolicyListError).toString());
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+		direct.put(bytes);
+		direct.position(2);
+		direct.limit(2 + serialized.length());
+		assertEquals(serialized, Policy.parseSerializedCSPList(direct, throwIfPolicyListError).toString());
+		assertEquals("the buffer's position is not changed", 2, direct.position());
+
+		String single = "script-src 'self'";
+		byte[] singleBytes = single.getBytes(StandardCharsets.US_ASCII);
+		assertEquals(single, Policy.parseSerializedCSP(new StringBuilder(single), throwIfPolicyError).toString());
+		assertEquals(single, Policy.parseSerializedCSP(singleBytes, 0, singleBytes.length, throwIfPolicyError).toString());
+		assertEquals(single, Policy.parseSerializedCSP(ByteBuffer.wrap(singleBytes), throwIfPolicyError).toString());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testAssertsAsciiInBytes() {
+		Policy.parseSerializedCSPList(new byte[] { 'a', ' ', (byte) 0xC3, (byte) 0xA9 }, 0, 4, Policy.PolicyListErrorConsumer.ignored);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testAssertsNoCommasInBytes() {
+		Policy.parseSerializedCSP(ByteBuffer.wrap(new byte[] { 'a', ' ', ',' }), Policy.PolicyErrorConsumer.ignored);
+	}
+
+	@Test
+	public void testAsciiIsCheckedBeforeReportingErrors() {
+		ArrayList<PolicyError> observedErrors = new ArrayList<>();
+		try {
+			Policy.parseSerializedCSP("default-src a a; script-src \u00e9", (severity, message, directiveIndex, valueIndex) -> {
+				observedErrors.add(e(severity, message, directiveIndex, valueIndex));
+			});
+			fail("should have thrown");
+		} catch (IllegalArgumentException e) {
+			assertEquals("string is not ascii: \"default-src a a; script-src \u00e9\"", e.getMessage());
+		}
+		assertEquals(0, observedErrors.size());
+	}
+
 	private static void roundTrips(String input, PolicyError... errors) {
 		serializesTo(input, input, errors);
 	}
@@ -0,0 +1,507 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.Directives.SourceExpressionDirective;
+import com.shapesecurity.salvation2.URLs.URI;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+import com.shapesecurity.salvation2.Values.Hash;
+import com.shapesecurity.salvation2.Values.Host;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+
+// See Benchmark for how to run this.
+public class QueryBenchmark {
+	public static void main(String[] args) throws IOException {
+		List<Policy> policies = new ArrayList<>();
+		for (String serialized : Benchmark.realWorldPolicies()) {
+			policies.add(Policy.parseSerializedCSP(serialized, Policy.PolicyErrorConsumer.ignored));
+		}
+		List<CompiledPolicy> compiled = new ArrayList<>(policies.size());
+		for (Policy policy : policies) {
+			compiled.add(policy.compile());
+		}
+
+		Optional<URLWithScheme> origin = Optional.of(URI.parseURI("https://www.example.com").get());
+		List<Optional<URLWithScheme>> urls = new ArrayList<>();
+		for (String url : Arrays.asList(
+				"https://www.example.com/static/app.js",
+				"https://ssl.google-analytics.com/ga.js",
+				"https://pbs.twimg.com/media/image.jpg",
+				"https://static.xx.fbcdn.net/rsrc.php/v3/y4/r/script.js",
+				"http://insecure.example.org/image.png",
+				"https://cdn.example.net:8443/fonts/font.woff2"
+		)) {
+			urls.add(Optional.of(URI.parseURI(url).get()));
+		}
+
+		compare("allowsExternalScript and allowsImage, csp.txt x 6 urls", policies, compiled, policy -> {
+			int allowed = 0;
+			for (Optional<URLWithScheme> url : urls) {
+				if (policy.allowsExternalScript(Optional.empty(), Optional.empty(), url, Optional.empty(), origin)) {
+					++allowed;
+				}
+				if (policy.allowsImage(url, origin)) {
+					++allowed;
+				}
+			}
+			return allowed;
+		});
+
+		compare("allowsInlineScript with a nonce and a source, csp.txt", policies, compiled, policy ->
+				policy.allowsInlineScript(Optional.of("cmFuZG9tIG5vbmNl"), Optional.of("console.log('hello')"), Optional.of(true)) ? 1 : 0
+		);
+
+		largeAllowlist(5000);
+
+		hostKinds(policies, origin.get());
+
+		paths(policies);
+
+		for (int count : new int[]{ 10, 100, 1000 }) {
+			manyHashes(count);
+		}
+
+		digestCache();
+
+		nonces();
+
+		nullableQueries();
+
+		batchUrls(500);
+		batchUrls(20000);
+
+		policyLists();
+
+		selfMatching();
+
+		decisionMemo();
+
+		policyRegistry(policies);
+	}
+
+	// Looking up a tenant's policy per request, against parsing its header per request, and reloading every tenant at once
+	private static void policyRegistry(List<Policy> policies) {
+		Map<String, String> headers = new HashMap<>();
+		Map<String, PolicyList> lists = new HashMap<>();
+		for (int i = 0; i < policies.size(); ++i) {
+			String header = policies.get(i).toString();
+			headers.put("tenant" + i + ".example.com", header);
+			lists.put("tenant" + i + ".example.com", Policy.parseSerializedCSPList(header, Policy.PolicyListErrorConsumer.ignored));
+		}
+		PolicyRegistry registry = new PolicyRegistry();
+		registry.reload(lists, null);
+		URLWithScheme origin = URI.parseURI("https://www.example.com").get();
+		URLWithScheme image = URI.parseURI("https://pbs.twimg.com/media/image.jpg").get();
+		String[] tenants = headers.keySet().toArray(new String[0]);
+
+		Benchmark.run("allowsImage for each tenant: parse its header", () -> {
+			int allowed = 0;
+			for (String tenant : tenants) {
+				if (Policy.parseSerializedCSPList(headers.get(tenant), Policy.PolicyListErrorConsumer.ignored).allowsImageNullable(image, origin)) {
+					++allowed;
+				}
+			}
+			return allowed;
+		});
+
+		Benchmark.run("allowsImage for each tenant: PolicyRegistry", () -> {
+			int allowed = 0;
+			for (String tenant : tenants) {
+				if (registry.get(tenant).allowsImageNullable(image, origin)) {
+					++allowed;
+				}
+			}
+			return allowed;
+		});
+
+		Benchmark.run("reload every tenant: sequential", () -> {
+			registry.reload(lists, null);
+			return registry.version();
+		});
+
+		Benchmark.run("reload every tenant: common pool", () -> {
+			registry.reload(lists, ForkJoinPool.commonPool());
+			return registry.version();
+		});
+	}
+
+	// The same few image hosts over and over, against a long img-src, with and without a DecisionMemo
+	private static void decisionMemo() {
+		StringBuilder imgSrc = new StringBuilder("img-src 'self' data: blob: https://*.twimg.com https://*.twitter.com");
+		for (int i = 0; i < 40; ++i) {
+			imgSrc.append(" https://*.cdn").append(i).append(".example.net https://images").append(i).append(".example.org");
+		}
+		String serialized = "default-src 'self'; " + imgSrc;
+		URLWithScheme origin = URI.parseURI("https://twitter.com").get();
+		List<URLWithScheme> urls = new ArrayList<>();
+		for (String url : Arrays.asList("https://pbs.twimg.com/media/a.jpg", "https://pbs.twimg.com/media/b.jpg", "https://abs.twimg.com/emoji/c.png", "https://x.cdn39.example.net/d.png", "https://twitter.com/e.png", "https://tracker.example.com/f.gif")) {
+			urls.add(URI.parseURI(url).get());
+		}
+		for (boolean memoized : new boolean[] { false, true }) {
+			Policy policy = Policy.parseSerializedCSP(serialized, Policy.PolicyErrorConsumer.ignored);
+			if (memoized) {
+				policy.setDecisionMemo(new DecisionMemo(1024));
+			}
+			Benchmark.run("repeated image hosts: " + (memoized ? "with" : "without") + " a DecisionMemo", () -> {
+				int allowed = 0;
+				for (URLWithScheme url : urls) {
+					if (policy.allowsImageNullable(url, origin)) {
+						++allowed;
+					}
+				}
+				return allowed;
+			});
+		}
+	}
+
+	// Queries through PolicyInOrigin which mostly come down to 'self' and host-sources without schemes
+	private static void selfMatching() {
+		Policy policy = Policy.parseSerializedCSP("default-src 'self' static.example.com *.cdn.example.com; connect-src 'self' api.example.com", Policy.PolicyErrorConsumer.ignored);
+		List<URLWithScheme> urls = new ArrayList<>();
+		for (String url : Arrays.asList("https://www.example.com/a", "https://www.example.com:443/b", "wss://www.example.com/c", "http://www.example.com/d", "https://static.example.com/e", "https://x.cdn.example.com/f", "https://other.com/g", "https://api.example.com/h")) {
+			urls.add(URI.parseURI(url).get());
+		}
+		for (QueryablePolicy queryable : Arrays.asList(policy, policy.compile())) {
+			PolicyInOrigin inOrigin = new PolicyInOrigin(queryable, URI.parseURI("https://www.example.com").get());
+			Benchmark.run("'self' and scheme-less hosts: PolicyInOrigin of " + queryable.getClass().getSimpleName(), () -> {
+				int allowed = 0;
+				for (URLWithScheme url : urls) {
+					if (inOrigin.allowsImageFromSource(url)) {
+						++allowed;
+					}
+					if (inOrigin.allowsConnection(url)) {
+						++allowed;
+					}
+				}
+				return allowed;
+			});
+		}
+	}
+
+	// A response with three CSP headers, where the last one is the one which denies, against a single header
+	private static void policyLists() {
+		String single = "default-src 'self'; script-src 'self' https://cdn.example.com; img-src 'none'";
+		PolicyList list = Policy.parseSerializedCSPList("script-src * 'unsafe-inline'; report-uri /a, default-src https:; report-uri /b, " + single, Policy.PolicyListErrorConsumer.ignored);
+		CompiledPolicy compiledSingle = Policy.parseSerializedCSP(single, Policy.PolicyErrorConsumer.ignored).compile();
+		CompiledPolicyList compiledList = list.compile();
+		URLWithScheme origin = URI.parseURI("https://www.example.com").get();
+		URLWithScheme image = URI.parseURI("https://images.example.com/a.png").get();
+		URLWithScheme script = URI.parseURI("https://cdn.example.com/app.js").get();
+
+		for (QueryablePolicy queryable : Arrays.asList(compiledSingle, list, compiledList)) {
+			String kind = queryable.getClass().getSimpleName();
+			Benchmark.run("denied image and allowed script: " + kind, () -> {
+				int allowed = 0;
+				if (queryable.allowsImageNullable(image, origin)) {
+					++allowed;
+				}
+				if (queryable.allowsExternalScriptNullable(null, null, script, TriState.Unknown, origin)) {
+					++allowed;
+				}
+				return allowed;
+			});
+		}
+	}
+
+	// Auditing a page: many resource URLs of mixed kinds against one policy, one call at a time and as a batch
+	private static void batchUrls(int count) {
+		Policy policy = Policy.parseSerializedCSP("default-src 'self'; script-src 'self' https://cdn.example.com; img-src * data:; font-src https://fonts.example.com; connect-src 'self' wss://live.example.com", Policy.PolicyErrorConsumer.ignored);
+		URLWithScheme origin = URI.parseURI("https://www.example.com").get();
+		FetchDirectiveKind[] kindCycle = { FetchDirectiveKind.ScriptSrcElem, FetchDirectiveKind.ImgSrc, FetchDirectiveKind.ImgSrc, FetchDirectiveKind.FontSrc, FetchDirectiveKind.ConnectSrc, FetchDirectiveKind.StyleSrcElem };
+		FetchDirectiveKind[] kinds = new FetchDirectiveKind[count];
+		URLWithScheme[] urls = new URLWithScheme[count];
+		for (int i = 0; i < count; ++i) {
+			kinds[i] = kindCycle[i % kindCycle.length];
+			urls[i] = URI.parseURI((i % 3 == 0 ? "https://cdn.example.com/" : "https://www.example.com/") + i).get();
+		}
+
+		Benchmark.run(count + " urls: one call each", () -> {
+			int allowed = 0;
+			for (int i = 0; i < count; ++i) {
+				if (policy.allowsUrl(kinds[i], urls[i], origin)) {
+					++allowed;
+				}
+			}
+			return allowed;
+		});
+
+		Benchmark.run(count + " urls: batch", () -> policy.allowsUrls(kinds, urls, origin).cardinality());
+
+		Benchmark.run(count + " urls: batch on the common pool", () -> policy.allowsUrls(kinds, urls, origin, ForkJoinPool.commonPool()).cardinality());
+	}
+
+	// The same common queries through the Optional methods and through the nullable ones, which should not allocate at all
+	private static void nullableQueries() {
+		Policy policy = Policy.parseSerializedCSP("script-src 'nonce-cmFuZG9tIG5vbmNl' https://cdn.example.com 'self'; img-src *.example.com 'self'", Policy.PolicyErrorConsumer.ignored);
+		URLWithScheme origin = URI.parseURI("https://www.example.com").get();
+		URLWithScheme script = URI.parseURI("https://cdn.example.com/app.js").get();
+		URLWithScheme image = URI.parseURI("https://images.example.com/a.png").get();
+		String nonce = "cmFuZG9tIG5vbmNl";
+
+		for (QueryablePolicy queryable : Arrays.asList(policy, policy.compile())) {
+			String kind = queryable.getClass().getSimpleName();
+			Benchmark.run("external script, image and inline script: " + kind + ", Optional", () -> {
+				int allowed = 0;
+				if (queryable.allowsExternalScript(Optional.empty(), Optional.empty(), Optional.of(script), Optional.empty(), Optional.of(origin))) {
+					++allowed;
+				}
+				if (queryable.allowsImage(Optional.of(image), Optional.of(origin))) {
+					++allowed;
+				}
+				if (queryable.allowsInlineScript(Optional.of(nonce), Optional.empty(), Optional.of(true))) {
+					++allowed;
+				}
+				return allowed;
+			});
+
+			Benchmark.run("external script, image and inline script: " + kind + ", nullable", () -> {
+				int allowed = 0;
+				if (queryable.allowsExternalScriptNullable(null, null, script, TriState.Unknown, origin)) {
+					++allowed;
+				}
+				if (queryable.allowsImageNullable(image, origin)) {
+					++allowed;
+				}
+				if (queryable.allowsInlineScriptNullable(nonce, null, TriState.True)) {
+					++allowed;
+				}
+				return allowed;
+			});
+
+			PolicyInOrigin inOrigin = new PolicyInOrigin(queryable, origin);
+			Benchmark.run("external script and image: PolicyInOrigin of " + kind, () -> {
+				int allowed = 0;
+				if (inOrigin.allowsScriptFromSource(script)) {
+					++allowed;
+				}
+				if (inOrigin.allowsImageFromSource(image)) {
+					++allowed;
+				}
+				return allowed;
+			});
+		}
+	}
+
+	// Nonce checks against a directive with a handful of nonces, which should not allocate
+	private static void nonces() {
+		Policy policy = Policy.parseSerializedCSP("script-src 'nonce-cmFuZG9tIG5vbmNl' 'nonce-b3RoZXI=' 'nonce-dGhpcmQ='; style-src 'nonce-cmFuZG9tIG5vbmNl'", Policy.PolicyErrorConsumer.ignored);
+		Optional<String> nonce = Optional.of("dGhpcmQ=");
+		Optional<String> missing = Optional.of("bWlzc2luZw==");
+
+		Benchmark.run("nonce checks: allowsExternalScript, allowsInlineScript, allowsExternalStyle", () -> {
+			int allowed = 0;
+			if (policy.allowsExternalScript(nonce, Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty())) {
+				++allowed;
+			}
+			if (policy.allowsInlineScript(missing, Optional.empty(), Optional.empty())) {
+				++allowed;
+			}
+			if (policy.allowsExternalStyle(nonce, Optional.empty(), Optional.empty())) {
+				++allowed;
+			}
+			return allowed;
+		});
+	}
+
+	// A few kilobytes of inline script, checked against a sha256 hash-source over and over, with and without a DigestCache
+	private static void digestCache() {
+		StringBuilder source = new StringBuilder();
+		while (source.length() < 4096) {
+			source.append("window.dataLayer = window.dataLayer || []; function gtag(){dataLayer.push(arguments);}\n");
+		}
+		String script = source.toString();
+		Policy policy = Policy.parseSerializedCSP("script-src " + Hash.allOf(script).get(0), Policy.PolicyErrorConsumer.ignored);
+
+		Benchmark.run("allowsInlineScript with a 4KB source: no DigestCache", () ->
+				policy.allowsInlineScript(Optional.empty(), Optional.of(script), Optional.empty()) ? 1 : 0
+		);
+
+		DigestCache cache = new DigestCache(1000);
+		policy.setDigestCache(cache);
+		Benchmark.run("allowsInlineScript with a 4KB source: DigestCache", () ->
+				policy.allowsInlineScript(Optional.empty(), Optional.of(script), Optional.empty()) ? 1 : 0
+		);
+		System.out.println("DigestCache hit rate: " + cache.hitRate());
+	}
+
+	// A script-src listing `count` hashes of each algorithm, none of which match, so every one of them has to be ruled out
+	private static void manyHashes(int count) {
+		StringBuilder serialized = new StringBuilder("script-src");
+		for (int i = 0; i < count; ++i) {
+			String filler = String.format("%040d", i);
+			serialized.append(" 'sha256-").append(filler).append("000=' 'sha384-").append(filler).append("000000000000000000000000' 'sha512-").append(filler).append("00000000000000000000000000000000000000000000000=='");
+		}
+		Policy policy = Policy.parseSerializedCSP(serialized.toString(), Policy.PolicyErrorConsumer.ignored);
+		policy.allowsInlineScript(Optional.empty(), Optional.of("warm up"), Optional.empty());
+
+		Benchmark.run("allowsInlineScript with " + count + " hashes per algorithm", () ->
+				policy.allowsInlineScript(Optional.empty(), Optional.of("console.log('hello')"), Optional.empty()) ? 1 : 0
+		);
+	}
+
+	// Every host-source path in csp.txt, matched against itself, a longer path and a shorter one
+	private static void paths(List<Policy> policies) {
+		List<Host> hosts = new ArrayList<>();
+		for (Policy policy : policies) {
+			for (FetchDirectiveKind kind : FetchDirectiveKind.values()) {
+				Optional<SourceExpressionDirective> directive = policy.getFetchDirective(kind);
+				if (!directive.isPresent()) {
+					continue;
+				}
+				for (Host host : directive.get().getHosts()) {
+					if (host.path != null) {
+						hosts.add(host);
+					}
+				}
+			}
+		}
+		List<String> urlPaths = new ArrayList<>();
+		for (Host host : hosts) {
+			urlPaths.add(host.path);
+			urlPaths.add(host.path + (host.path.endsWith("/") ? "" : "/") + "static/app.js");
+			urlPaths.add(host.path.substring(0, host.path.lastIndexOf('/') + 1));
+		}
+
+		Benchmark.run("path-part match on " + hosts.size() + " host-source paths x 3: split and decode", () -> {
+			int allowed = 0;
+			for (int i = 0; i < hosts.size(); ++i) {
+				for (int j = 3 * i; j < 3 * i + 3; ++j) {
+					if (QuerySupportTest.splitAndDecodeMatches(hosts.get(i).path, urlPaths.get(j))) {
+						++allowed;
+					}
+				}
+			}
+			return allowed;
+		});
+
+		Benchmark.run("path-part match on " + hosts.size() + " host-source paths x 3: HostSourcePath", () -> {
+			int allowed = 0;
+			for (int i = 0; i < hosts.size(); ++i) {
+				for (int j = 3 * i; j < 3 * i + 3; ++j) {
+					if (hosts.get(i).parsedPath.matches(urlPaths.get(j))) {
+						++allowed;
+					}
+				}
+			}
+			return allowed;
+		});
+	}
+
+	// Every exact host-source in csp.txt, matched against a URL with that host, which is when the kind of host has to be checked
+	private static void hostKinds(List<Policy> policies, URLWithScheme origin) {
+		List<Host> hosts = new ArrayList<>();
+		List<URLWithScheme> urls = new ArrayList<>();
+		for (Policy policy : policies) {
+			for (FetchDirectiveKind kind : FetchDirectiveKind.values()) {
+				Optional<SourceExpressionDirective> directive = policy.getFetchDirective(kind);
+				if (!directive.isPresent()) {
+					continue;
+				}
+				for (Host host : directive.get().getHosts()) {
+					if (!host.host.startsWith("*")) {
+						hosts.add(host);
+						urls.add(new URI(host.scheme == null ? "https" : host.scheme, host.host, host.port, host.path == null ? "/" : host.path));
+					}
+				}
+			}
+		}
+
+		Benchmark.run("hostSourceMatches on " + hosts.size() + " matching hosts: classified by regex per match", () -> {
+			int allowed = 0;
+			for (int i = 0; i < hosts.size(); ++i) {
+				String host = hosts.get(i).host;
+				// What hostPartMatches used to do before Host.kind existed
+				boolean unmatchable = Constants.IPv4address.matcher(host).find() && !host.equals("127.0.0.1")
+						|| Constants.IPv6addressWithOptionalBracket.matcher(host).find()
+						|| Constants.IPV6loopback.matcher(host).find();
+				if (!unmatchable && Policy.hostSourceMatches(hosts.get(i), urls.get(i), OriginMatcher.of(origin))) {
+					++allowed;
+				}
+			}
+			return allowed;
+		});
+
+		Benchmark.run("hostSourceMatches on " + hosts.size() + " matching hosts: Host.kind", () -> {
+			int allowed = 0;
+			for (int i = 0; i < hosts.size(); ++i) {
+				if (Policy.hostSourceMatches(hosts.get(i), urls.get(i), OriginMatcher.of(origin))) {
+					++allowed;
+				}
+			}
+			return allowed;
+		});
+	}
+
+	// An img-src with thousands of host-sources, checked both by scanning them in order and through the directive's HostIndex
+	private static void largeAllowlist(int count) {
+		StringBuilder serialized = new StringBuilder("img-src");
+		for (int i = 0; i < count; ++i) {
+			serialized.append(i % 2 == 0 ? " https://cdn" : " *.tenant").append(i).append(".example.com");
+		}
+		Policy policy = Policy.parseSerializedCSP(serialized.toString(), Policy.PolicyErrorConsumer.ignored);
+		List<Host> hosts = policy.getFetchDirective(FetchDirectiveKind.ImgSrc).get().getHosts();
+		HostIndex index = policy.getFetchDirective(FetchDirectiveKind.ImgSrc).get().getHostIndex();
+
+		URLWithScheme origin = URI.parseURI("https://www.example.com").get();
+		List<URLWithScheme> urls = new ArrayList<>();
+		for (String url : Arrays.asList(
+				"https://cdn0.example.com/a.png",
+				"https://cdn" + (count - 2) + ".example.com/a.png",
+				"https://images.tenant" + (count - 1) + ".example.com/a.png",
+				"https://unlisted.example.org/a.png"
+		)) {
+			urls.add(URI.parseURI(url).get());
+		}
+
+		Benchmark.run("img-src with " + count + " host-sources x 4 urls: linear scan", () -> {
+			int allowed = 0;
+			for (URLWithScheme url : urls) {
+				for (Host host : hosts) {
+					if (Policy.hostSourceMatches(host, url, OriginMatcher.of(origin))) {
+						++allowed;
+						break;
+					}
+				}
+			}
+			return allowed;
+		});
+
+		Benchmark.run("img-src with " + count + " host-sources x 4 urls: HostIndex", () -> {
+			int allowed = 0;
+			for (URLWithScheme url : urls) {
+				if (index.matches(url, origin)) {
+					++allowed;
+				}
+			}
+			return allowed;
+		});
+	}
+
+	private interface Query {
+		int run(QueryablePolicy policy);
+	}
+
+	private static void compare(String name, List<Policy> policies, List<CompiledPolicy> compiled, Query query) {
+		Benchmark.run(name + ": Policy", () -> {
+			int allowed = 0;
+			for (Policy policy : policies) {
+				allowed += query.run(policy);
+			}
+			return allowed;
+		});
+
+		Benchmark.run(name + ": CompiledPolicy", () -> {
+			int allowed = 0;
+			for (CompiledPolicy policy : compiled) {
+				allowed += query.run(policy);
+			}
+			return allowed;
+		});
+	}
+}
@@ -0,0 +1,291 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.Directives.SourceExpressionDirective;
+import com.shapesecurity.salvation2.URLs.GUID;
+import com.shapesecurity.salvation2.URLs.URI;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+import com.shapesecurity.salvation2.Values.Hash;
+import com.shapesecurity.salvation2.Values.Host;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// The pieces queries are built from, which work the same however a policy is queried, so unlike QueryingTest these run once
+public class QuerySupportTest extends TestBase {
+	@Test
+	public void testHostIndexAgreesWithLinearScan() {
+		List<String> sources = Arrays.asList(
+				"example.com", "*.example.com", "https://a.example.com", "http://*.b.example.com:8080/path/", "*.com", "com",
+				"https://*", "ws://b.example.com", "127.0.0.1", "10.0.0.1", "a.b.c.d.e", "*.c.d.e", "EXAMPLE.ORG"
+		);
+		List<Host> hosts = new ArrayList<>();
+		for (String source : sources) {
+			hosts.add(Host.parseHost(source).get());
+		}
+		HostIndex index = HostIndex.of(hosts);
+
+		List<String> names = Arrays.asList(
+				"example.com", "a.example.com", "x.a.example.com", "b.example.com", "c.b.example.com", "example.org", "com", "org", "",
+				".com", "x..example.com", "example.com.", "127.0.0.1", "10.0.0.1", "[::1]", "a.b.c.d.e", "b.c.d.e", "c.d.e", "d.e", "exampleXcom", "xexample.com"
+		);
+		List<URLWithScheme> origins = Arrays.asList(URI.parseURI("https://origin.com").get(), URI.parseURI("ws://origin.com").get(), URI.parseURI("ftp://origin.com").get());
+		for (String scheme : Arrays.asList("http", "https", "ws", "ftp")) {
+			for (String name : names) {
+				for (int port : Arrays.asList(80, 443, 8080)) {
+					for (String path : Arrays.asList("", "/path/", "/path/x", "/other")) {
+						URLWithScheme url = new URI(scheme, name, port, path);
+						for (URLWithScheme origin : origins) {
+							boolean expected = false;
+							for (Host host : hosts) {
+								expected |= Policy.hostSourceMatches(host, url, OriginMatcher.of(origin));
+							}
+							assertEquals(url.scheme + "://" + url.host + ":" + url.port + url.path + " in " + origin.scheme, expected, index.matches(url, origin));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testHostSourcePathAgreesWithSplittingAndDecoding() {
+		List<String> paths = Arrays.asList(
+				"", "/", "//", "/a", "/a/", "/a/b", "/a/b/", "/a//b", "/A", "/a+b", "/a b", "/%61", "/%61/", "/%2F", "/a%2Fb",
+				"/%C3%AF", "/%c3%af/", "/%EF", "/%C3%AF%65", "/%41%C3%AF", "/%", "/%4", "/%GG", "/a%", "/%%41", "/%+1", "/%-1", "/%-0", "/%1-",
+				"/%4/b", "/a/%zz", "/\u0661\u0662", "/%\u0661\u0662", "/\u00ef", "/%F0%9F%98%80", "/%FF", "/x/%"
+		);
+		for (String a : paths) {
+			HostSourcePath path = HostSourcePath.of(a);
+			for (String b : paths) {
+				String expected;
+				try {
+					expected = String.valueOf(a.isEmpty() || splitAndDecodeMatches(a, b));
+				} catch (IllegalArgumentException e) {
+					expected = e.getMessage();
+				}
+				String actual;
+				try {
+					actual = String.valueOf(path == null || path.matches(b));
+				} catch (IllegalArgumentException e) {
+					actual = e.getMessage();
+				}
+				assertEquals(a + " against " + b, expected, actual);
+			}
+		}
+	}
+
+	// How path-part matching worked before HostSourcePath. QueryBenchmark uses this too.
+	static boolean splitAndDecodeMatches(String pathA, String pathB) {
+		if (pathA.equals("/") && pathB.isEmpty()) {
+			return true;
+		}
+		boolean exactMatch = !pathA.endsWith("/");
+		List<String> pathListA = Utils.strictlySplit(pathA, '/');
+		List<String> pathListB = Utils.strictlySplit(pathB, '/');
+		if (pathListA.size() > pathListB.size()) {
+			return false;
+		}
+		if (exactMatch && pathListA.size() != pathListB.size()) {
+			return false;
+		}
+		if (!exactMatch) {
+			pathListA.remove(pathListA.size() - 1);
+		}
+		for (int i = 0; i < pathListA.size(); ++i) {
+			if (!Utils.decodeString(pathListA.get(i)).equals(Utils.decodeString(pathListB.get(i)))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Test
+	public void testHashAllOf() {
+		List<Hash> hashes = Hash.allOf("example");
+		assertEquals(Arrays.asList(
+				Hash.parseHash("'sha256-UNhY4JhezH9gQYqvDMWrWH9CwlcKiECVqejMrND2VFw='").get(),
+				Hash.parseHash("'sha384-/u6/iE9tq+bsqNaONz1r5IjNql63ZOiVKQM2/+n/lpaG8qnTYumou93257LhRV8t'").get(),
+				Hash.parseHash("'" + QueryingTest.EXAMPLE_SHA + "'").get()
+		), hashes);
+
+		// Longer than one block, and not ASCII
+		StringBuilder source = new StringBuilder();
+		for (int i = 0; i < 5000; ++i) {
+			source.append("\u00e9").append(i);
+		}
+		byte[] bytes = source.toString().getBytes(StandardCharsets.UTF_8);
+		for (Hash hash : Hash.allOf(source.toString())) {
+			assertArrayEquals(hash.algorithm.digest(bytes), hash.getDigest());
+			assertTrue(Policy.parseSerializedCSP("style-src " + hash, throwIfPolicyError).allowsInlineStyle(Optional.empty(), Optional.of(source.toString())));
+		}
+	}
+
+	@Test
+	public void testDecisionMemo() {
+		Policy p = Policy.parseSerializedCSP("default-src 'self' https://*.twimg.com; script-src https://cdn.example.com/js/; img-src https://*.twimg.com data:", throwIfPolicyError);
+		Policy plain = Policy.parseSerializedCSP(p.toString(), throwIfPolicyError);
+		DecisionMemo memo = new DecisionMemo(3);
+		p.setDecisionMemo(memo);
+		assertTrue(memo == p.getDecisionMemo());
+		URLWithScheme origin = URI.parseURI("https://example.com").get();
+
+		URLWithScheme first = URI.parseURI("https://pbs.twimg.com/media/1.jpg").get();
+		URLWithScheme second = URI.parseURI("https://pbs.twimg.com/media/2.jpg").get();
+		assertTrue(p.allowsImageNullable(first, origin));
+		assertTrue(p.allowsImageNullable(second, origin));
+		assertEquals(1, memo.missCount());
+		assertEquals(1, memo.hitCount());
+		assertFalse(p.allowsImageNullable(URI.parseURI("http://pbs.twimg.com/a.jpg").get(), origin));
+		assertTrue(p.allowsImageNullable(URI.parseURI("https://pbs.twimg.com/a.jpg").get(), null));
+		assertEquals(3, memo.missCount());
+		assertEquals(3, memo.size());
+		assertEquals(0.25, memo.hitRate(), 0.0001);
+
+		// Directives whose host-sources have paths depend on more than the scheme, host and port, so they are never memoized
+		assertTrue(p.allowsExternalScript(Optional.empty(), Optional.empty(), Optional.of(URI.parseURI("https://cdn.example.com/js/a.js").get()), Optional.empty(), Optional.of(origin)));
+		assertFalse(p.allowsExternalScript(Optional.empty(), Optional.empty(), Optional.of(URI.parseURI("https://cdn.example.com/css/a.css").get()), Optional.empty(), Optional.of(origin)));
+		assertEquals(4, memo.hitCount() + memo.missCount());
+
+		// Each effective directive has its own decisions, even when they share a governing directive
+		assertTrue(p.allowsFontNullable(first, origin));
+		assertTrue(p.allowsMediaNullable(first, origin));
+		assertEquals(5, memo.missCount());
+		assertEquals(5, memo.size());
+
+		// Full tables are emptied
+		assertFalse(p.allowsImageNullable(URI.parseURI("https://example.org/a.jpg").get(), origin));
+		assertEquals(3, memo.evictionCount());
+		assertEquals(3, memo.size());
+
+		// Changing the governing directive invalidates its decisions
+		assertFalse(p.allowsImageNullable(URI.parseURI("https://example.com/a.jpg").get(), origin));
+		SourceExpressionDirective imgSrc = p.getFetchDirective(FetchDirectiveKind.ImgSrc).get();
+		imgSrc.setSelf(true);
+		assertTrue(p.allowsImageNullable(URI.parseURI("https://example.com/a.jpg").get(), origin));
+		assertEquals(1, memo.invalidationCount());
+		imgSrc.removeHost(Host.parseHost("https://*.twimg.com").get());
+		assertFalse(p.allowsImageNullable(first, origin));
+		assertEquals(2, memo.invalidationCount());
+
+		// So does replacing it
+		assertTrue(p.remove("img-src"));
+		assertTrue(p.allowsImageNullable(first, origin));
+		assertEquals(3, memo.invalidationCount());
+		p.getFetchDirective(FetchDirectiveKind.DefaultSrc).get().addHost(Host.parseHost("https://example.org").get(), throwIfManipulationError);
+		assertTrue(p.allowsImageNullable(URI.parseURI("https://example.org/a.jpg").get(), origin));
+		assertEquals(4, memo.invalidationCount());
+
+		// Batches go through the memo too
+		long lookups = memo.hitCount() + memo.missCount();
+		assertEquals(BitSet.valueOf(new long[] { 0b01 }), p.allowsUrls(new FetchDirectiveKind[] { FetchDirectiveKind.ImgSrc, FetchDirectiveKind.ImgSrc }, new URLWithScheme[] { second, URI.parseURI("http://pbs.twimg.com/a.jpg").get() }, origin));
+		assertEquals(lookups + 2, memo.hitCount() + memo.missCount());
+
+		// And the answers agree with a policy without a memo, on the memoized and unmemoized paths alike
+		plain.remove("img-src");
+		plain.getFetchDirective(FetchDirectiveKind.DefaultSrc).get().addHost(Host.parseHost("https://example.org").get(), throwIfManipulationError);
+		for (String url : Arrays.asList("https://pbs.twimg.com/a", "http://pbs.twimg.com/a", "https://example.com/a", "https://example.com:8443/a", "wss://example.com/a", "https://example.org/b", "https://cdn.example.com/js/a.js", "data:,a")) {
+			URLWithScheme parsed = url.startsWith("data:") ? GUID.parseGUID(url).get() : URI.parseURI(url).get();
+			for (FetchDirectiveKind kind : new FetchDirectiveKind[] { FetchDirectiveKind.ImgSrc, FetchDirectiveKind.ScriptSrcElem, FetchDirectiveKind.ConnectSrc, FetchDirectiveKind.FrameSrc }) {
+				for (int i = 0; i < 2; ++i) {
+					assertEquals(kind.repr + " " + url, plain.allowsUrl(kind, parsed, origin), p.allowsUrl(kind, parsed, origin));
+				}
+			}
+		}
+
+		memo.clear();
+		assertEquals(0, memo.size());
+		p.setDecisionMemo(null);
+		assertTrue(p.allowsImageNullable(first, origin));
+		assertEquals(0, memo.size());
+	}
+
+	@Test
+	public void testPolicyRegistry() throws InterruptedException {
+		PolicyRegistry registry = new PolicyRegistry();
+		URLWithScheme origin = URI.parseURI("https://example.com").get();
+		URLWithScheme image = URI.parseURI("https://images.example.com/a.png").get();
+		assertNull(registry.get("a.example.com"));
+		assertEquals(0, registry.version());
+
+		PolicyList list = Policy.parseSerializedCSPList("img-src images.example.com, default-src 'self' https:", throwIfPolicyListError);
+		CompiledPolicyList compiled = registry.put("a.example.com", list);
+		assertTrue(compiled == registry.get("a.example.com"));
+		assertTrue(registry.get("a.example.com").allowsImageNullable(image, origin));
+		assertEquals(1, registry.version());
+
+		// Later changes to the list are not reflected
+		list.policies.get(0).remove("img-src");
+		list.policies.get(0).add("img-src", Collections.singletonList("'none'"), Directive.DirectiveErrorConsumer.ignored);
+		assertTrue(registry.get("a.example.com").allowsImageNullable(image, origin));
+
+		registry.put("b.example.com", Policy.parseSerializedCSPList("img-src 'none'", throwIfPolicyListError));
+		PolicyRegistry.Snapshot before = registry.snapshot();
+		assertEquals(2, before.version);
+		assertEquals(1, before.version("a.example.com"));
+		assertEquals(2, before.version("b.example.com"));
+		assertEquals(-1, before.version("c.example.com"));
+		assertFalse(registry.get("b.example.com").allowsImageNullable(image, origin));
+
+		assertTrue(registry.remove("b.example.com"));
+		assertFalse(registry.remove("b.example.com"));
+		assertEquals(3, registry.version());
+
+		// Bulk changes are one version each; snapshots taken earlier do not change
+		Map<String, PolicyList> bulk = new HashMap<>();
+		for (int i = 0; i < 50; ++i) {
+			bulk.put("tenant" + i, Policy.parseSerializedCSPList("img-src tenant" + i + ".example.com", throwIfPolicyListError));
+		}
+		registry.putAll(bulk, ForkJoinPool.commonPool());
+		assertEquals(4, registry.version());
+		assertEquals(51, registry.snapshot().size());
+		assertEquals(4, registry.snapshot().version("tenant7"));
+		assertTrue(registry.get("tenant7").allowsImageNullable(URI.parseURI("https://tenant7.example.com/a.png").get(), origin));
+		assertFalse(registry.get("tenant7").allowsImageNullable(image, origin));
+		registry.reload(bulk, null);
+		assertEquals(5, registry.version());
+		assertEquals(50, registry.snapshot().size());
+		assertNull(registry.get("a.example.com"));
+		assertEquals(2, before.size());
+		assertTrue(before.get("a.example.com").allowsImageNullable(image, origin));
+		assertEquals(new HashSet<>(Arrays.asList("a.example.com", "b.example.com")), before.keys());
+
+		// Readers see every tenant from the same reload, never a mix
+		Map<String, PolicyList> allow = new HashMap<>();
+		Map<String, PolicyList> deny = new HashMap<>();
+		for (int i = 0; i < 20; ++i) {
+			allow.put("tenant" + i, Policy.parseSerializedCSPList("img-src *", throwIfPolicyListError));
+			deny.put("tenant" + i, Policy.parseSerializedCSPList("img-src 'none'", throwIfPolicyListError));
+		}
+		Thread writer = new Thread(() -> {
+			for (int i = 0; i < 200; ++i) {
+				registry.reload(i % 2 == 0 ? allow : deny, null);
+			}
+		});
+		writer.start();
+		while (writer.isAlive()) {
+			PolicyRegistry.Snapshot snapshot = registry.snapshot();
+			boolean first = snapshot.get("tenant0").allowsImageNullable(image, origin);
+			for (int i = 1; i < 20; ++i) {
+				assertEquals(first, snapshot.get("tenant" + i).allowsImageNullable(image, origin));
+			}
+		}
+		writer.join();
+		assertEquals(205, registry.version());
+	}
+}
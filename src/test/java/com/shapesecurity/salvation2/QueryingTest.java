@@ -1,19 +1,50 @@
 package com.shapesecurity.salvation2;
 
+import com.shapesecurity.salvation2.Directives.SourceExpressionDirective;
 import com.shapesecurity.salvation2.URLs.GUID;
 import com.shapesecurity.salvation2.URLs.URI;
 import com.shapesecurity.salvation2.URLs.URLWithScheme;
+import com.shapesecurity.salvation2.Values.Hash;
 import com.shapesecurity.salvation2.Values.MediaType;
 import org.junit.Test;
-
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+// Every test runs against Policy, against the CompiledPolicy it compiles to, and against the policy PolicyOptimizer makes of it, which must all agree
+@RunWith(Parameterized.class)
 public class QueryingTest extends TestBase {
 	static String EXAMPLE_SHA = "sha512-O7Eu2jwpjbXeJVl/VNkk8uF+eKJq2JU+2CGO5oLwu76QIeLzAJ0VLJEb8fJexoOpAnFBZnZ6+9jlvQ+wEk7Lig=="; // sha512 of 'example'
 
+	@Parameterized.Parameters(name = "compiled: {0}, optimized: {1}")
+	public static Collection<Object[]> parameters() {
+		return Arrays.asList(new Object[][] { { false, false }, { true, false }, { false, true } });
+	}
+
+	private final boolean compiled;
+	private final boolean optimized;
+
+	public QueryingTest(boolean compiled, boolean optimized) {
+		this.compiled = compiled;
+		this.optimized = optimized;
+	}
+
 	@Test
 	public void testAllowsFromSource() {
 		PolicyInOrigin p;
@@ -207,8 +238,8 @@ public class QueryingTest extends TestBase {
 		p = parse("default-src *:* 'unsafe-inline'; connect-src 'self' http://good.com/", "https://abc.com");
 		assertTrue("inline script is allowed", p.allowsUnsafeInlineScript());
 		assertTrue("inline style is allowed", p.allowsUnsafeInlineStyle());
-		assertTrue("script hash is allowed", p.policy.allowsInlineScript(Optional.empty(), Optional.of("anything"), Optional.empty()));
-		assertTrue("style hash is allowed", p.policy.allowsInlineStyle(Optional.empty(), Optional.of("anything")));
+		assertTrue("script hash is allowed", p.queryable.allowsInlineScript(Optional.empty(), Optional.of("anything"), Optional.empty()));
+		assertTrue("style hash is allowed", p.queryable.allowsInlineStyle(Optional.empty(), Optional.of("anything")));
 
 		p = parse("default-src * 'unsafe-inline' 'nonce-123'", "https://abc.com");
 		assertFalse("inline script is not allowed", p.allowsUnsafeInlineScript());
@@ -228,7 +259,7 @@ public class QueryingTest extends TestBase {
 
 	@Test
 	public void testAllowsHash() {
-		Policy p;
+		QueryablePolicy p;
 
 		String wellFormedMatching = "sha512-vSsar3708Jvp9Szi2NWZZ02Bqp1qRCFpbcTZPdBhnWgs5WtNZKnvCXdhztmeD2cmW192CF5bDufKRpayrW/isg==";
 		String wellFormedNotMatching = "sha512-cGl6ZGE";
@@ -295,9 +326,96 @@ public class QueryingTest extends TestBase {
 		assertFalse("unknown style is not allowed", p.allowsInlineStyle(Optional.empty(), Optional.empty()));
 	}
 
+	@Test
+	public void testHashDigests() {
+		QueryablePolicy p;
+
+		// The URL-safe alphabet is equivalent to the standard one
+		String urlSafe = EXAMPLE_SHA.replace('+', '-').replace('/', '_');
+		p = queryable(Policy.parseSerializedCSP("script-src '" + urlSafe + "'", Policy.PolicyErrorConsumer.ignored));
+		assertTrue(p.allowsInlineScript(Optional.empty(), Optional.of("example"), Optional.empty()));
+		assertFalse(p.allowsInlineScript(Optional.empty(), Optional.of("example2"), Optional.empty()));
+
+		// Only the canonical encoding matches: not unpadded values, and not ones with stray bits after the digest
+		p = queryable(Policy.parseSerializedCSP("script-src 'sha256-UNhY4JhezH9gQYqvDMWrWH9CwlcKiECVqejMrND2VFw'", Policy.PolicyErrorConsumer.ignored));
+		assertFalse(p.allowsInlineScript(Optional.empty(), Optional.of("example"), Optional.empty()));
+		p = queryable(Policy.parseSerializedCSP("script-src 'sha256-UNhY4JhezH9gQYqvDMWrWH9CwlcKiECVqejMrND2VFx='", Policy.PolicyErrorConsumer.ignored));
+		assertFalse(p.allowsInlineScript(Optional.empty(), Optional.of("example"), Optional.empty()));
+		assertNull(Hash.parseHash("'sha256-UNhY4JhezH9gQYqvDMWrWH9CwlcKiECVqejMrND2VFx='").get().getDigest());
+		assertNull(Hash.parseHash("'sha512-UNhY4JhezH9gQYqvDMWrWH9CwlcKiECVqejMrND2VFw='").get().getDigest());
+		assertEquals(32, Hash.parseHash("'sha256-UNhY4JhezH9gQYqvDMWrWH9CwlcKiECVqejMrND2VFw='").get().getDigest().length);
+
+		// Lots of hashes of each kind, only one of which matches
+		StringBuilder serialized = new StringBuilder("script-src");
+		for (int i = 0; i < 300; ++i) {
+			String filler = String.format("%040d", i);
+			serialized.append(" 'sha256-").append(filler).append("000=' 'sha384-").append(filler).append("000000000000000000000000' 'sha512-").append(filler).append("00000000000000000000000000000000000000000000000=='");
+		}
+		serialized.append(" '").append(EXAMPLE_SHA).append("'");
+		p = queryable(Policy.parseSerializedCSP(serialized.toString(), Policy.PolicyErrorConsumer.ignored));
+		assertTrue(p.allowsInlineScript(Optional.empty(), Optional.of("example"), Optional.empty()));
+		assertFalse(p.allowsInlineScript(Optional.empty(), Optional.of("example2"), Optional.empty()));
+
+		// Changing the hashes changes what matches
+		Policy policy = Policy.parseSerializedCSP("script-src 'sha256-UNhY4JhezH9gQYqvDMWrWH9CwlcKiECVqejMrND2VFw='", Policy.PolicyErrorConsumer.ignored);
+		assertTrue(queryable(policy).allowsInlineScript(Optional.empty(), Optional.of("example"), Optional.empty()));
+		SourceExpressionDirective scriptSrc = policy.getFetchDirective(FetchDirectiveKind.ScriptSrc).get();
+		assertTrue(scriptSrc.removeHash(Hash.parseHash("'sha256-UNhY4JhezH9gQYqvDMWrWH9CwlcKiECVqejMrND2VFw='").get()));
+		assertFalse(queryable(policy).allowsInlineScript(Optional.empty(), Optional.of("example"), Optional.empty()));
+		scriptSrc.addHash(Hash.parseHash("'" + urlSafe + "'").get(), Directive.ManipulationErrorConsumer.ignored);
+		assertTrue(queryable(policy).allowsInlineScript(Optional.empty(), Optional.of("example"), Optional.empty()));
+	}
+
+	@Test
+	public void testDigestCache() {
+		Policy policy = Policy.parseSerializedCSP("script-src 'sha256-UNhY4JhezH9gQYqvDMWrWH9CwlcKiECVqejMrND2VFw='; style-src '" + EXAMPLE_SHA + "'", throwIfPolicyError);
+		if (this.optimized) {
+			policy = PolicyOptimizer.optimize(policy).policy;
+		}
+		DigestCache cache = new DigestCache(2, 10);
+		policy.setDigestCache(cache);
+		QueryablePolicy p = this.compiled ? policy.compile() : policy;
+		assertTrue(p.allowsInlineScript(Optional.empty(), Optional.of("example"), Optional.empty()));
+		assertEquals(0, cache.hitCount());
+		assertEquals(1, cache.missCount());
+		assertTrue(p.allowsInlineScript(Optional.empty(), Optional.of("example"), Optional.empty()));
+		assertFalse(p.allowsInlineScript(Optional.empty(), Optional.of("example2"), Optional.empty()));
+		assertEquals(1, cache.hitCount());
+		assertEquals(2, cache.missCount());
+		assertEquals(2, cache.size());
+
+		// Each algorithm's digest is computed the first time it is needed
+		assertTrue(p.allowsInlineStyle(Optional.empty(), Optional.of("example")));
+		assertEquals(3, cache.missCount());
+		assertTrue(p.allowsInlineStyle(Optional.empty(), Optional.of("example")));
+		assertEquals(2, cache.hitCount());
+		assertEquals(0.4, cache.hitRate(), 0.0001);
+		assertArrayEquals(Hash.Algorithm.SHA512.digest("example".getBytes(StandardCharsets.UTF_8)), cache.digest(Hash.Algorithm.SHA512, "example"));
+
+		// The least recently used entry goes first
+		assertFalse(p.allowsInlineScript(Optional.empty(), Optional.of("example3"), Optional.empty()));
+		assertEquals(1, cache.evictionCount());
+		assertEquals(2, cache.size());
+
+		// Long sources bypass the cache
+		assertFalse(p.allowsInlineScript(Optional.empty(), Optional.of("example example"), Optional.empty()));
+		assertEquals(1, cache.uncacheableCount());
+		assertEquals(2, cache.size());
+
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertTrue(p.allowsInlineScript(Optional.empty(), Optional.of("example"), Optional.empty()));
+
+		// Policies without a cache of their own do not use it
+		long lookups = cache.hitCount() + cache.missCount();
+		QueryablePolicy other = parse("script-src 'sha256-UNhY4JhezH9gQYqvDMWrWH9CwlcKiECVqejMrND2VFw='");
+		assertTrue(other.allowsInlineScript(Optional.empty(), Optional.of("example"), Optional.empty()));
+		assertEquals(lookups, cache.hitCount() + cache.missCount());
+	}
+
 	@Test
 	public void testAllowsNonce() {
-		Policy p;
+		QueryablePolicy p;
 
 		p = parse("script-src 'nonce-0gQAAA=='");
 		assertTrue("script nonce is allowed", p.allowsInlineScript(Optional.of("0gQAAA=="), Optional.empty(), Optional.empty()));
@@ -328,7 +446,7 @@ public class QueryingTest extends TestBase {
 		assertFalse("unsafe style is not allowed", p.allowsExternalStyle(Optional.empty(), Optional.empty(), Optional.empty()));
 
 		// Empty nonces are explicitly disallowed
-		p = Policy.parseSerializedCSP("default-src 'nonce-'", Policy.PolicyErrorConsumer.ignored);
+		p = this.queryable(Policy.parseSerializedCSP("default-src 'nonce-'", Policy.PolicyErrorConsumer.ignored));
 		assertFalse("script nonce is allowed", p.allowsExternalScript(Optional.of(""), Optional.empty(), Optional.empty(), Optional.empty(), Optional.empty()));
 		assertFalse("style nonce is allowed", p.allowsExternalStyle(Optional.of(""), Optional.empty(), Optional.empty()));
 	}
@@ -336,7 +454,7 @@ public class QueryingTest extends TestBase {
 
 	@Test
 	public void testAllowsScriptAttributeWithHash() {
-		Policy p;
+		QueryablePolicy p;
 
 		p = parse("script-src 'unsafe-hashes' '" + EXAMPLE_SHA + "'");
 		assertTrue("attribute with hash is allowed", p.allowsScriptAsAttribute(Optional.of("example")));
@@ -643,71 +761,71 @@ public class QueryingTest extends TestBase {
 
 		p = parse("default-src 'unsafe-inline' 'strict-dynamic'", "http://example.com");
 		assertFalse(p.allowsUnsafeInlineScript());
-		assertFalse(p.policy.allowsScriptAsAttribute(Optional.of("example")));
+		assertFalse(p.queryable.allowsScriptAsAttribute(Optional.of("example")));
 		assertTrue(p.allowsUnsafeInlineStyle());
-		assertTrue(p.policy.allowsStyleAsAttribute(Optional.empty()));
-		assertFalse(p.policy.allowsInlineScript(Optional.of("123"), Optional.empty(), Optional.empty()));
-		assertTrue(p.policy.allowsInlineStyle(Optional.of("123"), Optional.empty()));
-		assertFalse(p.policy.allowsInlineScript(Optional.empty(), Optional.of("example"), Optional.empty()));
-		assertTrue(p.policy.allowsInlineStyle(Optional.empty(), Optional.of("example")));
+		assertTrue(p.queryable.allowsStyleAsAttribute(Optional.empty()));
+		assertFalse(p.queryable.allowsInlineScript(Optional.of("123"), Optional.empty(), Optional.empty()));
+		assertTrue(p.queryable.allowsInlineStyle(Optional.of("123"), Optional.empty()));
+		assertFalse(p.queryable.allowsInlineScript(Optional.empty(), Optional.of("example"), Optional.empty()));
+		assertTrue(p.queryable.allowsInlineStyle(Optional.empty(), Optional.of("example")));
 
 		p = parse("default-src 'unsafe-inline' 'strict-dynamic' 'nonce-123' '" + EXAMPLE_SHA + "'", "http://example.com");
 		assertFalse(p.allowsUnsafeInlineScript());
 		assertFalse(p.allowsUnsafeInlineStyle());
-		assertTrue(p.policy.allowsInlineScript(Optional.of("123"), Optional.empty(), Optional.empty()));
-		assertTrue(p.policy.allowsInlineStyle(Optional.of("123"), Optional.empty()));
-		assertFalse(p.policy.allowsInlineScript(Optional.of("456"), Optional.empty(), Optional.empty()));
-		assertFalse(p.policy.allowsInlineStyle(Optional.of("456"), Optional.empty()));
-		assertTrue(p.policy.allowsInlineScript(Optional.empty(), Optional.of("example"), Optional.empty()));
-		assertTrue(p.policy.allowsInlineStyle(Optional.empty(), Optional.of("example")));
-		assertFalse(p.policy.allowsInlineScript(Optional.empty(), Optional.of("example2"), Optional.empty()));
-		assertFalse(p.policy.allowsInlineStyle(Optional.empty(), Optional.of("example2")));
+		assertTrue(p.queryable.allowsInlineScript(Optional.of("123"), Optional.empty(), Optional.empty()));
+		assertTrue(p.queryable.allowsInlineStyle(Optional.of("123"), Optional.empty()));
+		assertFalse(p.queryable.allowsInlineScript(Optional.of("456"), Optional.empty(), Optional.empty()));
+		assertFalse(p.queryable.allowsInlineStyle(Optional.of("456"), Optional.empty()));
+		assertTrue(p.queryable.allowsInlineScript(Optional.empty(), Optional.of("example"), Optional.empty()));
+		assertTrue(p.queryable.allowsInlineStyle(Optional.empty(), Optional.of("example")));
+		assertFalse(p.queryable.allowsInlineScript(Optional.empty(), Optional.of("example2"), Optional.empty()));
+		assertFalse(p.queryable.allowsInlineStyle(Optional.empty(), Optional.of("example2")));
 
 		p = parse("default-src 'unsafe-inline' 'strict-dynamic' 'nonce-123' '" + EXAMPLE_SHA + "'; script-src 'none';", "http://example.com");
 		assertFalse(p.allowsUnsafeInlineScript());
-		assertFalse(p.policy.allowsScriptAsAttribute(Optional.of("example")));
+		assertFalse(p.queryable.allowsScriptAsAttribute(Optional.of("example")));
 		assertFalse(p.allowsUnsafeInlineStyle());
 
-		assertFalse(p.policy.allowsInlineScript(Optional.of("123"), Optional.empty(), Optional.empty()));
-		assertTrue(p.policy.allowsInlineStyle(Optional.of("123"), Optional.empty()));
-		assertFalse(p.policy.allowsInlineScript(Optional.of("456"), Optional.empty(), Optional.empty()));
-		assertFalse(p.policy.allowsInlineStyle(Optional.of("456"), Optional.empty()));
-		assertFalse(p.policy.allowsInlineScript(Optional.empty(), Optional.of("example"), Optional.empty()));
-		assertTrue(p.policy.allowsInlineStyle(Optional.empty(), Optional.of("example")));
-		assertFalse(p.policy.allowsInlineScript(Optional.empty(), Optional.of("example2"), Optional.empty()));
-		assertFalse(p.policy.allowsInlineStyle(Optional.empty(), Optional.of("example2")));
+		assertFalse(p.queryable.allowsInlineScript(Optional.of("123"), Optional.empty(), Optional.empty()));
+		assertTrue(p.queryable.allowsInlineStyle(Optional.of("123"), Optional.empty()));
+		assertFalse(p.queryable.allowsInlineScript(Optional.of("456"), Optional.empty(), Optional.empty()));
+		assertFalse(p.queryable.allowsInlineStyle(Optional.of("456"), Optional.empty()));
+		assertFalse(p.queryable.allowsInlineScript(Optional.empty(), Optional.of("example"), Optional.empty()));
+		assertTrue(p.queryable.allowsInlineStyle(Optional.empty(), Optional.of("example")));
+		assertFalse(p.queryable.allowsInlineScript(Optional.empty(), Optional.of("example2"), Optional.empty()));
+		assertFalse(p.queryable.allowsInlineStyle(Optional.empty(), Optional.of("example2")));
 
 		p = parse("default-src 'unsafe-inline' 'strict-dynamic' 'nonce-123' '" + EXAMPLE_SHA + "'; style-src 'none';", "http://example.com");
 		assertFalse(p.allowsUnsafeInlineScript());
-		assertFalse(p.policy.allowsScriptAsAttribute(Optional.of("example")));
+		assertFalse(p.queryable.allowsScriptAsAttribute(Optional.of("example")));
 		assertFalse(p.allowsUnsafeInlineStyle());
-		assertTrue(p.policy.allowsInlineScript(Optional.of("123"), Optional.empty(), Optional.empty()));
-		assertFalse(p.policy.allowsInlineStyle(Optional.of("123"), Optional.empty()));
-		assertFalse(p.policy.allowsInlineScript(Optional.of("456"), Optional.empty(), Optional.empty()));
-		assertFalse(p.policy.allowsInlineStyle(Optional.of("456"), Optional.empty()));
-		assertTrue(p.policy.allowsInlineScript(Optional.empty(), Optional.of("example"), Optional.empty()));
-		assertFalse(p.policy.allowsInlineStyle(Optional.empty(), Optional.of("example")));
-		assertFalse(p.policy.allowsInlineScript(Optional.empty(), Optional.of("example2"), Optional.empty()));
-		assertFalse(p.policy.allowsInlineStyle(Optional.empty(), Optional.of("example2")));
+		assertTrue(p.queryable.allowsInlineScript(Optional.of("123"), Optional.empty(), Optional.empty()));
+		assertFalse(p.queryable.allowsInlineStyle(Optional.of("123"), Optional.empty()));
+		assertFalse(p.queryable.allowsInlineScript(Optional.of("456"), Optional.empty(), Optional.empty()));
+		assertFalse(p.queryable.allowsInlineStyle(Optional.of("456"), Optional.empty()));
+		assertTrue(p.queryable.allowsInlineScript(Optional.empty(), Optional.of("example"), Optional.empty()));
+		assertFalse(p.queryable.allowsInlineStyle(Optional.empty(), Optional.of("example")));
+		assertFalse(p.queryable.allowsInlineScript(Optional.empty(), Optional.of("example2"), Optional.empty()));
+		assertFalse(p.queryable.allowsInlineStyle(Optional.empty(), Optional.of("example2")));
 
 
 		p = parse("script-src 'unsafe-inline' 'nonce-forscript' 'strict-dynamic'; style-src 'unsafe-inline' 'nonce-forstyle'", "http://example.com");
 		assertFalse(p.allowsUnsafeInlineScript());
 		assertFalse(p.allowsUnsafeInlineStyle());
-		assertTrue(p.policy.allowsInlineScript(Optional.of("forscript"), Optional.empty(), Optional.empty()));
-		assertFalse(p.policy.allowsInlineStyle(Optional.of("forscript"), Optional.empty()));
-		assertFalse(p.policy.allowsInlineScript(Optional.of("forstyle"), Optional.empty(), Optional.empty()));
-		assertTrue(p.policy.allowsInlineStyle(Optional.of("forstyle"), Optional.empty()));
+		assertTrue(p.queryable.allowsInlineScript(Optional.of("forscript"), Optional.empty(), Optional.empty()));
+		assertFalse(p.queryable.allowsInlineStyle(Optional.of("forscript"), Optional.empty()));
+		assertFalse(p.queryable.allowsInlineScript(Optional.of("forstyle"), Optional.empty(), Optional.empty()));
+		assertTrue(p.queryable.allowsInlineStyle(Optional.of("forstyle"), Optional.empty()));
 
 		p = parse("script-src-elem 'unsafe-inline' 'nonce-forscript' 'strict-dynamic'; style-src-elem 'unsafe-inline' 'nonce-forstyle'", "http://example.com");
 		assertFalse(p.allowsUnsafeInlineScript());
 		assertFalse(p.allowsUnsafeInlineStyle());
-		assertTrue(p.policy.allowsInlineScript(Optional.of("forscript"), Optional.empty(), Optional.empty()));
-		assertFalse(p.policy.allowsInlineStyle(Optional.of("forscript"), Optional.empty()));
-		assertFalse(p.policy.allowsInlineScript(Optional.of("forstyle"), Optional.empty(), Optional.empty()));
-		assertTrue(p.policy.allowsInlineStyle(Optional.of("forstyle"), Optional.empty()));
+		assertTrue(p.queryable.allowsInlineScript(Optional.of("forscript"), Optional.empty(), Optional.empty()));
+		assertFalse(p.queryable.allowsInlineStyle(Optional.of("forscript"), Optional.empty()));
+		assertFalse(p.queryable.allowsInlineScript(Optional.of("forstyle"), Optional.empty(), Optional.empty()));
+		assertTrue(p.queryable.allowsInlineStyle(Optional.of("forstyle"), Optional.empty()));
 
-		Policy policy = parse("default-src 'none'; script-src 'nonce-asdf' 'strict-dynamic'");
+		QueryablePolicy policy = parse("default-src 'none'; script-src 'nonce-asdf' 'strict-dynamic'");
 		assertTrue(policy.allowsInlineScript(Optional.empty(), Optional.empty(), Optional.of(false)));
 		assertTrue(policy.allowsExternalScript(Optional.empty(), Optional.empty(), Optional.empty(), Optional.of(false), Optional.empty()));
 		assertFalse(policy.allowsInlineScript(Optional.empty(), Optional.empty(), Optional.of(true)));
@@ -722,20 +840,20 @@ public class QueryingTest extends TestBase {
 		p = parse("default-src 'unsafe-inline' 'nonce-123' ", "http://example.com");
 		assertFalse(p.allowsUnsafeInlineScript());
 		assertFalse(p.allowsUnsafeInlineStyle());
-		assertTrue(p.policy.allowsInlineScript(Optional.of("123"), Optional.empty(), Optional.empty()));
-		assertTrue(p.policy.allowsInlineStyle(Optional.of("123"), Optional.empty()));
-		assertFalse(p.policy.allowsInlineScript(Optional.of("456"), Optional.empty(), Optional.empty()));
-		assertFalse(p.policy.allowsInlineStyle(Optional.of("456"), Optional.empty()));
+		assertTrue(p.queryable.allowsInlineScript(Optional.of("123"), Optional.empty(), Optional.empty()));
+		assertTrue(p.queryable.allowsInlineStyle(Optional.of("123"), Optional.empty()));
+		assertFalse(p.queryable.allowsInlineScript(Optional.of("456"), Optional.empty(), Optional.empty()));
+		assertFalse(p.queryable.allowsInlineStyle(Optional.of("456"), Optional.empty()));
 
 		p = parse("default-src 'unsafe-inline' '" + EXAMPLE_SHA + "' ", "http://example.com");
 		assertFalse(p.allowsUnsafeInlineScript());
 		assertFalse(p.allowsUnsafeInlineStyle());
-		assertFalse(p.policy.allowsInlineScript(Optional.of("123"), Optional.empty(), Optional.empty()));
-		assertFalse(p.policy.allowsInlineStyle(Optional.of("123"), Optional.empty()));
-		assertTrue(p.policy.allowsInlineScript(Optional.empty(), Optional.of("example"), Optional.empty()));
-		assertTrue(p.policy.allowsInlineStyle(Optional.empty(), Optional.of("example")));
-		assertFalse(p.policy.allowsInlineScript(Optional.empty(), Optional.of("example2"), Optional.empty()));
-		assertFalse(p.policy.allowsInlineStyle(Optional.empty(), Optional.of("example2")));
+		assertFalse(p.queryable.allowsInlineScript(Optional.of("123"), Optional.empty(), Optional.empty()));
+		assertFalse(p.queryable.allowsInlineStyle(Optional.of("123"), Optional.empty()));
+		assertTrue(p.queryable.allowsInlineScript(Optional.empty(), Optional.of("example"), Optional.empty()));
+		assertTrue(p.queryable.allowsInlineStyle(Optional.empty(), Optional.of("example")));
+		assertFalse(p.queryable.allowsInlineScript(Optional.empty(), Optional.of("example2"), Optional.empty()));
+		assertFalse(p.queryable.allowsInlineStyle(Optional.empty(), Optional.of("example2")));
 	}
 
 
@@ -1069,6 +1187,251 @@ public class QueryingTest extends TestBase {
 		assertFalse(p.allowsManifestFromSource(GUID.parseGUID("custom.scheme:").orElse(null)));
 	}
 
+	@Test
+	public void testPolicyOptimizerAgreesWithOriginal() {
+		// Every pair and triple of these, as one source list, in a fetch directive with a fallback and in frame-ancestors, which has none
+		List<String> sources = Arrays.asList(
+				"*", "'self'", "https:", "http:", "ws:", "wss:", "data:", "custom:", "example.com", "*.example.com", "https://example.com", "http://example.com",
+				"https://a.example.com", "https://*.example.com:*", "example.com:8080", "https://example.com:443", "https://example.com/path/", "https://example.com/path/x",
+				"*.com", "ws://example.com", "wss://*.example.com", "ftp://example.com", "https://*", "127.0.0.1"
+		);
+		List<URLWithScheme> urls = new ArrayList<>();
+		for (String scheme : Arrays.asList("http", "https", "ws", "wss", "ftp", "custom")) {
+			for (String host : Arrays.asList("example.com", "a.example.com", "127.0.0.1")) {
+				for (String port : Arrays.asList("", ":8080")) {
+					for (String path : Arrays.asList("/path/x", "/other")) {
+						urls.add(URI.parseURI(scheme + "://" + host + port + path).get());
+					}
+				}
+			}
+		}
+		urls.add(GUID.parseGUID("data:abc").get());
+		List<URLWithScheme> origins = new ArrayList<>();
+		origins.add(null);
+		for (String origin : Arrays.asList("https://example.com", "http://example.com:8080", "ws://example.com", "wss://other.com", "ftp://example.com", "custom://example.com")) {
+			origins.add(URI.parseURI(origin).get());
+		}
+
+		int saved = 0;
+		for (int i = 0; i < sources.size(); ++i) {
+			for (int j = i + 1; j < sources.size(); ++j) {
+				for (int k = j; k < sources.size(); ++k) {
+					String list = sources.get(i) + " " + sources.get(j) + (k == j ? "" : " " + sources.get(k));
+					Policy original = Policy.parseSerializedCSP("default-src " + list + "; img-src " + list + "; frame-ancestors " + list, throwIfPolicyError);
+					PolicyOptimizer.Result result = PolicyOptimizer.optimize(original);
+					saved += result.bytesSaved();
+					QueryablePolicy optimized = this.queryable(result.policy);
+					String described = result.policy + " (from " + original + ")";
+					for (URLWithScheme origin : origins) {
+						for (URLWithScheme url : urls) {
+							boolean image = original.allowsImageNullable(url, origin);
+							boolean frameAncestor = original.allowsFrameAncestorNullable(url, origin);
+							if (image != optimized.allowsImageNullable(url, origin) || frameAncestor != optimized.allowsFrameAncestorNullable(url, origin)) {
+								throw new AssertionError(described + " disagrees on " + url + " in " + origin);
+							}
+						}
+					}
+				}
+			}
+		}
+		assertTrue(saved > 0);
+
+		// Directives which fall back to others
+		List<String> policies = Arrays.asList(
+				"default-src https:; img-src https:; script-src https: 'nonce-abc'; script-src-elem https: 'nonce-abc'; style-src https: 'unsafe-inline'",
+				"default-src 'self'; worker-src 'self'; child-src 'self'; frame-src 'self'; script-src 'unsafe-eval' 'self'",
+				"default-src 'none'; script-src 'none'; script-src-elem 'self'; script-src-attr 'none'; style-src 'report-sample'",
+				"script-src https: 'strict-dynamic' 'nonce-abc'; script-src-elem https: 'strict-dynamic' 'nonce-abc'; script-src-attr 'unsafe-hashes' 'sha256-AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA='",
+				"default-src * 'unsafe-inline'; img-src *; connect-src * 'unsafe-inline'; object-src 'none'; navigate-to 'self'"
+		);
+		URLWithScheme origin = URI.parseURI("https://example.com").get();
+		for (String serialized : policies) {
+			Policy original = Policy.parseSerializedCSP(serialized, throwIfPolicyError);
+			QueryablePolicy optimized = this.queryable(PolicyOptimizer.optimize(original).policy);
+			assertEquals(serialized, original.allowsEval(), optimized.allowsEval());
+			for (String nonce : Arrays.asList(null, "abc")) {
+				assertEquals(serialized, original.allowsInlineScriptNullable(nonce, "alert(1)", TriState.False), optimized.allowsInlineScriptNullable(nonce, "alert(1)", TriState.False));
+				assertEquals(serialized, original.allowsInlineStyleNullable(nonce, "a{}"), optimized.allowsInlineStyleNullable(nonce, "a{}"));
+			}
+			assertEquals(serialized, original.allowsScriptAsAttributeNullable("f()"), optimized.allowsScriptAsAttributeNullable("f()"));
+			assertEquals(serialized, original.allowsStyleAsAttributeNullable("color: red"), optimized.allowsStyleAsAttributeNullable("color: red"));
+			for (URLWithScheme url : urls) {
+				for (FetchDirectiveKind kind : FetchDirectiveKind.values()) {
+					if (kind != FetchDirectiveKind.DefaultSrc && kind != FetchDirectiveKind.ChildSrc && kind != FetchDirectiveKind.ScriptSrc && kind != FetchDirectiveKind.StyleSrc
+							&& kind != FetchDirectiveKind.ScriptSrcAttr && kind != FetchDirectiveKind.StyleSrcAttr) {
+						assertEquals(serialized + ": " + kind.repr + " " + url, original.allowsUrl(kind, url, origin), optimized.allowsUrl(kind, url, origin));
+					}
+				}
+				for (String nonce : Arrays.asList(null, "abc")) {
+					assertEquals(serialized, original.allowsExternalScriptNullable(nonce, null, url, TriState.False, origin), optimized.allowsExternalScriptNullable(nonce, null, url, TriState.False, origin));
+				}
+				assertEquals(serialized, original.allowsNavigationNullable(url, TriState.False, null, origin), optimized.allowsNavigationNullable(url, TriState.False, null, origin));
+			}
+		}
+	}
+
+	@Test
+	public void testAllowsUrls() {
+		List<FetchDirectiveKind> kinds = Arrays.asList(
+				FetchDirectiveKind.ConnectSrc, FetchDirectiveKind.FontSrc, FetchDirectiveKind.FrameSrc, FetchDirectiveKind.ImgSrc, FetchDirectiveKind.ManifestSrc, FetchDirectiveKind.MediaSrc,
+				FetchDirectiveKind.ObjectSrc, FetchDirectiveKind.PrefetchSrc, FetchDirectiveKind.ScriptSrcElem, FetchDirectiveKind.StyleSrcElem, FetchDirectiveKind.WorkerSrc
+		);
+		List<URLWithScheme> urls = Arrays.asList(
+				URI.parseURI("https://example.com/a").get(), URI.parseURI("http://cdn.example.com/b").get(), URI.parseURI("ws://example.com").get(), URI.parseURI("wss://example.com").get(),
+				URI.parseURI("https://other.com").get(), GUID.parseGUID("data:abc").get(), null
+		);
+		URLWithScheme origin = URI.parseURI("https://example.com").get();
+		List<String> policies = Arrays.asList(
+				"", "default-src 'self'", "default-src 'none'; img-src *; connect-src https://example.com", "script-src 'strict-dynamic' 'self'; style-src *.example.com; frame-src data:",
+				"default-src https:; child-src 'self'; sandbox", "default-src *; sandbox allow-scripts; font-src 'none'; worker-src http://*.example.com"
+		);
+		int size = 2 * UrlBatch.PARALLEL_THRESHOLD;
+		FetchDirectiveKind[] batchKinds = new FetchDirectiveKind[size];
+		URLWithScheme[] batchUrls = new URLWithScheme[size];
+		for (int i = 0; i < size; ++i) {
+			batchKinds[i] = kinds.get(i % kinds.size());
+			batchUrls[i] = urls.get(i / kinds.size() % urls.size());
+		}
+		for (String policy : policies) {
+			QueryablePolicy p = parse(policy);
+			BitSet batch = p.allowsUrls(batchKinds, batchUrls, origin);
+			for (int i = 0; i < size; ++i) {
+				assertEquals(policy + ": " + batchKinds[i].repr + " " + batchUrls[i], p.allowsUrl(batchKinds[i], batchUrls[i], origin), batch.get(i));
+			}
+			assertEquals(batch, p.allowsUrls(batchKinds, batchUrls, origin, ForkJoinPool.commonPool()));
+			assertEquals(new BitSet(), p.allowsUrls(new FetchDirectiveKind[0], new URLWithScheme[0], origin));
+		}
+
+		QueryablePolicy p = parse("img-src 'self'");
+		assertTrue(p.allowsUrl(FetchDirectiveKind.ImgSrc, origin, origin));
+		assertFalse(p.allowsUrl(FetchDirectiveKind.ImgSrc, origin, null));
+		for (FetchDirectiveKind kind : Arrays.asList(FetchDirectiveKind.DefaultSrc, FetchDirectiveKind.ScriptSrc, FetchDirectiveKind.StyleSrcAttr, FetchDirectiveKind.ChildSrc)) {
+			try {
+				p.allowsUrls(new FetchDirectiveKind[] { kind }, new URLWithScheme[] { origin }, origin);
+				throw new AssertionError(kind.repr + " should have been rejected");
+			} catch (IllegalArgumentException e) {
+				assertEquals(kind.repr + " is not the effective directive of a fetch", e.getMessage());
+			}
+		}
+	}
+
+	@Test
+	public void testPolicyList() {
+		List<String> lists = Arrays.asList(
+				"", "default-src 'self'", "default-src 'self', img-src 'none'", "img-src *, script-src 'nonce-abc' example.com, style-src 'unsafe-inline'",
+				"script-src 'unsafe-eval', default-src *", "sandbox allow-scripts, script-src 'strict-dynamic'", "frame-ancestors 'self', form-action 'none', plugin-types a/b"
+		);
+		URLWithScheme origin = URI.parseURI("https://example.com").get();
+		List<URLWithScheme> urls = Arrays.asList(URI.parseURI("https://example.com/a").get(), URI.parseURI("http://other.com").get(), null);
+		for (String serialized : lists) {
+			PolicyList list = Policy.parseSerializedCSPList(serialized, throwIfPolicyListError);
+			QueryablePolicy p = this.compiled ? list.compile() : list;
+			for (URLWithScheme url : urls) {
+				boolean image = true;
+				boolean script = true;
+				boolean frameAncestor = true;
+				boolean formAction = true;
+				for (Policy policy : list.policies) {
+					image &= policy.allowsImageNullable(url, origin);
+					script &= policy.allowsExternalScriptNullable("abc", null, url, TriState.False, origin);
+					frameAncestor &= policy.allowsFrameAncestorNullable(url, origin);
+					formAction &= policy.allowsFormActionNullable(url, TriState.Unknown, null, origin);
+				}
+				assertEquals(serialized + " " + url, image, p.allowsImageNullable(url, origin));
+				assertEquals(serialized + " " + url, script, p.allowsExternalScriptNullable("abc", null, url, TriState.False, origin));
+				assertEquals(serialized + " " + url, frameAncestor, p.allowsFrameAncestorNullable(url, origin));
+				assertEquals(serialized + " " + url, formAction, p.allowsFormActionNullable(url, TriState.Unknown, null, origin));
+			}
+			boolean eval = true;
+			boolean inlineStyle = true;
+			boolean plugin = true;
+			for (Policy policy : list.policies) {
+				eval &= policy.allowsEval();
+				inlineStyle &= policy.allowsInlineStyleNullable(null, "a");
+				plugin &= policy.allowsPluginNullable(MediaType.parseMediaType("a/b").get());
+			}
+			assertEquals(serialized, eval, p.allowsEval());
+			assertEquals(serialized, inlineStyle, p.allowsInlineStyleNullable(null, "a"));
+			assertEquals(serialized, plugin, p.allowsPluginNullable(MediaType.parseMediaType("a/b").get()));
+		}
+
+		// The estimate which orders a compiled list
+		assertTrue(parseCompiled("default-src 'none'").restrictiveness() > parseCompiled("default-src *").restrictiveness());
+		assertTrue(parseCompiled("default-src *").restrictiveness() > parseCompiled("img-src *").restrictiveness());
+		assertEquals(0, parseCompiled("").restrictiveness());
+	}
+
+	@Test
+	public void testOriginMatcher() {
+		List<URLWithScheme> origins = new ArrayList<>();
+		for (String origin : Arrays.asList("http://example.com", "https://example.com", "http://example.com:8080", "https://example.com:80", "ws://example.com", "wss://example.com", "ftp://example.com", "applewebdata://example.com")) {
+			origins.add(URI.parseURI(origin).get());
+		}
+		origins.add(GUID.parseGUID("data:example").get());
+		List<URLWithScheme> urls = new ArrayList<>();
+		for (String scheme : Arrays.asList("http", "https", "ws", "wss", "ftp", "applewebdata")) {
+			for (String host : Arrays.asList("example.com", "other.com")) {
+				for (int port : Arrays.asList(21, 80, 443, 8080, Constants.EMPTY_PORT)) {
+					urls.add(new URI(scheme, host, port, "/"));
+				}
+			}
+		}
+		urls.add(GUID.parseGUID("data:example").get());
+		urls.add(GUID.parseGUID("https:example").get());
+
+		for (URLWithScheme origin : origins) {
+			OriginMatcher matcher = OriginMatcher.of(origin);
+			assertTrue(matcher.origin == origin);
+			for (URLWithScheme url : urls) {
+				String message = url.scheme + "://" + url.host + ":" + url.port + " in " + origin.scheme + "://" + origin.host + ":" + origin.port;
+				// The steps of https://w3c.github.io/webappsec-csp/#match-url-to-source-list which involve the origin, as written
+				boolean star = url.scheme.equals("ftp") || url.scheme.equals("http") || url.scheme.equals("https") || url.scheme.equals(origin.scheme);
+				boolean self = Objects.equals(origin.host, url.host)
+						&& (Objects.equals(origin.port, url.port) || Objects.equals(origin.port, URI.defaultPortForProtocol(origin.scheme)) && Objects.equals(url.port, URI.defaultPortForProtocol(url.scheme)))
+						&& (url.scheme.equals("https") || url.scheme.equals("wss") || origin.scheme.equals("http") && (url.scheme.equals("http") || url.scheme.equals("ws")));
+				assertEquals(message, star, matcher.starMatches(url.scheme));
+				assertEquals(message, Policy.schemePartMatches(origin.scheme, url.scheme), matcher.schemelessHostMatches(url.scheme));
+				assertEquals(message, self, matcher.selfMatches(url));
+				assertEquals(message, !url.scheme.equals("applewebdata") && !url.scheme.equals("ws") && !url.scheme.equals("wss") && !url.scheme.equals("data"), OriginMatcher.NONE.starMatches(url.scheme));
+				assertFalse(message, OriginMatcher.NONE.schemelessHostMatches(url.scheme));
+				assertFalse(message, OriginMatcher.NONE.selfMatches(url));
+			}
+		}
+		assertTrue(OriginMatcher.NONE == OriginMatcher.of(null));
+
+		PolicyInOrigin p = parse("default-src 'self' example.org", "https://example.com:8443");
+		assertTrue(p.originMatcher.origin == p.origin);
+		assertTrue(p.allowsImageFromSource(URI.parseURI("https://example.com:8443/a").get()));
+		assertTrue(p.allowsImageFromSource(URI.parseURI("wss://example.com:8443/a").get()));
+		assertFalse(p.allowsImageFromSource(URI.parseURI("http://example.com:8443/a").get()));
+		assertFalse(p.allowsImageFromSource(URI.parseURI("https://example.com/a").get()));
+		assertTrue(p.allowsImageFromSource(URI.parseURI("https://example.org/a").get()));
+		assertFalse(p.allowsImageFromSource(URI.parseURI("http://example.org/a").get()));
+
+		// PolicyInOrigin's queries go through the matcher, and agree with the queries which take the origin as a URL
+		URLWithScheme origin = URI.parseURI("http://example.com").get();
+		List<String> policies = Arrays.asList(
+				"default-src 'self' ws:; form-action https:; frame-ancestors 'self'; navigate-to example.org",
+				"script-src 'strict-dynamic' 'self'; connect-src http://example.org; sandbox allow-forms",
+				"default-src *; sandbox allow-scripts"
+		);
+		for (String serialized : policies) {
+			QueryablePolicy q = this.parse(serialized);
+			PolicyInOrigin inOrigin = new PolicyInOrigin(q, origin);
+			assertSame(q, inOrigin.queryable);
+			assertSame(q instanceof Policy ? q : null, inOrigin.policy);
+			for (URLWithScheme url : urls) {
+				String message = serialized + ": " + url.scheme + "://" + url.host + ":" + url.port;
+				assertEquals(message, q.allowsExternalScriptNullable(null, null, url, TriState.Unknown, origin), inOrigin.allowsScriptFromSource(url));
+				assertEquals(message, q.allowsImageNullable(url, origin), inOrigin.allowsImageFromSource(url));
+				assertEquals(message, q.allowsConnectionNullable(url, origin), inOrigin.allowsConnection(url));
+				assertEquals(message, q.allowsNavigationNullable(url, TriState.Unknown, null, origin), inOrigin.allowsNavigation(url));
+				assertEquals(message, q.allowsFormActionNullable(url, TriState.Unknown, null, origin), inOrigin.allowsFormAction(url));
+				assertEquals(message, q.allowsFrameAncestorNullable(url, origin), inOrigin.allowsFrameAncestor(url));
+			}
+		}
+	}
+
 	@Test
 	public void testAllowsChild() {
 		PolicyInOrigin p;
@@ -1173,7 +1536,7 @@ public class QueryingTest extends TestBase {
 
 	@Test
 	public void testNavigateToWithRedirects() {
-		Policy p;
+		QueryablePolicy p;
 
 		// If 'unsafe-allow-redirects' is absent, the post-redirect URL does not matter regardless of whether there is a redirect
 		p = parse("navigate-to http://example.com");
@@ -1261,7 +1624,7 @@ public class QueryingTest extends TestBase {
 
 	@Test
 	public void testJavascriptUrl() {
-		Policy p;
+		QueryablePolicy p;
 
 		p = parse("");
 		assertTrue(p.allowsJavascriptUrlNavigation(Optional.empty(), Optional.empty()));
@@ -1308,7 +1671,7 @@ public class QueryingTest extends TestBase {
 
 	@Test
 	public void testAllowsEval() {
-		Policy p;
+		QueryablePolicy p;
 
 		p = parse("");
 		assertTrue(p.allowsEval());
@@ -1328,7 +1691,7 @@ public class QueryingTest extends TestBase {
 
 	@Test
 	public void testMissingInfo() {
-		Policy p;
+		QueryablePolicy p;
 
 		p = parse("default-src *");
 		assertFalse(p.allowsFrame(Optional.empty(), Optional.empty()));
@@ -1413,9 +1776,37 @@ public class QueryingTest extends TestBase {
 		assertFalse(p.allowsFrame(Optional.of(URI.parseURI("applewebdata://example.com").orElse(null)), Optional.of(URI.parseURI("applewebdata://example.com").orElse(null))));
 	}
 
+	@Test
+	public void testNullableForms() {
+		assertEquals(TriState.True, TriState.of(true));
+		assertEquals(TriState.False, TriState.of(Optional.of(false)));
+		assertEquals(TriState.Unknown, TriState.of(Optional.empty()));
+		assertTrue(TriState.Unknown.orElse(true));
+		assertFalse(TriState.False.orElse(true));
+
+		QueryablePolicy p = parse("script-src 'nonce-abc' 'strict-dynamic' example.com; img-src 'self'");
+		URLWithScheme origin = URI.parseURI("http://example.com").orElse(null);
+		URLWithScheme url = URI.parseURI("http://example.com/foo").orElse(null);
+		for (TriState parserInserted : TriState.values()) {
+			Optional<Boolean> optionalParserInserted = parserInserted == TriState.Unknown ? Optional.empty() : Optional.of(parserInserted == TriState.True);
+			assertEquals(p.allowsInlineScript(Optional.empty(), Optional.empty(), optionalParserInserted), p.allowsInlineScriptNullable(null, null, parserInserted));
+			assertEquals(p.allowsExternalScript(Optional.empty(), Optional.empty(), Optional.of(url), optionalParserInserted, Optional.empty()), p.allowsExternalScriptNullable(null, null, url, parserInserted, null));
+		}
+		assertTrue(p.allowsInlineScriptNullable("abc", null, TriState.Unknown));
+		assertFalse(p.allowsImageNullable(url, null));
+		assertTrue(p.allowsImageNullable(url, origin));
+		assertFalse(p.allowsImageNullable(null, origin));
+
+		// Plain null arguments are not ambiguous
+		assertTrue(p.allowsInlineStyleNullable(null, null));
+		assertTrue(p.allowsStyleAsAttributeNullable(null));
+		assertTrue(p.allowsFrameNullable(null, null));
+		assertTrue(p.allowsPluginNullable(null));
+	}
+
 	@Test
 	public void testMissingDirectives() {
-		Policy p;
+		QueryablePolicy p;
 
 		p = parse("");
 		assertTrue(p.allowsFrame(Optional.empty(), Optional.empty()));
@@ -1447,7 +1838,7 @@ public class QueryingTest extends TestBase {
 
 	@Test
 	public void testSandbox() {
-		Policy p;
+		QueryablePolicy p;
 
 		p = parse("sandbox");
 
@@ -1476,15 +1867,26 @@ public class QueryingTest extends TestBase {
 
 
 
-	private Policy parse(String policy) {
-		return Policy.parseSerializedCSP(policy, throwIfPolicyError);
+	private QueryablePolicy queryable(Policy policy) {
+		if (this.optimized) {
+			policy = PolicyOptimizer.optimize(policy).policy;
+		}
+		return this.compiled ? policy.compile() : policy;
+	}
+
+	private CompiledPolicy parseCompiled(String policy) {
+		return Policy.parseSerializedCSP(policy, throwIfPolicyError).compile();
+	}
+
+	private QueryablePolicy parse(String policy) {
+		return this.queryable(Policy.parseSerializedCSP(policy, throwIfPolicyError));
 	}
 
 	private PolicyInOrigin parse(String policy, String origin) {
-		return new PolicyInOrigin(Policy.parseSerializedCSP(policy, throwIfPolicyError), URI.parseURI(origin).orElse(null));
+		return new PolicyInOrigin(this.parse(policy), URI.parseURI(origin).orElse(null));
 	}
 
 	private PolicyInOrigin parse(String policy, URLWithScheme origin) {
-		return new PolicyInOrigin(Policy.parseSerializedCSP(policy, throwIfPolicyError), origin);
+		return new PolicyInOrigin(this.parse(policy), origin);
 	}
 }
@@ -0,0 +1,63 @@
+package com.shapesecurity.salvation2;
+
+import com.shapesecurity.salvation2.URLs.GUID;
+import com.shapesecurity.salvation2.URLs.URI;
+import com.shapesecurity.salvation2.URLs.URLWithScheme;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+// See Benchmark for how to run this.
+public class UrlBenchmark {
+	public static void main(String[] args) {
+		// The sort of resource URLs a page audit sees
+		List<String> cdnUrls = Arrays.asList(
+				"https://cdn.jsdelivr.net/npm/bootstrap@5.3.0/dist/js/bootstrap.bundle.min.js",
+				"https://fonts.gstatic.com/s/roboto/v30/KFOmCnqEu92Fr1Mu4mxKKTU1Kg.woff2",
+				"https://ajax.googleapis.com/ajax/libs/jquery/3.7.1/jquery.min.js",
+				"https://d1234abcd.cloudfront.net/assets/app-3f9a1c.css?v=20240101",
+				"https://www.google-analytics.com/analytics.js",
+				"https://images.example.com:443/products/1234/thumb.jpg#main",
+				"wss://realtime.example.com:8443/socket",
+				"HTTPS://CDN.Example.COM/Static/App.js"
+		);
+		List<String> guids = Arrays.asList("data:image/png;base64,iVBORw0KGgoAAAANSUhEUgAAAAEAAAABCAYAAAAfFcSJAAAADUlEQVR42mNkYPhfDwAChwGA60e6kgAAAABJRU5ErkJggg==", "blob:https://example.com/5d1e8f0a-8c4b-4f5e-9a8b-0c1d2e3f4a5b", "javascript:void(0)");
+
+		Benchmark.run("parse " + cdnUrls.size() + " CDN URLs", () -> {
+			int parsed = 0;
+			for (String url : cdnUrls) {
+				if (URI.parseURI(url).isPresent()) {
+					++parsed;
+				}
+			}
+			return parsed;
+		});
+
+		Benchmark.run("parse " + guids.size() + " GUIDs", () -> {
+			int parsed = 0;
+			for (String url : guids) {
+				if (GUID.parseGUID(url).isPresent()) {
+					++parsed;
+				}
+			}
+			return parsed;
+		});
+
+		// Deduplicating the URLs of a page, which hashes each one several times
+		URLWithScheme[] urls = new URLWithScheme[cdnUrls.size()];
+		for (int i = 0; i < urls.length; ++i) {
+			Optional<URI> url = URI.parseURI(cdnUrls.get(i));
+			urls[i] = url.get();
+		}
+		Benchmark.run("hash " + urls.length + " URLs 4 times", () -> {
+			Set<URLWithScheme> seen = new HashSet<>();
+			for (int i = 0; i < 4; ++i) {
+				seen.addAll(Arrays.asList(urls));
+			}
+			return seen.size();
+		});
+	}
+}